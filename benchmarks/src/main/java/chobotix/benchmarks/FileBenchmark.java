@@ -0,0 +1,147 @@
+package chobotix.benchmarks;
+
+import chobotix.core.FilePipeline;
+import chobotix.core.MaskExporter;
+import chobotix.core.PlaneReader;
+import chobotix.solvatochromic.StackThresholdResult;
+import chobotix.solvatochromic.ThresholdColocAnalyzer;
+import chobotix.spheroids.RoiMeanAnalyzer;
+import chobotix.spheroids.SpheroidMeasurement;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.io.RoiEncoder;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.Analyzer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Whole per-file paths of both plugins, including opening and decoding the file, on a synthetic OME-TIFF
+ * written once per trial. Results are files per second.
+ * <p>
+ * {@link #thresholdFile()} and {@link #spheroidFile()} run the analyzers the plugins run, {@link ThresholdColocAnalyzer}
+ * (mask export off) and {@link RoiMeanAnalyzer}, each alone in a {@link FilePipeline}, the way
+ * {@code BlueRedYellowArea} and {@code SpheroidsAndLips} analyze a file. {@link #meanFile()} repeats the steps of
+ * {@code BlueRedYellowArea.processFileMean}, which has no analyzer of its own.
+ * </p>
+ * <p>
+ * {@link #pipelineFile()} runs both analyses together in one {@link FilePipeline}, the way {@code CombinedRun} does,
+ * to compare with {@link #thresholdFile()} and {@link #spheroidFile()} run one after the other.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class FileBenchmark {
+	@Param({"1024"})
+	int size;
+
+	@Param({"30"})
+	int slices;
+
+	@Param({"8"})
+	int spheroids;
+
+	File file;
+	File roiFile;
+	FilePipeline thresholdPipeline;
+	FilePipeline.Stage<StackThresholdResult> threshold;
+	FilePipeline spheroidPipeline;
+	FilePipeline.Stage<SpheroidMeasurement> spheroid;
+	FilePipeline pipeline;
+
+	@Setup
+	public void setUp() throws IOException {
+		SyntheticStack stack = new SyntheticStack(size, size, 3, slices, spheroids, 42);
+		file = File.createTempFile("chobotix-benchmark-", ".ome.tif");
+		file.delete();
+		stack.writeOmeTiff(file);
+		roiFile = File.createTempFile("chobotix-benchmark-", ".zip");
+		writeRois(roiFile, stack.rois());
+		thresholdPipeline = new FilePipeline();
+		threshold = thresholdPipeline.add("solvatochromic", thresholdAnalyzer(), null);
+		spheroidPipeline = new FilePipeline();
+		spheroid = spheroidPipeline.add("spheroids", spheroidAnalyzer(), null);
+		pipeline = new FilePipeline();
+		pipeline.add("solvatochromic", thresholdAnalyzer(), null);
+		pipeline.add("spheroids", spheroidAnalyzer(), null);
+	}
+
+	private static ThresholdColocAnalyzer thresholdAnalyzer() {
+		return new ThresholdColocAnalyzer(750, 1000, false, new MaskExporter(MaskExporter.Format.OFF, 1, 1));
+	}
+
+	private RoiMeanAnalyzer spheroidAnalyzer() {
+		return new RoiMeanAnalyzer(f -> roiFile);
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+		roiFile.delete();
+	}
+
+	/** Saves the ROIs the way the ROI Manager does. */
+	private static void writeRois(File file, Roi[] rois) throws IOException {
+		try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(zip));
+			RoiEncoder encoder = new RoiEncoder(out);
+			for (int i = 0; i < rois.length; i++) {
+				zip.putNextEntry(new ZipEntry(String.format("%04d.roi", i)));
+				encoder.write(rois[i]);
+				out.flush();
+			}
+		}
+	}
+
+	@Benchmark
+	public StackThresholdResult thresholdFile() throws IOException {
+		return thresholdPipeline.analyze(file).get(threshold);
+	}
+
+	@Benchmark
+	public ResultsTable meanFile() throws IOException {
+		ResultsTable rt = new ResultsTable();
+		try (PlaneReader reader = new PlaneReader(file)) {
+			for (int channel = 0; channel < 2; channel++) {
+				ImagePlus imp = reader.openPlane(channel, 0, 0);
+				new Analyzer(imp, rt).measure();
+				imp.close();
+			}
+		}
+		return rt;
+	}
+
+	@Benchmark
+	public SpheroidMeasurement spheroidFile() throws IOException {
+		return spheroidPipeline.analyze(file).get(spheroid);
+	}
+
+	@Benchmark
+	public FilePipeline.Results pipelineFile() throws IOException {
+		return pipeline.analyze(file);
+	}
+}
@@ -0,0 +1,51 @@
+package chobotix.benchmarks;
+
+import chobotix.spheroids.RoiProposer;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of proposing the ROIs of the plane shown when preparing ROIs, which the user waits for on every file.
+ * @author Jaroslav Hanuš
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class RoiProposerBenchmark {
+	@Param({"1024"})
+	int size;
+
+	@Param({"1", "8"})
+	int spheroids;
+
+	ImageProcessor plane;
+	RoiProposer proposer;
+
+	@Setup
+	public void setUp() {
+		SyntheticStack stack = new SyntheticStack(size, size, 3, 2, spheroids, 42);
+		plane = stack.processor(0, 1);
+		proposer = new RoiProposer(spheroids, 350);
+	}
+
+	@Benchmark
+	public Roi[] propose() {
+		return proposer.propose(plane);
+	}
+}
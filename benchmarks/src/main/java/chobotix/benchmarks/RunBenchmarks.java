@@ -0,0 +1,26 @@
+package chobotix.benchmarks;
+
+import org.openjdk.jmh.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs JMH with the given command line, adding the GC profiler so that allocation rates are reported
+ * next to the throughput.
+ * <p>
+ * For example {@code java -jar benchmarks/target/benchmarks.jar Spheroid -p spheroids=8}.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class RunBenchmarks {
+	public static void main(String[] args) throws Exception {
+		List<String> options = new ArrayList<>(Arrays.asList(args));
+		if (!options.contains("gc")) {
+			options.add("-prof");
+			options.add("gc");
+		}
+		Main.main(options.toArray(new String[0]));
+	}
+}
@@ -0,0 +1,83 @@
+package chobotix.benchmarks;
+
+import chobotix.spheroids.RoiMeanEngine;
+import ij.gui.Roi;
+import ij.measure.Measurements;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory cost of measuring ROI means over a whole Z stack of one channel, without decoding.
+ * <p>
+ * {@link #engine()} is the measurement of {@link chobotix.spheroids.RoiMeanAnalyzer}, summing whole planes as strips,
+ * {@link #imageStatistics()} the former
+ * RoiManager multi measure path, setting each ROI on each plane and taking its statistics.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SpheroidMeanBenchmark {
+	@Param({"1024"})
+	int size;
+
+	@Param({"30"})
+	int slices;
+
+	@Param({"1", "8"})
+	int spheroids;
+
+	ImageProcessor[] planes;
+	Roi[] rois;
+
+	@Setup
+	public void setUp() {
+		SyntheticStack stack = new SyntheticStack(size, size, 3, slices, spheroids, 42);
+		planes = new ImageProcessor[slices];
+		for (int z = 0; z < slices; z++)
+			planes[z] = stack.processor(0, z);
+		rois = stack.rois();
+	}
+
+	@Benchmark
+	public double[][] engine() {
+		RoiMeanEngine engine = new RoiMeanEngine(rois, size, size);
+		double[][] means = new double[slices][];
+		for (int z = 0; z < slices; z++) {
+			double[] sums = new double[rois.length];
+			engine.addSums((short[]) planes[z].getPixels(), 0, sums);
+			means[z] = engine.means(sums);
+		}
+		return means;
+	}
+
+	@Benchmark
+	public double[][] imageStatistics() {
+		double[][] means = new double[slices][rois.length];
+		for (int z = 0; z < slices; z++) {
+			for (int r = 0; r < rois.length; r++) {
+				planes[z].setRoi(rois[r]);
+				means[z][r] = ImageStatistics.getStatistics(planes[z], Measurements.MEAN, null).mean;
+			}
+			planes[z].resetRoi();
+		}
+		return means;
+	}
+}
@@ -0,0 +1,143 @@
+package chobotix.benchmarks;
+
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.process.ShortProcessor;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.ImageWriter;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.services.OMEXMLService;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.SplittableRandom;
+
+/**
+ * Reproducible 16-bit multichannel Z stack resembling our Olympus acquisitions of spheroids.
+ * <p>
+ * Planes are camera-like noise with several bright round "spheroids", each channel has its own brightness of
+ * a spheroid and the brightness changes along Z, so the default thresholds split the pixels into all the classes
+ * (blue, red, both, dark). ROI sets are built from the same spheroids, the first ROI is the background one
+ * at the plugin's default position.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class SyntheticStack {
+	private final int width;
+	private final int height;
+	private final int channels;
+	private final int slices;
+	private final long seed;
+	/** Rows of (center x, center y, radius). */
+	private final int[][] spheroids;
+	/** Peak brightness above noise of each spheroid in each channel, [spheroid][channel]. */
+	private final int[][] peaks;
+
+	public SyntheticStack(int width, int height, int channels, int slices, int spheroidCount, long seed) {
+		this.width = width;
+		this.height = height;
+		this.channels = channels;
+		this.slices = slices;
+		this.seed = seed;
+		SplittableRandom random = new SplittableRandom(seed);
+		int maxRadius = Math.max(4, Math.min(width, height) / 8);
+		spheroids = new int[spheroidCount][];
+		peaks = new int[spheroidCount][channels];
+		for (int i = 0; i < spheroidCount; i++) {
+			int radius = maxRadius / 2 + random.nextInt(maxRadius / 2 + 1);
+			spheroids[i] = new int[]{radius + random.nextInt(width - 2 * radius), radius + random.nextInt(height - 2 * radius), radius};
+			for (int c = 0; c < channels; c++)
+				peaks[i][c] = 500 + random.nextInt(3000);
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getChannels() {
+		return channels;
+	}
+
+	public int getSlices() {
+		return slices;
+	}
+
+	/** Pixels of one plane, always the same for the same stack parameters. */
+	public short[] plane(int channel, int slice) {
+		SplittableRandom random = new SplittableRandom(seed * 31 + channel * 1009L + slice);
+		short[] pixels = new short[width * height];
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = (short) (200 + random.nextInt(400));
+		//Spheroids are brightest in the middle of the stack
+		double zFactor = 1 - Math.abs(slice - (slices - 1) / 2.0) / slices;
+		for (int s = 0; s < spheroids.length; s++) {
+			int cx = spheroids[s][0], cy = spheroids[s][1], r = spheroids[s][2];
+			double peak = peaks[s][channel] * zFactor;
+			for (int y = cy - r; y <= cy + r; y++) {
+				for (int x = cx - r; x <= cx + r; x++) {
+					double d2 = ((double) (x - cx) * (x - cx) + (double) (y - cy) * (y - cy)) / ((double) r * r);
+					if (d2 <= 1) {
+						int i = y * width + x;
+						pixels[i] = (short) Math.min(65535, (pixels[i] & 0xffff) + (int) (peak * (1 - d2)));
+					}
+				}
+			}
+		}
+		return pixels;
+	}
+
+	public ShortProcessor processor(int channel, int slice) {
+		return new ShortProcessor(width, height, plane(channel, slice), null);
+	}
+
+	/** Background ROI followed by an oval ROI around each spheroid, like the ROIs prepared in SpheroidsAndLips. */
+	public Roi[] rois() {
+		Roi[] rois = new Roi[spheroids.length + 1];
+		int bgSize = Math.min(width, height) * 350 / 1024;
+		rois[0] = new Roi(width * 50 / 1024, height * 50 / 1024, bgSize, bgSize);
+		for (int s = 0; s < spheroids.length; s++) {
+			int cx = spheroids[s][0], cy = spheroids[s][1], r = spheroids[s][2];
+			rois[s + 1] = new OvalRoi(cx - r, cy - r, 2 * r, 2 * r);
+		}
+		return rois;
+	}
+
+	/** Saves the stack as an OME-TIFF (XYZCT order, single frame), which PlaneReader opens like our .oib files. */
+	public void writeOmeTiff(File file) throws IOException {
+		try {
+			IMetadata metadata = new ServiceFactory().getInstance(OMEXMLService.class).createOMEXMLMetadata();
+			MetadataTools.populateMetadata(metadata, 0, file.getName(), true, "XYZCT",
+					FormatTools.getPixelTypeString(FormatTools.UINT16), width, height, slices, channels, 1, 1);
+			ImageWriter writer = new ImageWriter();
+			try {
+				writer.setMetadataRetrieve(metadata);
+				writer.setId(file.getPath());
+				byte[] bytes = new byte[2 * width * height];
+				for (int c = 0; c < channels; c++) {
+					for (int z = 0; z < slices; z++) {
+						short[] pixels = plane(c, z);
+						for (int i = 0; i < pixels.length; i++) {
+							bytes[2 * i] = (byte) pixels[i];
+							bytes[2 * i + 1] = (byte) (pixels[i] >> 8);
+						}
+						writer.saveBytes(c * slices + z, bytes);
+					}
+				}
+			} finally {
+				writer.close();
+			}
+		} catch (FormatException | DependencyException | ServiceException e) {
+			throw new IOException("Cannot write " + file, e);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package chobotix.benchmarks;
+
+import chobotix.solvatochromic.ScalarThresholdColocLoops;
+import chobotix.solvatochromic.ThresholdColocKernel;
+import chobotix.solvatochromic.ThresholdColocLoops;
+import chobotix.solvatochromic.ThresholdColocResult;
+import chobotix.solvatochromic.ThresholdSweep;
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.Analyzer;
+import ij.process.ShortProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory cost of the Solvatochromic shift measurements of one blue and red plane, without decoding.
+ * <p>
+ * {@link #kernel()} and {@link #kernelWithMasks()} are the measurement of {@link chobotix.solvatochromic.ThresholdColocAnalyzer}
+ * with mask export off and on, {@link #sweep()} one file of the threshold sweep and {@link #analyzerMean()}
+ * the measurements of {@code processFileMean}.
+ * </p>
+ * <p>
+ * {@link #scalarKernel()} runs the plain loops of Java 8 whatever JVM runs the benchmark, the setup checks
+ * that they give the same counts and masks as the loops the kernel uses (vectorized on JDK 17+
+ * with {@code --add-modules jdk.incubator.vector}).
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ThresholdColocBenchmark {
+	@Param({"1024"})
+	int size;
+
+	short[] blue;
+	short[] red;
+	ThresholdSweep sweep;
+
+	@Setup
+	public void setUp() {
+		SyntheticStack stack = new SyntheticStack(size, size, 3, 30, 8, 42);
+		blue = stack.plane(0, 0);
+		red = stack.plane(1, 0);
+		sweep = new ThresholdSweep(ThresholdSweep.parseThresholds("250-2000:250"), ThresholdSweep.parseThresholds("250-2000:250"));
+		checkLoopsEqual();
+	}
+
+	private void checkLoopsEqual() {
+		long[] counts = new long[ThresholdColocLoops.COUNTS];
+		long[] scalarCounts = new long[ThresholdColocLoops.COUNTS];
+		byte[][] masks = new byte[4][blue.length];
+		byte[][] scalarMasks = new byte[4][blue.length];
+		//an odd range, so that the remainder after the last full vector is checked as well
+		ThresholdColocLoops.countAndMask(blue, red, 3, blue.length - 2, 750, 1000, 375, 500, counts,
+				masks[0], masks[1], masks[2], masks[3], 0);
+		ScalarThresholdColocLoops.countAndMask(blue, red, 3, blue.length - 2, 750, 1000, 375, 500, scalarCounts,
+				scalarMasks[0], scalarMasks[1], scalarMasks[2], scalarMasks[3], 0);
+		if (!Arrays.equals(counts, scalarCounts) || !Arrays.deepEquals(masks, scalarMasks))
+			throw new IllegalStateException("Pixel loops differ: " + Arrays.toString(counts) + " != " + Arrays.toString(scalarCounts));
+	}
+
+	@Benchmark
+	public ThresholdColocResult kernel() {
+		ThresholdColocKernel kernel = new ThresholdColocKernel(750, 1000);
+		kernel.accumulate(blue, red);
+		return kernel.result();
+	}
+
+	@Benchmark
+	public long[] scalarKernel() {
+		long[] counts = new long[ThresholdColocLoops.COUNTS];
+		ScalarThresholdColocLoops.count(blue, red, 0, blue.length, 750, 1000, 375, 500, counts);
+		return counts;
+	}
+
+	@Benchmark
+	public ThresholdColocResult kernelWithMasks() {
+		ThresholdColocKernel kernel = new ThresholdColocKernel(750, 1000);
+		kernel.accumulate(blue, red, new byte[blue.length], new byte[blue.length], new byte[blue.length], new byte[blue.length]);
+		return kernel.result();
+	}
+
+	@Benchmark
+	public ThresholdColocResult[][] sweep() {
+		ThresholdSweep.Histograms histograms = sweep.newHistograms();
+		histograms.accumulate(blue, red);
+		return sweep.evaluate(histograms);
+	}
+
+	@Benchmark
+	public ResultsTable analyzerMean() {
+		ResultsTable rt = new ResultsTable();
+		new Analyzer(new ImagePlus("blue", new ShortProcessor(size, size, blue, null)), rt).measure();
+		new Analyzer(new ImagePlus("red", new ShortProcessor(size, size, red, null)), rt).measure();
+		return rt;
+	}
+}
@@ -0,0 +1,73 @@
+package chobotix.benchmarks;
+
+import chobotix.core.WideColumnTable;
+import ij.measure.ResultsTable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of collecting the per-ROI columns of a whole dataset in memory.
+ * <p>
+ * {@link #columnTable()} collects them in a {@link WideColumnTable}, {@link #resultsTable()} the former
+ * {@code SpheroidsAndLips.addMeasurement} path, {@code getFreeColumn} and padding rows before each {@code setValue}.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class WideTableBenchmark {
+	@Param({"1000"})
+	int columns;
+
+	@Param({"30"})
+	int slices;
+
+	double[][] values;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		values = new double[columns][slices];
+		for (double[] column : values)
+			for (int slice = 0; slice < slices; slice++)
+				column[slice] = 4095 * random.nextDouble();
+	}
+
+	@Benchmark
+	public WideColumnTable columnTable() {
+		WideColumnTable table = new WideColumnTable();
+		for (int i = 0; i < columns; i++)
+			table.addColumn("file-" + i, "file" + i, values[i]);
+		return table;
+	}
+
+	@Benchmark
+	public ResultsTable resultsTable() {
+		ResultsTable rt = new ResultsTable();
+		for (int i = 0; i < columns; i++) {
+			int columnIndex = rt.getFreeColumn("file-" + i);
+			rt.setValue(columnIndex, 1, "file" + i);
+			for (int slice = 0; slice < slices; slice++) {
+				while (rt.getCounter() < slice + 1) rt.addRow();
+				rt.setValue(columnIndex, slice + 2, values[i][slice]);
+			}
+		}
+		return rt;
+	}
+}
@@ -0,0 +1,39 @@
+package chobotix.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Analysis of a plugin that can run over a dataset together with the analyses of other plugins,
+ * in one {@link FilePipeline} pass decoding every file once.
+ * <p>
+ * Plugins register their stage in {@code META-INF/services/chobotix.core.AnalysisStage},
+ * {@link CombinedRun} finds all the stages on the classpath. A stage is opened for one run and closed after it,
+ * closing finishes its result tables.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public interface AnalysisStage<R> extends Closeable {
+	/** Name of the stage for {@code --stages} of {@link CombinedRun}. */
+	String getStageName();
+
+	/** Names of the options taking a value the stage reads when opened, e.g. thresholds. */
+	default String[] getStageOptions() {
+		return new String[0];
+	}
+
+	/** Names of the options without a value the stage reads when opened. */
+	default String[] getStageFlags() {
+		return new String[0];
+	}
+
+	/** Whether the stage analyzes the file of the name. */
+	boolean acceptsFile(String name);
+
+	/** Prepares a run over the folder with results saved to the output folder, returns the analysis of the files. */
+	PlaneAnalyzer<R> openStage(File folder, File outputFolder, CliOptions options) throws IOException;
+
+	/** Result of a file, called in the order of the files. */
+	void addResult(File file, R result) throws IOException;
+}
@@ -0,0 +1,180 @@
+package chobotix.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a per-file analysis over a list of files on a bounded pool of worker threads.
+ * <p>
+ * Results are handed to the consumer on the calling thread and strictly in the order of the file list,
+ * so tables filled by the consumer look exactly the same as after a serial run.
+ * Only a limited number of files is in flight at once, finished results waiting for an earlier slow file
+ * do not pile up in memory.
+ * The analysis itself has to be thread-safe, i.e. must not use ImageJ global state like the system results table
+ * or {@code IJ.run("Set Measurements...")}.
+ * </p>
+ * <p>
+ * When a file fails, no further files are started, results of files before it are still consumed
+ * and the failure is rethrown, as it would be in a serial loop.
+ * </p>
+ * <p>
+ * With {@link #setMetrics(RunMetrics)} every file is timed, from the start of its analysis to the end of its
+ * consumption, which counts as the {@link RunMetrics.Stage#WRITE} stage.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class BatchRunner {
+
+	/** Analysis of one file, called concurrently from worker threads. */
+	public interface FileTask<R> {
+		R process(File file) throws Exception;
+	}
+
+	/** Receives results on the thread that called {@link #run}, in the order of the file list. */
+	public interface ResultConsumer<R> {
+		void accept(File file, R result);
+	}
+
+	private final int workers;
+	private volatile boolean stopped;
+	private RunMetrics metrics;
+
+	/** @param workers number of worker threads, 1 processes the files serially on the calling thread */
+	public BatchRunner(int workers) {
+		this.workers = Math.max(1, workers);
+	}
+
+	/** One worker per available core. */
+	public static int defaultWorkers() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	public int getWorkers() {
+		return workers;
+	}
+
+	/** Stops starting new files, files already running are finished and consumed. */
+	public void stop() {
+		stopped = true;
+	}
+
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	/** Times all the files of following runs, null turns it off. */
+	public void setMetrics(RunMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public <R> void run(List<File> files, FileTask<R> task, ResultConsumer<R> consumer) {
+		if (metrics != null)
+			metrics.start(files.size(), workers);
+		if (workers == 1) {
+			for (File file : files) {
+				if (stopped) return;
+				consume(file, call(task, file), consumer);
+			}
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(workers, new WorkerFactory());
+		try {
+			int maxInFlight = 2 * workers;
+			Deque<File> inFlightFiles = new ArrayDeque<>();
+			Deque<Future<Done<R>>> inFlight = new ArrayDeque<>();
+			int next = 0;
+			while (true) {
+				while (!stopped && next < files.size() && inFlight.size() < maxInFlight) {
+					final File file = files.get(next++);
+					inFlightFiles.add(file);
+					inFlight.add(pool.submit(() -> call(task, file)));
+				}
+				if (inFlight.isEmpty())
+					return;
+				File file = inFlightFiles.poll();
+				Done<R> done;
+				try {
+					done = inFlight.poll().get();
+				} catch (ExecutionException e) {
+					stopped = true;
+					throw rethrow(e.getCause());
+				} catch (InterruptedException e) {
+					stopped = true;
+					Thread.currentThread().interrupt();
+					return;
+				}
+				consume(file, done, consumer);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private <R> Done<R> call(FileTask<R> task, File file) {
+		RunMetrics metrics = this.metrics;
+		RunMetrics.FileRecord record = metrics != null ? metrics.begin(file) : null;
+		try {
+			return new Done<>(task.process(file), record);
+		} catch (Exception e) {
+			throw rethrow(e);
+		} finally {
+			if (record != null)
+				metrics.end(record);
+		}
+	}
+
+	private <R> void consume(File file, Done<R> done, ResultConsumer<R> consumer) {
+		if (done.record == null) {
+			consumer.accept(file, done.result);
+			return;
+		}
+		long start = done.record.start();
+		consumer.accept(file, done.result);
+		done.record.stop(RunMetrics.Stage.WRITE, start);
+		metrics.finish(done.record);
+	}
+
+	/** Result of a file together with its timing. */
+	private static class Done<R> {
+		final R result;
+		final RunMetrics.FileRecord record;
+
+		Done(R result, RunMetrics.FileRecord record) {
+			this.result = result;
+			this.record = record;
+		}
+	}
+
+	private static RuntimeException rethrow(Throwable t) {
+		if (t instanceof RuntimeException)
+			return (RuntimeException) t;
+		if (t instanceof Error)
+			throw (Error) t;
+		if (t instanceof IOException)
+			return new UncheckedIOException((IOException) t);
+		return new RuntimeException(t);
+	}
+
+	private static class WorkerFactory implements ThreadFactory {
+		private static final AtomicInteger poolCounter = new AtomicInteger();
+		private final int pool = poolCounter.incrementAndGet();
+		private final AtomicInteger threadCounter = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "chobotix-batch-" + pool + "-" + threadCounter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
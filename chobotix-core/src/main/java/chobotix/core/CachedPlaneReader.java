@@ -0,0 +1,273 @@
+package chobotix.core;
+
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import loci.formats.FormatTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reader of a {@link PlaneCache} entry, strips of planes already cached are copied from the memory-mapped entry,
+ * others are decoded from the file (parsed only then) and added to the entry.
+ * <p>
+ * The entry is little endian: a header of magic, version, file size and modification time, width, height,
+ * channels, slices, frames, the absolute path of the file and the count of rows filled from the top for every plane,
+ * padded to a page, then the planes in the Bio-Formats order (channel fastest, then slice, then frame).
+ * Filled rows are saved to the header when the reader is closed, after the planes, so an interrupted run
+ * leaves rows it did not finish unfilled.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+class CachedPlaneReader extends PlaneReader {
+	private static final int MAGIC = 0x43485043;
+	private static final int VERSION = 1;
+	private static final int PAGE = 4096;
+	/** Bytes of the header before the path. */
+	private static final int FIXED_HEADER = 48;
+
+	private final PlaneCache cache;
+	private final FileChannel channel;
+	private final int width;
+	private final int height;
+	private final int channels;
+	private final int slices;
+	private final int frames;
+	private final long filledOffset;
+	private final long planesOffset;
+	private final int[] filledRows;
+	private final MappedByteBuffer[] mapped;
+	private final ShortBuffer[] planes;
+	private PlaneReader source;
+	private boolean grown;
+
+	private CachedPlaneReader(PlaneCache cache, File file, FileChannel channel, int width, int height, int channels, int slices, int frames,
+							  int pathBytes, int[] filledRows, PlaneReader source) {
+		super(file, null);
+		this.cache = cache;
+		this.channel = channel;
+		this.width = width;
+		this.height = height;
+		this.channels = channels;
+		this.slices = slices;
+		this.frames = frames;
+		this.filledRows = filledRows;
+		this.source = source;
+		filledOffset = FIXED_HEADER + pathBytes;
+		planesOffset = headerBytes(pathBytes, filledRows.length);
+		mapped = new MappedByteBuffer[filledRows.length];
+		planes = new ShortBuffer[filledRows.length];
+	}
+
+	/** Size of the entry of the file read by the source reader. */
+	static long entryBytes(File file, PlaneReader source) {
+		int planes = source.getChannels() * source.getSlices() * source.getFrames();
+		return headerBytes(path(file).length, planes) + 2L * source.getWidth() * source.getHeight() * planes;
+	}
+
+	/** Reader of an existing entry, null when the file changed since the entry was created or the entry is broken. */
+	static CachedPlaneReader open(PlaneCache cache, File file, File entry) throws IOException {
+		RunMetrics.FileRecord metrics = RunMetrics.current();
+		long start = metrics.start();
+		FileChannel channel = FileChannel.open(entry.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		CachedPlaneReader reader = null;
+		try {
+			if (channel.size() < FIXED_HEADER)
+				return null;
+			ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, header, 0);
+			byte[] path = path(file);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getLong() != file.length() || header.getLong() != file.lastModified())
+				return null;
+			int width = header.getInt(), height = header.getInt(), channels = header.getInt(), slices = header.getInt(), frames = header.getInt();
+			int planeCount = channels * slices * frames;
+			if (header.getInt() != path.length || channel.size() != headerBytes(path.length, planeCount) + 2L * width * height * planeCount)
+				return null;
+			ByteBuffer rest = ByteBuffer.allocate(path.length + 4 * planeCount).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, rest, FIXED_HEADER);
+			byte[] storedPath = new byte[path.length];
+			rest.get(storedPath);
+			if (!Arrays.equals(path, storedPath))
+				return null;
+			int[] filledRows = new int[planeCount];
+			rest.asIntBuffer().get(filledRows);
+			reader = new CachedPlaneReader(cache, file, channel, width, height, channels, slices, frames, path.length, filledRows, null);
+			metrics.stop(RunMetrics.Stage.OPEN, start);
+			return reader;
+		} finally {
+			if (reader == null)
+				channel.close();
+		}
+	}
+
+	/** New empty entry of the file read by the source reader, prepared aside so that other readers never see it half written. */
+	static CachedPlaneReader create(PlaneCache cache, PlaneReader source, File entry) throws IOException {
+		File file = source.getFile();
+		byte[] path = path(file);
+		int planeCount = source.getChannels() * source.getSlices() * source.getFrames();
+		File temporary = File.createTempFile(entry.getName(), ".tmp", entry.getParentFile());
+		try {
+			try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER + path.length + 4 * planeCount).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(MAGIC).putInt(VERSION).putLong(file.length()).putLong(file.lastModified());
+				header.putInt(source.getWidth()).putInt(source.getHeight()).putInt(source.getChannels()).putInt(source.getSlices()).putInt(source.getFrames());
+				header.putInt(path.length).put(path);
+				header.flip();
+				channel.write(header, 0);
+				//planes stay sparse on disk until they are filled
+				channel.write(ByteBuffer.allocate(1), entryBytes(file, source) - 1);
+			}
+			Files.move(temporary.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temporary.delete();
+		}
+		FileChannel channel = FileChannel.open(entry.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		return new CachedPlaneReader(cache, file, channel, source.getWidth(), source.getHeight(), source.getChannels(), source.getSlices(), source.getFrames(),
+				path.length, new int[planeCount], source);
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public int getChannels() {
+		return channels;
+	}
+
+	@Override
+	public int getSlices() {
+		return slices;
+	}
+
+	@Override
+	public int getFrames() {
+		return frames;
+	}
+
+	@Override
+	public int getPixelType() {
+		return FormatTools.UINT16;
+	}
+
+	@Override
+	public ImageProcessor readStrip(int channel, int slice, int frame, int y, int rows) throws IOException {
+		return new ShortProcessor(width, rows, readShorts(channel, slice, frame, y, rows), null);
+	}
+
+	/** Strip of a plane, copied from the entry when its rows are filled, decoded and added to the entry otherwise. */
+	@Override
+	public short[] readShorts(int channel, int slice, int frame, int y, int rows) throws IOException {
+		checkStrip(channel, slice, frame, y, rows);
+		int plane = (frame * slices + slice) * channels + channel;
+		ShortBuffer pixels;
+		synchronized (this) {
+			pixels = y + rows <= filledRows[plane] ? plane(plane) : null;
+		}
+		if (pixels == null)
+			return decode(plane, channel, slice, frame, y, rows);
+		RunMetrics.FileRecord metrics = RunMetrics.current();
+		long start = metrics.start();
+		short[] strip = new short[width * rows];
+		ShortBuffer view = pixels.duplicate();
+		view.position(y * width);
+		view.get(strip);
+		metrics.stop(RunMetrics.Stage.DECODE, start);
+		metrics.addBytesRead(2L * strip.length);
+		cache.recordHit();
+		return strip;
+	}
+
+	@Override
+	public short[] readShorts(int channel, int slice, int frame) throws IOException {
+		return readShorts(channel, slice, frame, 0, height);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try (FileChannel entry = channel; PlaneReader file = source) {
+			if (!grown)
+				return;
+			for (MappedByteBuffer buffer : mapped)
+				if (buffer != null)
+					buffer.force();
+			//another reader of the same entry may have filled more rows meanwhile
+			ByteBuffer stored = ByteBuffer.allocate(4 * filledRows.length).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, stored, filledOffset);
+			ByteBuffer merged = ByteBuffer.allocate(stored.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+			for (int filled : filledRows)
+				merged.putInt(Math.max(filled, stored.getInt()));
+			merged.flip();
+			channel.write(merged, filledOffset);
+			channel.force(false);
+		}
+	}
+
+	/** Decodes a strip from the file, it is added to the entry when it continues the filled rows of its plane. */
+	private synchronized short[] decode(int plane, int channel, int slice, int frame, int y, int rows) throws IOException {
+		short[] strip = source().readShorts(channel, slice, frame, y, rows);
+		cache.recordMiss();
+		if (y <= filledRows[plane] && y + rows > filledRows[plane]) {
+			ShortBuffer view = plane(plane).duplicate();
+			view.position(y * width);
+			view.put(strip);
+			filledRows[plane] = y + rows;
+			grown = true;
+		}
+		return strip;
+	}
+
+	/** The file parsed by Bio-Formats, opened when the first strip that is not cached is read. */
+	private PlaneReader source() throws IOException {
+		if (source == null) {
+			source = new PlaneReader(getFile());
+			if (source.getWidth() != width || source.getHeight() != height || source.getChannels() != channels
+					|| source.getSlices() != slices || source.getFrames() != frames)
+				throw new IOException("Dimensions of " + getFile().getPath() + " do not match its cached planes");
+		}
+		return source;
+	}
+
+	/** Pixels of the plane in the entry, mapped on first use. */
+	private ShortBuffer plane(int plane) throws IOException {
+		if (planes[plane] == null) {
+			long planeBytes = 2L * width * height;
+			mapped[plane] = channel.map(FileChannel.MapMode.READ_WRITE, planesOffset + plane * planeBytes, planeBytes);
+			planes[plane] = mapped[plane].order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+		}
+		return planes[plane];
+	}
+
+	private static long headerBytes(int pathBytes, int planes) {
+		long bytes = FIXED_HEADER + pathBytes + 4L * planes;
+		return (bytes + PAGE - 1) / PAGE * PAGE;
+	}
+
+	private static byte[] path(File file) {
+		return file.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Cache entry is cut off");
+		}
+		buffer.flip();
+	}
+}
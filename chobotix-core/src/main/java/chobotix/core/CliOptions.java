@@ -0,0 +1,117 @@
+package chobotix.core;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Minimal parser of command line options for running the plugins headless, without any ImageJ or SciJava context.
+ * <p>
+ * Accepts {@code --name value}, {@code --name=value} and flags {@code --name}; other arguments are positional.
+ * Unknown option names are rejected, so typos do not silently fall back to defaults.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class CliOptions {
+	private final Map<String, String> values = new HashMap<>();
+	private final List<String> positional = new ArrayList<>();
+
+	private CliOptions() {
+	}
+
+	/**
+	 * @param valueOptions names of options taking a value
+	 * @param flags        names of options without a value
+	 */
+	public static CliOptions parse(String[] args, String[] valueOptions, String[] flags) {
+		Set<String> takesValue = new HashSet<>(Arrays.asList(valueOptions));
+		Set<String> isFlag = new HashSet<>(Arrays.asList(flags));
+		CliOptions options = new CliOptions();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (!arg.startsWith("--")) {
+				options.positional.add(arg);
+				continue;
+			}
+			String name = arg.substring(2);
+			String value = null;
+			int equals = name.indexOf('=');
+			if (equals >= 0) {
+				value = name.substring(equals + 1);
+				name = name.substring(0, equals);
+			}
+			if (isFlag.contains(name) && value == null) {
+				options.values.put(name, "true");
+			} else if (takesValue.contains(name)) {
+				if (value == null) {
+					if (i + 1 >= args.length)
+						throw new IllegalArgumentException("Missing value of --" + name);
+					value = args[++i];
+				}
+				options.values.put(name, value);
+			} else {
+				throw new IllegalArgumentException("Unknown option --" + name);
+			}
+		}
+		return options;
+	}
+
+	/** The arguments without the option taking a value, e.g. to pass the rest on to another process. */
+	public static List<String> without(String[] args, String valueOption) {
+		List<String> rest = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--" + valueOption))
+				i++;
+			else if (!args[i].startsWith("--" + valueOption + "="))
+				rest.add(args[i]);
+		}
+		return rest;
+	}
+
+	public boolean has(String name) {
+		return values.containsKey(name);
+	}
+
+	public String get(String name, String defaultValue) {
+		String value = values.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	public int getInt(String name, int defaultValue) {
+		String value = values.get(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("--" + name + " has to be a whole number, not " + value);
+		}
+	}
+
+	public File getFile(String name, File defaultValue) {
+		String value = values.get(name);
+		return value == null ? defaultValue : new File(value);
+	}
+
+	/** Directory given by the option or as the first positional argument, has to exist. */
+	public File getDirectory(String name) {
+		String value = values.get(name);
+		if (value == null && !positional.isEmpty())
+			value = positional.get(0);
+		if (value == null)
+			throw new IllegalArgumentException("Missing --" + name + " directory");
+		File directory = new File(value).getAbsoluteFile();
+		if (!directory.isDirectory())
+			throw new IllegalArgumentException(directory.getPath() + " is not a directory");
+		return directory;
+	}
+
+	public List<String> getPositional() {
+		return positional;
+	}
+}
@@ -0,0 +1,277 @@
+package chobotix.core;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a binary columnar table written by {@link ColumnarTableWriter}: typed double columns with exact values,
+ * any column read on its own without parsing the others.
+ * <p>
+ * The file is big endian: magic {@code CHCT} and version, the blocks of the columns, the column directory
+ * (column count, then for every column its name and label as Java modified UTF-8, length, compression 0 raw or
+ * 1 deflated, position and size of its block) and finally the position of the directory and the magic again.
+ * </p>
+ * <p>
+ * Also a converter back to text, for tools that do not read the binary format:
+ * {@code java -cp <jars> chobotix.core.ColumnarTable --input SpheroidFluorescence_exp1.cols --output SpheroidFluorescence_exp1.csv}.
+ * An .xls output has the layout of the tables saved by the plugins, a .csv output the column names and all the values
+ * at full precision.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class ColumnarTable implements Closeable {
+	/** Extension of columnar tables. */
+	public static final String EXTENSION = ".cols";
+
+	static final String USAGE = "Usage: ColumnarTable --input <file.cols> --output <file.xls|file.csv>\n";
+
+	/** Directory entry of a column. */
+	static class Column {
+		final String name;
+		final String label;
+		final int length;
+		final byte compression;
+		final long position;
+		final long storedBytes;
+
+		Column(String name, String label, int length, byte compression, long position, long storedBytes) {
+			this.name = name;
+			this.label = label;
+			this.length = length;
+			this.compression = compression;
+			this.position = position;
+			this.storedBytes = storedBytes;
+		}
+	}
+
+	private final File file;
+	private final RandomAccessFile in;
+	private final List<Column> columns = new ArrayList<>();
+	private final Map<String, Integer> indexes = new HashMap<>();
+
+	/** Opens the table and reads its column directory, no values are read yet. */
+	public ColumnarTable(File file) throws IOException {
+		this.file = file;
+		in = new RandomAccessFile(file, "r");
+		try {
+			readDirectory();
+		} catch (IOException | RuntimeException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	public static void main(final String... args) {
+		System.exit(convert(args));
+	}
+
+	/** Converts the table as described by the command line, returns the process exit code. */
+	static int convert(String... args) {
+		File input, output;
+		try {
+			CliOptions options = CliOptions.parse(args, new String[]{"input", "output"}, new String[]{"help"});
+			if (options.has("help")) {
+				System.out.print(USAGE);
+				return 0;
+			}
+			input = options.getFile("input", null);
+			if (input == null)
+				throw new IllegalArgumentException("--input is required");
+			output = options.getFile("output", new File(input.getPath().replaceFirst("\\.cols$", "") + ".csv"));
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			return 2;
+		}
+		try (ColumnarTable table = new ColumnarTable(input)) {
+			if (output.getName().endsWith(".xls"))
+				table.saveAsText(output);
+			else
+				table.saveAsCsv(output);
+			System.out.println("Saved " + table.getColumnCount() + " columns to " + output.getPath() + ".");
+			return 0;
+		} catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+			return 1;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getColumnCount() {
+		return columns.size();
+	}
+
+	/** Index of the column, -1 when there is none. */
+	public int getColumnIndex(String name) {
+		Integer index = indexes.get(name);
+		return index != null ? index : -1;
+	}
+
+	public String getName(int column) {
+		return columns.get(column).name;
+	}
+
+	public String getLabel(int column) {
+		return columns.get(column).label;
+	}
+
+	/** Number of values of the column. */
+	public int getLength(int column) {
+		return columns.get(column).length;
+	}
+
+	/** Directory entry of the column. */
+	Column getColumn(int column) {
+		return columns.get(column);
+	}
+
+	/** Values of the column, read from the file. */
+	public synchronized double[] getValues(int column) throws IOException {
+		Column entry = columns.get(column);
+		byte[] stored = new byte[(int) entry.storedBytes];
+		in.seek(entry.position);
+		in.readFully(stored);
+		byte[] bytes = entry.compression == ColumnarTableWriter.DEFLATED ? inflate(stored, 8 * entry.length) : stored;
+		if (bytes.length != 8 * entry.length)
+			throw new IOException("Column " + entry.name + " of " + file.getName() + " is damaged");
+		double[] values = new double[entry.length];
+		ByteBuffer.wrap(bytes).asDoubleBuffer().get(values);
+		return values;
+	}
+
+	/** Values of the column of the name, null when there is none. */
+	public double[] getValues(String name) throws IOException {
+		int index = getColumnIndex(name);
+		return index >= 0 ? getValues(index) : null;
+	}
+
+	/**
+	 * Copies all the columns into a table in memory, e.g. to show them in ImageJ by {@link WideColumnTable#fill}.
+	 */
+	public WideColumnTable read() throws IOException {
+		WideColumnTable table = new WideColumnTable();
+		for (int i = 0; i < columns.size(); i++)
+			table.addColumn(getName(i), getLabel(i), getValues(i));
+		return table;
+	}
+
+	/** Saves the table as tab separated text with the layout of {@link WideResultsWriter}. */
+	public void saveAsText(File output) throws IOException {
+		List<double[]> values = readAll();
+		List<String> names = new ArrayList<>(), labels = new ArrayList<>();
+		int[] lengths = new int[columns.size()];
+		for (int i = 0; i < lengths.length; i++) {
+			names.add(getName(i));
+			labels.add(getLabel(i));
+			lengths[i] = getLength(i);
+		}
+		WideResultsWriter.writeTable(output, names, labels, lengths, (column, row) -> values.get(column)[row]);
+	}
+
+	/** Saves the table as comma separated values, a header with the column names and the values at full precision, empty below shorter columns. */
+	public void saveAsCsv(File output) throws IOException {
+		List<double[]> values = readAll();
+		int rows = 0;
+		for (double[] column : values)
+			rows = Math.max(rows, column.length);
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8), 1 << 16)) {
+			StringBuilder line = new StringBuilder();
+			for (int i = 0; i < columns.size(); i++)
+				line.append(i > 0 ? "," : "").append(csvField(getName(i)));
+			out.append(line).append('\n');
+			for (int row = 0; row < rows; row++) {
+				line.setLength(0);
+				for (int i = 0; i < columns.size(); i++) {
+					if (i > 0) line.append(',');
+					if (row < values.get(i).length)
+						line.append(values.get(i)[row]);
+				}
+				out.append(line).append('\n');
+			}
+		}
+	}
+
+	private List<double[]> readAll() throws IOException {
+		List<double[]> values = new ArrayList<>();
+		for (int i = 0; i < columns.size(); i++)
+			values.add(getValues(i));
+		return values;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		in.close();
+	}
+
+	private void readDirectory() throws IOException {
+		long length = in.length();
+		if (length < 20 || in.readInt() != ColumnarTableWriter.MAGIC)
+			throw new IOException(file.getName() + " is not a columnar table");
+		int version = in.readInt();
+		if (version != ColumnarTableWriter.VERSION)
+			throw new IOException(file.getName() + " is of unsupported version " + version);
+		in.seek(length - 12);
+		long directoryPosition = in.readLong();
+		if (in.readInt() != ColumnarTableWriter.MAGIC || directoryPosition < 8 || directoryPosition > length - 16)
+			throw new IOException(file.getName() + " is not complete");
+		byte[] directory = new byte[(int) (length - 12 - directoryPosition)];
+		in.seek(directoryPosition);
+		in.readFully(directory);
+		DataInputStream entries = new DataInputStream(new ByteArrayInputStream(directory));
+		int count = entries.readInt();
+		for (int i = 0; i < count; i++) {
+			Column column = new Column(entries.readUTF(), entries.readUTF(), entries.readInt(), entries.readByte(), entries.readLong(), entries.readLong());
+			if (column.position < 8 || column.position + column.storedBytes > directoryPosition)
+				throw new IOException("Column " + column.name + " of " + file.getName() + " is out of the file");
+			indexes.put(column.name, columns.size());
+			columns.add(column);
+		}
+	}
+
+	private byte[] inflate(byte[] stored, int length) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(stored);
+			byte[] bytes = new byte[length];
+			int inflated = 0;
+			while (inflated < length && !inflater.finished()) {
+				int n = inflater.inflate(bytes, inflated, length - inflated);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				inflated += n;
+			}
+			if (inflated != length)
+				throw new IOException("Column of " + file.getName() + " is damaged");
+			return bytes;
+		} catch (DataFormatException e) {
+			throw new IOException("Column of " + file.getName() + " is damaged", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static String csvField(String text) {
+		if (text.indexOf(',') < 0 && text.indexOf('"') < 0 && text.indexOf('\n') < 0)
+			return text;
+		return '"' + text.replace("\"", "\"\"") + '"';
+	}
+}
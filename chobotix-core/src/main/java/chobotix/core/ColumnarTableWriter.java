@@ -0,0 +1,138 @@
+package chobotix.core;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a wide table as a binary columnar file ({@value ColumnarTable#EXTENSION}), read back by {@link ColumnarTable}.
+ * <p>
+ * Each column is written as soon as it is added, as a block of big-endian doubles, deflated when
+ * {@link Compression#DEFLATE} makes it smaller. The column directory (names, labels, lengths, compression and
+ * positions of the blocks) is written at the end, when the writer is closed; the file is written aside and moved into
+ * place then, so readers never see a half written table.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class ColumnarTableWriter implements WideTable, Closeable {
+
+	public enum Compression {
+		/** Doubles as they are, fastest to read. */
+		RAW,
+		/** Columns deflated when it saves space, e.g. columns with many repeated values. */
+		DEFLATE
+	}
+
+	static final int MAGIC = 0x43484354;
+	static final int VERSION = 1;
+	static final byte STORED = 0;
+	static final byte DEFLATED = 1;
+
+	private final File file;
+	private final File temporary;
+	private final Compression compression;
+	private final DataOutputStream out;
+	private final List<ColumnarTable.Column> columns = new ArrayList<>();
+	private final Set<String> names = new HashSet<>();
+	private long position;
+
+	public ColumnarTableWriter(File file, Compression compression) throws IOException {
+		this.file = file;
+		this.compression = compression;
+		temporary = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		position = 8;
+	}
+
+	/** The columnar file saved next to a text table, e.g. {@code Results_exp1.cols} for {@code Results_exp1.xls}. */
+	public static File fileOf(File table) {
+		String name = table.getName();
+		int dot = name.lastIndexOf('.');
+		return new File(table.getAbsoluteFile().getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + ColumnarTable.EXTENSION);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized int getColumnCount() {
+		return columns.size();
+	}
+
+	@Override
+	public synchronized void addColumn(String name, String label, double[] values) throws IOException {
+		if (!names.add(name))
+			throw new IllegalArgumentException("Column " + name + " is already in the table");
+		ByteBuffer raw = ByteBuffer.allocate(8 * values.length);
+		raw.asDoubleBuffer().put(values);
+		byte[] bytes = raw.array();
+		byte stored = STORED;
+		if (compression == Compression.DEFLATE) {
+			byte[] deflated = deflate(bytes);
+			if (deflated != null) {
+				bytes = deflated;
+				stored = DEFLATED;
+			}
+		}
+		out.write(bytes);
+		columns.add(new ColumnarTable.Column(name, label, values.length, stored, position, bytes.length));
+		position += bytes.length;
+	}
+
+	/** Writes the column directory and moves the file into place. */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			try (DataOutputStream directory = out) {
+				long directoryPosition = position;
+				directory.writeInt(columns.size());
+				for (ColumnarTable.Column column : columns) {
+					directory.writeUTF(column.name);
+					directory.writeUTF(column.label);
+					directory.writeInt(column.length);
+					directory.writeByte(column.compression);
+					directory.writeLong(column.position);
+					directory.writeLong(column.storedBytes);
+				}
+				directory.writeLong(directoryPosition);
+				directory.writeInt(MAGIC);
+			}
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temporary.delete();
+		}
+	}
+
+	/** Deflated bytes, null when deflating does not make them smaller. */
+	private static byte[] deflate(byte[] bytes) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(bytes);
+			deflater.finish();
+			byte[] buffer = new byte[bytes.length];
+			int length = 0;
+			while (!deflater.finished() && length < buffer.length)
+				length += deflater.deflate(buffer, length, buffer.length - length);
+			if (!deflater.finished() || length >= bytes.length)
+				return null;
+			byte[] deflated = new byte[length];
+			System.arraycopy(buffer, 0, deflated, 0, length);
+			return deflated;
+		} finally {
+			deflater.end();
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package chobotix.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+/**
+ * Runs the analyses of several plugins over a dataset in one pass, every file is opened and decoded once
+ * for all of them, see {@link FilePipeline}. A stage may read the planes again while it finishes a file:
+ * {@code BlueRedYellowArea} with an automatic threshold method and all planes decodes them a second time
+ * once the thresholds are chosen, and says so when the run starts.
+ * <p>
+ * Stages are the {@link AnalysisStage}s registered by the plugins on the classpath, e.g. Fiji's plugins folder:
+ * {@code java -cp <jars> chobotix.core.CombinedRun --input /data/exp1}.
+ * Each stage writes the same tables as its plugin does alone. The result caches and the watch mode of the plugins
+ * are not used by a combined run.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class CombinedRun {
+	static final String USAGE = "Usage: CombinedRun --input <dir> [options]\n"
+			+ "  --output <dir>            folder of the result tables (default <dir>)\n"
+			+ "  --stages <list>           comma separated stages to run (default all)\n"
+			+ "  --workers <n>             parallel files (default: number of cores)\n"
+			+ "  --strip-mb <n>            read planes in strips fitting into n MB (default 0, whole planes)\n"
+			+ "  --memory-mb <n>           memory the files analyzed at once may take (default 0, 3/4 of the heap)\n"
+			+ "  --rescan                  list all directories again instead of reusing the saved manifest\n"
+			+ "  --no-metrics              do not save RunMetrics_Combined_<dir name>.csv and .json\n";
+
+	private CombinedRun() {
+	}
+
+	public static void main(final String... args) {
+		System.exit(run(args));
+	}
+
+	/** Runs the stages as described by the command line, returns the process exit code. */
+	static int run(String... args) {
+		System.setProperty("java.awt.headless", "true");
+		List<AnalysisStage<?>> available = new ArrayList<>();
+		for (AnalysisStage<?> stage : ServiceLoader.load(AnalysisStage.class))
+			available.add(stage);
+		Set<String> valueOptions = new LinkedHashSet<>(Arrays.asList("input", "output", "stages", "workers", "strip-mb", "memory-mb"));
+		Set<String> flags = new LinkedHashSet<>(Arrays.asList("rescan", "no-metrics", "help"));
+		for (AnalysisStage<?> stage : available) {
+			valueOptions.addAll(Arrays.asList(stage.getStageOptions()));
+			flags.addAll(Arrays.asList(stage.getStageFlags()));
+		}
+		CliOptions options;
+		List<AnalysisStage<?>> stages = new ArrayList<>();
+		File folder;
+		try {
+			options = CliOptions.parse(args, valueOptions.toArray(new String[0]), flags.toArray(new String[0]));
+			if (options.has("help")) {
+				System.out.print(usage(available));
+				return 0;
+			}
+			folder = options.getDirectory("input");
+			if (options.has("stages")) {
+				for (String name : options.get("stages", "").split(","))
+					stages.add(find(available, name.trim()));
+			} else {
+				stages.addAll(available);
+			}
+			if (stages.isEmpty())
+				throw new IllegalArgumentException("No analysis stage found on the classpath");
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(usage(available));
+			return 2;
+		}
+		try {
+			runStages(stages, folder, options.getFile("output", folder), options);
+			return 0;
+		} catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+			return 1;
+		}
+	}
+
+	/** Opens the stages, analyzes all the files they accept in one pass and closes the stages. */
+	public static void runStages(List<AnalysisStage<?>> stages, File folder, File outputFolder, CliOptions options) throws IOException {
+		int workers = options.getInt("workers", BatchRunner.defaultWorkers());
+		RunMetrics metrics = options.has("no-metrics") ? null : new RunMetrics();
+		FilePipeline pipeline = new FilePipeline();
+		pipeline.setStripBudget(options.getInt("strip-mb", 0) * 1024L * 1024L);
+		pipeline.setMemoryBudget(MemoryBudget.ofMB(options.getInt("memory-mb", 0)));
+		List<AnalysisStage<?>> opened = new ArrayList<>();
+		try {
+			for (AnalysisStage<?> stage : stages) {
+				opened.add(stage);
+				addStage(pipeline, stage, folder, outputFolder, options);
+			}
+			long start = System.nanoTime();
+			DatasetManifest manifest = DatasetManifest.scan(folder, !options.has("rescan"), workers);
+			List<File> files = DatasetManifest.files(manifest.find(name -> stages.stream().anyMatch(stage -> stage.acceptsFile(name)), true));
+			if (metrics != null)
+				metrics.addRunTime(RunMetrics.Stage.DISCOVER, System.nanoTime() - start);
+			System.out.println("Analyzing " + files.size() + " files by " + pipeline.getStages().size() + " stages in one pass.");
+			BatchRunner runner = new BatchRunner(workers);
+			runner.setMetrics(metrics);
+			pipeline.run(runner, files);
+		} finally {
+			IOException failure = null;
+			for (AnalysisStage<?> stage : opened) {
+				try {
+					stage.close();
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+			if (failure != null)
+				throw failure;
+		}
+		if (metrics != null)
+			metrics.writeSummary(new File(outputFolder, "RunMetrics_Combined_" + folder.getName()));
+	}
+
+	/** Adds the stage with its file filter, results go to the stage in the order of the files. */
+	private static <R> void addStage(FilePipeline pipeline, AnalysisStage<R> stage, File folder, File outputFolder, CliOptions options) throws IOException {
+		PlaneAnalyzer<R> analyzer = stage.openStage(folder, outputFolder, options);
+		PlaneAnalyzer<R> filtered = new PlaneAnalyzer<R>() {
+			@Override
+			public FileAnalysis<R> begin(PlaneReader reader) throws IOException {
+				return stage.acceptsFile(reader.getFile().getName()) ? analyzer.begin(reader) : null;
+			}
+
+			@Override
+			public long estimateBytes(PlaneReader reader) {
+				return stage.acceptsFile(reader.getFile().getName()) ? analyzer.estimateBytes(reader) : 0;
+			}
+		};
+		pipeline.add(stage.getStageName(), filtered, (file, result) -> {
+			try {
+				stage.addResult(file, result);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	private static AnalysisStage<?> find(List<AnalysisStage<?>> available, String name) {
+		for (AnalysisStage<?> stage : available)
+			if (stage.getStageName().equals(name))
+				return stage;
+		throw new IllegalArgumentException("Unknown stage " + name);
+	}
+
+	private static String usage(List<AnalysisStage<?>> available) {
+		StringBuilder sb = new StringBuilder(USAGE);
+		for (AnalysisStage<?> stage : available) {
+			sb.append("Stage ").append(stage.getStageName());
+			List<String> stageOptions = new ArrayList<>();
+			for (String option : stage.getStageOptions())
+				stageOptions.add("--" + option + " <value>");
+			for (String flag : stage.getStageFlags())
+				stageOptions.add("--" + flag);
+			if (!stageOptions.isEmpty())
+				sb.append(", options ").append(String.join(", ", stageOptions));
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+}
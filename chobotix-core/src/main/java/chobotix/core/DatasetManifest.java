@@ -0,0 +1,353 @@
+package chobotix.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Listing of all the directories of a dataset, found by scanning the directories in parallel and kept in a manifest
+ * file, so later runs do not have to list the whole tree again.
+ * <p>
+ * The manifest keeps the names of the entries of every directory together with the modification time of the
+ * directory. A directory whose modification time did not change, i.e. no entry was added, removed or renamed,
+ * is taken from the manifest and only the directories that changed are listed again, so a run over an unchanged
+ * tree costs one {@code stat} per directory. Changes of file contents are not tracked, that is up to {@link ResultCache}.
+ * The directory the manifest is saved in changes with it, so it is always listed again.
+ * </p>
+ * <p>
+ * Directories are listed with {@link Files#walkFileTree} one level deep, which hands over the attributes of the
+ * subdirectories with the listing, and subdirectories are scanned in parallel.
+ * Symbolic links are followed, as {@code File.isDirectory()} does. Unreadable directories are skipped.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class DatasetManifest {
+	/** Name of the manifest file saved in the scanned folder, shared by all the plugins. */
+	public static final String FILE_NAME = ".chobotix.manifest";
+
+	private static final String HEADER = "chobotix manifest 1";
+	private static final String END = "END";
+
+	/** An image file together with its companion files (e.g. ROIs) found next to it. */
+	public static class Entry {
+		private final File file;
+		private final File[] companions;
+
+		Entry(File file, File[] companions) {
+			this.file = file;
+			this.companions = companions;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		/** Companion file with the {@code index}-th extension passed to {@link #find}, null when there is none. */
+		public File getCompanion(int index) {
+			return companions[index];
+		}
+
+		/** First existing companion file in the order of the extensions, null when there is none. */
+		public File getFirstCompanion() {
+			for (File companion : companions)
+				if (companion != null)
+					return companion;
+			return null;
+		}
+	}
+
+	/** Entries of a directory in the order they were listed, with the modification time of the directory. */
+	private static class Listing {
+		final long modified;
+		final List<String> names = new ArrayList<>();
+		final List<Boolean> directories = new ArrayList<>();
+
+		Listing(long modified) {
+			this.modified = modified;
+		}
+
+		void add(String name, boolean directory) {
+			names.add(name);
+			directories.add(directory);
+		}
+	}
+
+	private final File root;
+	private final Map<String, Listing> listings = new ConcurrentHashMap<>();
+	private volatile boolean changed;
+	private int listed;
+
+	private DatasetManifest(File root) {
+		this.root = root.getAbsoluteFile();
+	}
+
+	/**
+	 * Scans the folder, reusing unchanged directories of the manifest file (when given and present),
+	 * and saves the manifest file again when anything changed.
+	 * @param manifestFile manifest to reuse and update, null scans the whole tree without any manifest
+	 * @param reuse        false lists all directories again, the manifest file is only written
+	 * @param threads      directories listed in parallel
+	 */
+	public static DatasetManifest scan(File folder, File manifestFile, boolean reuse, int threads) throws IOException {
+		DatasetManifest manifest = scan(folder, manifestFile != null && reuse ? load(manifestFile) : Collections.emptyMap(), threads);
+		if (manifestFile != null && manifest.changed) {
+			try {
+				manifest.save(manifestFile);
+			} catch (IOException e) {
+				System.out.println("Could not save " + manifestFile + ": " + e);
+			}
+		}
+		return manifest;
+	}
+
+	/** Scans the folder with the manifest file saved in it, see {@link #scan(File, File, boolean, int)}. */
+	public static DatasetManifest scan(File folder, boolean reuse, int threads) throws IOException {
+		return scan(folder, new File(folder, FILE_NAME), reuse, threads);
+	}
+
+	/**
+	 * Scans the folder of this manifest again, reusing its unchanged directories, without any manifest file,
+	 * e.g. to list a watched folder repeatedly without writing into it.
+	 */
+	public DatasetManifest rescan(int threads) throws IOException {
+		return scan(root, listings, threads);
+	}
+
+	private static DatasetManifest scan(File folder, Map<String, Listing> previous, int threads) throws IOException {
+		DatasetManifest manifest = new DatasetManifest(folder);
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			Path path = manifest.root.toPath();
+			pool.invoke(manifest.new ScanTask(path, "", modified(Files.readAttributes(path, BasicFileAttributes.class)), previous));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			pool.shutdown();
+		}
+		return manifest;
+	}
+
+	/** Directories listed in this scan, the rest was taken from the manifest file. */
+	public int getListedDirectories() {
+		return listed;
+	}
+
+	public int getDirectories() {
+		return listings.size();
+	}
+
+	/**
+	 * Files of the folder and its subfolders accepted by the name filter, subfolders are visited in place.
+	 * Each file is paired with the companions named as the file without its extension plus one of the given extensions.
+	 * @param sorted whether the entries of each directory are sorted by name, otherwise they are in the order
+	 *               they were listed, as from {@code File.listFiles()}
+	 */
+	public List<Entry> find(Predicate<String> nameFilter, boolean sorted, String... companionExtensions) {
+		List<Entry> entries = new ArrayList<>();
+		find("", root, nameFilter, sorted, companionExtensions, entries);
+		return entries;
+	}
+
+	/** Files of the entries. */
+	public static List<File> files(List<Entry> entries) {
+		List<File> files = new ArrayList<>(entries.size());
+		for (Entry entry : entries)
+			files.add(entry.getFile());
+		return files;
+	}
+
+	private void find(String relativePath, File directory, Predicate<String> nameFilter, boolean sorted, String[] companionExtensions, List<Entry> entries) {
+		Listing listing = listings.get(relativePath);
+		if (listing == null)
+			return;
+		Map<String, Boolean> children = new HashMap<>();
+		List<File> files = new ArrayList<>(listing.names.size());
+		for (int i = 0; i < listing.names.size(); i++) {
+			children.put(listing.names.get(i), listing.directories.get(i));
+			files.add(new File(directory, listing.names.get(i)));
+		}
+		if (sorted)
+			Collections.sort(files);
+		for (File file : files) {
+			String name = file.getName();
+			if (children.get(name)) {
+				find(relativePath.isEmpty() ? name : relativePath + "/" + name, file, nameFilter, sorted, companionExtensions, entries);
+			} else if (nameFilter.test(name)) {
+				int dot = name.lastIndexOf('.');
+				String base = dot >= 0 ? name.substring(0, dot) : name;
+				File[] companions = new File[companionExtensions.length];
+				for (int i = 0; i < companionExtensions.length; i++) {
+					Boolean directoryEntry = children.get(base + companionExtensions[i]);
+					if (directoryEntry != null && !directoryEntry)
+						companions[i] = new File(directory, base + companionExtensions[i]);
+				}
+				entries.add(new Entry(file, companions));
+			}
+		}
+	}
+
+	/** Lists a directory, or takes it from the previous manifest when unchanged, and forks tasks for its subdirectories. */
+	private class ScanTask extends RecursiveAction {
+		private final Path directory;
+		private final String relativePath;
+		private final long modified;
+		private final Map<String, Listing> previous;
+
+		ScanTask(Path directory, String relativePath, long modified, Map<String, Listing> previous) {
+			this.directory = directory;
+			this.relativePath = relativePath;
+			this.modified = modified;
+			this.previous = previous;
+		}
+
+		@Override
+		protected void compute() {
+			List<ScanTask> subtasks = new ArrayList<>();
+			Listing listing = previous.get(relativePath);
+			if (listing != null && listing.modified == modified) {
+				for (int i = 0; i < listing.names.size(); i++) {
+					if (!listing.directories.get(i))
+						continue;
+					Path subdirectory = directory.resolve(listing.names.get(i));
+					try {
+						long subdirectoryModified = modified(Files.readAttributes(subdirectory, BasicFileAttributes.class));
+						subtasks.add(new ScanTask(subdirectory, child(listing.names.get(i)), subdirectoryModified, previous));
+					} catch (NoSuchFileException e) {
+						//removed meanwhile, the directory itself would have changed then
+					} catch (IOException e) {
+						System.out.println("Could not read " + subdirectory + ": " + e);
+					}
+				}
+			} else {
+				listing = list(subtasks);
+				changed = true;
+			}
+			listings.put(relativePath, listing);
+			invokeAll(subtasks);
+		}
+
+		private Listing list(List<ScanTask> subtasks) {
+			Listing listing = new Listing(modified);
+			try {
+				Files.walkFileTree(directory, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+						String name = file.getFileName().toString();
+						listing.add(name, attributes.isDirectory());
+						if (attributes.isDirectory())
+							subtasks.add(new ScanTask(file, child(name), modified(attributes), previous));
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFileFailed(Path file, IOException e) {
+						System.out.println("Could not read " + file + ": " + e);
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			synchronized (DatasetManifest.this) {
+				listed++;
+			}
+			return listing;
+		}
+
+		private String child(String name) {
+			return relativePath.isEmpty() ? name : relativePath + "/" + name;
+		}
+	}
+
+	private static long modified(BasicFileAttributes attributes) {
+		return attributes.lastModifiedTime().to(TimeUnit.MICROSECONDS);
+	}
+
+	/**
+	 * Manifest file is a header line and then a line per directory {@code D, relative path, modification time}
+	 * followed by a line per entry, {@code d, name} for directories and {@code f, name} for files, tab separated,
+	 * and an end line.
+	 */
+	private void save(File manifestFile) throws IOException {
+		//several processes (e.g. shards) may save the manifest at once, each writes its own temporary file
+		File tmp = File.createTempFile(manifestFile.getName(), ".tmp", manifestFile.getAbsoluteFile().getParentFile());
+		try {
+			try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8), 1 << 16)) {
+				out.write(HEADER + "\n");
+				for (Map.Entry<String, Listing> entry : listings.entrySet()) {
+					Listing listing = entry.getValue();
+					out.write("D\t" + entry.getKey() + "\t" + listing.modified + "\n");
+					for (int i = 0; i < listing.names.size(); i++)
+						out.write((listing.directories.get(i) ? "d\t" : "f\t") + listing.names.get(i) + "\n");
+				}
+				out.write(END + "\n");
+			}
+			Files.move(tmp.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/** Listings of the manifest file, none when it is missing or not a manifest. Listings of malformed lines are dropped. */
+	private static Map<String, Listing> load(File manifestFile) throws IOException {
+		Map<String, Listing> listings = new HashMap<>();
+		if (!manifestFile.exists())
+			return listings;
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), StandardCharsets.UTF_8), 1 << 16)) {
+			if (!HEADER.equals(in.readLine()))
+				return listings;
+			String path = null;
+			Listing listing = null;
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] parts = line.split("\t", -1);
+				if (parts.length == 3 && parts[0].equals("D")) {
+					if (listing != null)
+						listings.put(path, listing);
+					path = parts[1];
+					try {
+						listing = new Listing(Long.parseLong(parts[2]));
+					} catch (NumberFormatException e) {
+						listing = null;
+					}
+				} else if (listing != null && parts.length == 2 && (parts[0].equals("d") || parts[0].equals("f"))) {
+					listing.add(parts[1], parts[0].equals("d"));
+				} else if (line.equals(END)) {
+					if (listing != null)
+						listings.put(path, listing);
+					break;
+				} else {
+					listing = null;
+				}
+			}
+		}
+		return listings;
+	}
+}
@@ -0,0 +1,327 @@
+package chobotix.core;
+
+import loci.formats.FormatTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Runs several {@link PlaneAnalyzer}s over each file with a single decoding: the file is opened once, every plane
+ * any analysis needs is decoded once (only the channels needed by some analysis) and handed to all the analyses
+ * needing it, and the results go to the sink of each stage.
+ * <p>
+ * Planes are decoded in strips of rows fitting into the strip budget, all the planes of a strip before the next one.
+ * Planes of a strip are handed over in parallel on the common fork-join pool (decoding itself is serialized
+ * by the reader), the budget accounts for the strips in flight and those buffered by the analyses.
+ * </p>
+ * <p>
+ * With a {@link MemoryBudget}, the working set of each file (decoded strips and the memory of the analyses) is estimated
+ * from its dimensions and the planes and channels the analyses need before anything is decoded, and the file waits
+ * until it fits in. A file that would not fit
+ * even alone is read in strips instead of whole planes.
+ * </p>
+ * <p>
+ * Files are analyzed in parallel by a {@link BatchRunner}, sinks get the results on the calling thread in the order
+ * of the files, stage by stage in the order the stages were added. Skipped files (null results) are not passed to sinks.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class FilePipeline {
+	/** Pixels of a decoded strip are held twice for a while, as decoded by Bio-Formats and as handed over. */
+	private static final int DECODE_COPIES = 2;
+
+	/** An analysis of the pipeline together with the sink of its results. */
+	public static class Stage<R> {
+		private final String name;
+		private final PlaneAnalyzer<R> analyzer;
+		private final BatchRunner.ResultConsumer<R> sink;
+		private final int index;
+
+		private Stage(String name, PlaneAnalyzer<R> analyzer, BatchRunner.ResultConsumer<R> sink, int index) {
+			this.name = name;
+			this.analyzer = analyzer;
+			this.sink = sink;
+			this.index = index;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		private void deliver(File file, Object result) {
+			@SuppressWarnings("unchecked")
+			R typed = (R) result;
+			if (sink != null && typed != null)
+				sink.accept(file, typed);
+		}
+	}
+
+	/** Results of all the stages for one file. */
+	public static class Results {
+		private final Object[] results;
+
+		private Results(Object[] results) {
+			this.results = results;
+		}
+
+		/** Result of the stage, null when the stage skipped the file. */
+		@SuppressWarnings("unchecked")
+		public <R> R get(Stage<R> stage) {
+			return (R) results[stage.index];
+		}
+	}
+
+	/** A plane needed by some analyses, with the channels all of them need. */
+	private static class PlaneWork {
+		final int slice;
+		final int frame;
+		final int[] channels;
+		final boolean[] neededBy;
+
+		PlaneWork(int slice, int frame, int[] channels, boolean[] neededBy) {
+			this.slice = slice;
+			this.frame = frame;
+			this.channels = channels;
+			this.neededBy = neededBy;
+		}
+	}
+
+	private final List<Stage<?>> stages = new ArrayList<>();
+	private long stripBudgetBytes;
+	private boolean parallelPlanes = true;
+	private PlaneCache planeCache;
+	private MemoryBudget memoryBudget;
+
+	/** Adds an analysis, its results of each file go to the sink (may be null when results are taken by {@link #analyze}). */
+	public <R> Stage<R> add(String name, PlaneAnalyzer<R> analyzer, BatchRunner.ResultConsumer<R> sink) {
+		Stage<R> stage = new Stage<>(name, analyzer, sink, stages.size());
+		stages.add(stage);
+		return stage;
+	}
+
+	public List<Stage<?>> getStages() {
+		return Collections.unmodifiableList(stages);
+	}
+
+	/** Memory for decoded pixels of a file in bytes, planes are read in strips of rows fitting into it. 0 reads whole planes. */
+	public void setStripBudget(long stripBudgetBytes) {
+		this.stripBudgetBytes = stripBudgetBytes;
+	}
+
+	/** Cache files are read through, null (the default) reads them directly. */
+	public void setPlaneCache(PlaneCache planeCache) {
+		this.planeCache = planeCache;
+	}
+
+	/** Budget files are admitted to, null (the default) admits all of them right away. */
+	public void setMemoryBudget(MemoryBudget memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	/** Whether planes of a strip are handed over in parallel, on by default. */
+	public void setParallelPlanes(boolean parallelPlanes) {
+		this.parallelPlanes = parallelPlanes;
+	}
+
+	/** Analyzes one file single-handedly, e.g. from a {@link BatchRunner.FileTask}. */
+	public static <R> R analyze(File file, PlaneAnalyzer<R> analyzer, long stripBudgetBytes) throws IOException {
+		return analyze(file, analyzer, stripBudgetBytes, null);
+	}
+
+	/** Analyzes one file single-handedly, reading it through the cache unless it is null. */
+	public static <R> R analyze(File file, PlaneAnalyzer<R> analyzer, long stripBudgetBytes, PlaneCache planeCache) throws IOException {
+		return analyze(file, analyzer, stripBudgetBytes, planeCache, null);
+	}
+
+	/** Analyzes one file single-handedly once it fits into the memory budget, unless the budget is null. */
+	public static <R> R analyze(File file, PlaneAnalyzer<R> analyzer, long stripBudgetBytes, PlaneCache planeCache,
+								MemoryBudget memoryBudget) throws IOException {
+		FilePipeline pipeline = new FilePipeline();
+		pipeline.setStripBudget(stripBudgetBytes);
+		pipeline.setPlaneCache(planeCache);
+		pipeline.setMemoryBudget(memoryBudget);
+		Stage<R> stage = pipeline.add(analyzer.getClass().getSimpleName(), analyzer, null);
+		return pipeline.analyze(file).get(stage);
+	}
+
+	/** Analyzes all the files by all the stages, results are passed to the sinks in the order of the files. */
+	public void run(BatchRunner runner, List<File> files) {
+		runner.run(files, this::analyze, (file, results) -> {
+			for (Stage<?> stage : stages)
+				stage.deliver(file, results.results[stage.index]);
+		});
+	}
+
+	/** Analyzes one file by all the stages. Does not touch any ImageJ global state, so it can run for several files in parallel. */
+	public Results analyze(File file) throws IOException {
+		try (PlaneReader reader = PlaneReader.open(file, planeCache)) {
+			PlaneAnalyzer.FileAnalysis<?>[] analyses = begin(reader);
+			List<PlaneWork> planes = neededPlanes(reader, analyses);
+			if (memoryBudget == null)
+				return analyze(reader, analyses, planes, stripBudgetBytes);
+			long stripBudget = stripBudgetBytes;
+			long bytes = estimateBytes(reader, analyses, planes, stripBudget);
+			if (bytes > memoryBudget.getBytes() && stripBudget == 0) {
+				//decoded pixels get what the analyses leave, at least a quarter of the budget
+				stripBudget = Math.max(memoryBudget.getBytes() - analysesBytes(reader, analyses), memoryBudget.getBytes() / 4) / DECODE_COPIES;
+				bytes = estimateBytes(reader, analyses, planes, stripBudget);
+				System.out.println(file.getName() + " does not fit into the memory budget in whole planes, reading it in strips.");
+			}
+			if (bytes > memoryBudget.getBytes())
+				System.out.println(file.getName() + " needs about " + bytes / (1024 * 1024) + " MB, more than the memory budget, analyzing it alone.");
+			try (MemoryBudget.Grant grant = memoryBudget.acquire(bytes)) {
+				return analyze(reader, analyses, planes, stripBudget);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for memory for " + file.getPath(), e);
+			}
+		}
+	}
+
+	/**
+	 * Working set of the file of the reader when analyzed with the strip budget (0 for whole planes): strips of the planes
+	 * decoded at once, in the channels the analyses need, with the buffers of the decoding, plus what the analyses keep.
+	 */
+	private long estimateBytes(PlaneReader reader, PlaneAnalyzer.FileAnalysis<?>[] analyses, List<PlaneWork> planes, long stripBudgetBytes) {
+		int stripPlanes = stripPlanes(planes);
+		int stripRows = stripRows(reader, analyses, stripPlanes, stripBudgetBytes);
+		long rowBytes = (long) reader.getWidth() * Math.max(2, FormatTools.getBytesPerPixel(reader.getPixelType()));
+		return DECODE_COPIES * stripPlanes * stripRows * rowBytes + analysesBytes(reader, analyses);
+	}
+
+	/** Memory the analyses estimate, stages skipping the file keep nothing. */
+	private long analysesBytes(PlaneReader reader, PlaneAnalyzer.FileAnalysis<?>[] analyses) {
+		long bytes = 0;
+		for (int s = 0; s < analyses.length; s++)
+			if (analyses[s] != null)
+				bytes += stages.get(s).analyzer.estimateBytes(reader);
+		return bytes;
+	}
+
+	/** Number of planes of a strip decoded at once: the channels of the planes handed over in parallel, at most the largest ones. */
+	private int stripPlanes(List<PlaneWork> planes) {
+		int parallel = parallel(planes);
+		int[] channels = new int[planes.size()];
+		for (int p = 0; p < channels.length; p++)
+			channels[p] = planes.get(p).channels.length;
+		Arrays.sort(channels);
+		int stripPlanes = 0;
+		for (int p = channels.length - parallel; p < channels.length; p++)
+			stripPlanes += channels[p];
+		return stripPlanes;
+	}
+
+	/** Number of planes handed over at once. */
+	private int parallel(List<PlaneWork> planes) {
+		return parallelPlanes ? Math.min(planes.size(), ForkJoinPool.getCommonPoolParallelism() + 1) : 1;
+	}
+
+	/** Rows of a strip such that the strips decoded at once and those buffered by the analyses fit into the budget. */
+	private static int stripRows(PlaneReader reader, PlaneAnalyzer.FileAnalysis<?>[] analyses, int stripPlanes, long stripBudgetBytes) {
+		if (stripBudgetBytes <= 0)
+			return reader.getHeight();
+		int bufferedStrips = 0;
+		for (PlaneAnalyzer.FileAnalysis<?> analysis : analyses)
+			if (analysis != null)
+				bufferedStrips += analysis.bufferedStrips();
+		return reader.stripRows(stripBudgetBytes, stripPlanes + bufferedStrips);
+	}
+
+	/** Analyzes the file of an open reader by all the stages, the reader is left open. */
+	public Results analyze(PlaneReader reader) throws IOException {
+		PlaneAnalyzer.FileAnalysis<?>[] analyses = begin(reader);
+		return analyze(reader, analyses, neededPlanes(reader, analyses), stripBudgetBytes);
+	}
+
+	private PlaneAnalyzer.FileAnalysis<?>[] begin(PlaneReader reader) throws IOException {
+		PlaneAnalyzer.FileAnalysis<?>[] analyses = new PlaneAnalyzer.FileAnalysis<?>[stages.size()];
+		for (int s = 0; s < analyses.length; s++)
+			analyses[s] = stages.get(s).analyzer.begin(reader);
+		return analyses;
+	}
+
+	private Results analyze(PlaneReader reader, PlaneAnalyzer.FileAnalysis<?>[] analyses, List<PlaneWork> planes, long stripBudgetBytes) throws IOException {
+		if (!planes.isEmpty()) {
+			try {
+				decode(reader, analyses, planes, stripBudgetBytes);
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+		Object[] results = new Object[analyses.length];
+		for (int s = 0; s < analyses.length; s++)
+			results[s] = analyses[s] == null ? null : analyses[s].finish();
+		return new Results(results);
+	}
+
+	/** Planes any of the analyses needs, the slice changes fastest. */
+	private static List<PlaneWork> neededPlanes(PlaneReader reader, PlaneAnalyzer.FileAnalysis<?>[] analyses) {
+		List<PlaneWork> planes = new ArrayList<>();
+		for (int frame = 0; frame < reader.getFrames(); frame++) {
+			for (int slice = 0; slice < reader.getSlices(); slice++) {
+				TreeSet<Integer> channels = new TreeSet<>();
+				boolean[] neededBy = new boolean[analyses.length];
+				for (int s = 0; s < analyses.length; s++) {
+					if (analyses[s] == null)
+						continue;
+					for (int channel : analyses[s].channels(slice, frame)) {
+						if (channel < 0 || channel >= reader.getChannels())
+							throw new IllegalArgumentException("Channel " + channel + " is out of " + reader.getChannels() + " channels of " + reader.getFile().getPath());
+						channels.add(channel);
+						neededBy[s] = true;
+					}
+				}
+				if (!channels.isEmpty())
+					planes.add(new PlaneWork(slice, frame, channels.stream().mapToInt(Integer::intValue).toArray(), neededBy));
+			}
+		}
+		return planes;
+	}
+
+	private void decode(PlaneReader reader, PlaneAnalyzer.FileAnalysis<?>[] analyses, List<PlaneWork> planes, long stripBudgetBytes) throws IOException {
+		int parallel = parallel(planes);
+		int stripRows = stripRows(reader, analyses, stripPlanes(planes), stripBudgetBytes);
+		RunMetrics.FileRecord fileMetrics = RunMetrics.current();
+		for (int y = 0; y < reader.getHeight(); y += stripRows) {
+			final int stripY = y;
+			final int rows = Math.min(stripRows, reader.getHeight() - y);
+			if (parallel > 1) {
+				IntStream.range(0, planes.size()).parallel().forEach(p -> {
+					RunMetrics.FileRecord previous = RunMetrics.setCurrent(fileMetrics);
+					try {
+						handOver(reader, analyses, planes.get(p), stripY, rows);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					} finally {
+						RunMetrics.setCurrent(previous);
+					}
+				});
+			} else {
+				for (PlaneWork plane : planes)
+					handOver(reader, analyses, plane, stripY, rows);
+			}
+			for (PlaneAnalyzer.FileAnalysis<?> analysis : analyses)
+				if (analysis != null)
+					analysis.endStrip(stripY, rows);
+		}
+	}
+
+	/** Decodes the strip of the plane once and hands it to all the analyses needing it. */
+	private static void handOver(PlaneReader reader, PlaneAnalyzer.FileAnalysis<?>[] analyses, PlaneWork plane, int y, int rows) throws IOException {
+		short[][] pixels = new short[plane.channels[plane.channels.length - 1] + 1][];
+		for (int channel : plane.channels)
+			pixels[channel] = reader.readShorts(channel, plane.slice, plane.frame, y, rows);
+		PlaneStrip strip = new PlaneStrip(plane.slice, plane.frame, y, rows, reader.getWidth(), pixels);
+		for (int s = 0; s < analyses.length; s++)
+			if (plane.neededBy[s])
+				analyses[s].accept(strip);
+	}
+}
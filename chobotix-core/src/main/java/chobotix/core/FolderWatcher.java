@@ -0,0 +1,247 @@
+package chobotix.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Watches a folder tree with a {@link WatchService} and hands over new files once they are completely written,
+ * so files can be analyzed while the microscope is still acquiring.
+ * <p>
+ * A file is complete when its size and modification time did not change for the quiet period and it can be opened
+ * for reading (Windows does not allow that while the microscope software still writes it).
+ * New subdirectories are watched as well, files created in them before they were registered are found by listing them.
+ * Each file is handed over once. Files known before watching started (e.g. analyzed by a batch run)
+ * are passed to {@link #markKnown(Collection)} and never handed over.
+ * </p>
+ * <p>
+ * Network shares often do not deliver file system events at all, so the tree is also listed every rescan interval
+ * through a {@link DatasetManifest} kept in memory, which only lists directories that changed since the last rescan.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class FolderWatcher implements Closeable {
+	/** Receives complete files, in the order they were first seen, on the thread that called {@link #watch}. */
+	public interface ReadyFiles {
+		void accept(List<File> files) throws IOException;
+	}
+
+	/** Default time a file has to stay unchanged to count as complete. */
+	public static final long DEFAULT_QUIET_MS = 10_000;
+	/** Default interval of listing the whole tree in case events were missed. */
+	public static final long DEFAULT_RESCAN_MS = 60_000;
+	private static final long POLL_MS = 1000;
+
+	private final File root;
+	private final Predicate<String> nameFilter;
+	private final WatchService watchService;
+	private final Map<WatchKey, Path> directories = new HashMap<>();
+	private final Set<File> known = new HashSet<>();
+	/** Files waiting to be complete with their last seen {size, modification time, time of the last change}. */
+	private final Map<File, long[]> pending = new LinkedHashMap<>();
+	private long quietMillis = DEFAULT_QUIET_MS;
+	private long rescanMillis = DEFAULT_RESCAN_MS;
+	/** Listing of the last rescan, its unchanged directories are not listed again. */
+	private DatasetManifest manifest;
+	private volatile boolean stopped;
+
+	/** Starts watching the folder and all its subfolders for files accepted by the name filter. */
+	public FolderWatcher(File root, Predicate<String> nameFilter) throws IOException {
+		this.root = root.getAbsoluteFile();
+		this.nameFilter = nameFilter;
+		watchService = FileSystems.getDefault().newWatchService();
+		registerTree(this.root.toPath());
+	}
+
+	public void setQuietMillis(long quietMillis) {
+		this.quietMillis = quietMillis;
+	}
+
+	/** Interval of listing the whole tree, 0 relies on file system events only. */
+	public void setRescanMillis(long rescanMillis) {
+		this.rescanMillis = rescanMillis;
+	}
+
+	/** Files that are never handed over, e.g. those already analyzed. */
+	public synchronized void markKnown(Collection<File> files) {
+		for (File file : files) {
+			known.add(file.getAbsoluteFile());
+			pending.remove(file.getAbsoluteFile());
+		}
+	}
+
+	/**
+	 * Hands over complete files until {@link #stop()} is called, the stop condition holds
+	 * or no new file appeared for the idle time.
+	 * @param idleMillis stop after this time without any new file, 0 watches until stopped
+	 * @param stopCondition checked about once a second, e.g. whether the user pressed Esc
+	 */
+	public void watch(ReadyFiles consumer, long idleMillis, BooleanSupplier stopCondition) throws IOException {
+		long lastActivity = System.currentTimeMillis();
+		long lastRescan = System.currentTimeMillis();
+		while (!stopped && !stopCondition.getAsBoolean()) {
+			WatchKey key;
+			try {
+				key = watchService.poll(POLL_MS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+			if (key != null)
+				processEvents(key);
+			if (rescanMillis > 0 && System.currentTimeMillis() - lastRescan >= rescanMillis) {
+				rescan();
+				lastRescan = System.currentTimeMillis();
+			}
+			List<File> ready = takeReady();
+			if (!ready.isEmpty()) {
+				consumer.accept(ready);
+				lastActivity = System.currentTimeMillis();
+			}
+			//files still being written count as activity
+			synchronized (this) {
+				if (!pending.isEmpty())
+					lastActivity = System.currentTimeMillis();
+			}
+			if (idleMillis > 0 && System.currentTimeMillis() - lastActivity >= idleMillis)
+				return;
+		}
+	}
+
+	/** Stops {@link #watch} from another thread, files being handed over are finished. */
+	public void stop() {
+		stopped = true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		stopped = true;
+		watchService.close();
+	}
+
+	private void processEvents(WatchKey key) throws IOException {
+		Path directory = directories.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				rescan();
+				continue;
+			}
+			if (directory == null)
+				continue;
+			Path path = directory.resolve((Path) event.context());
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path))
+				registerTree(path);
+			else
+				offer(path.toFile());
+		}
+		if (!key.reset())
+			directories.remove(key);
+	}
+
+	/**
+	 * Lists the tree for files whose events were missed, directories not watched yet are registered.
+	 * The listing is kept in memory, no manifest file is written into the watched folder.
+	 */
+	private void rescan() throws IOException {
+		manifest = manifest == null ? DatasetManifest.scan(root, null, false, 1) : manifest.rescan(1);
+		for (DatasetManifest.Entry entry : manifest.find(nameFilter, false))
+			offer(entry.getFile());
+		if (directories.size() < manifest.getDirectories())
+			registerTree(root.toPath());
+	}
+
+	/** Watches the directory and its subdirectories, files already in them are offered. */
+	private void registerTree(Path start) throws IOException {
+		Set<Path> watched = new HashSet<>(directories.values());
+		Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+				if (!watched.contains(directory))
+					directories.put(directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY), directory);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+				offer(file.toFile());
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				System.out.println("Could not watch " + file + ": " + e);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private synchronized void offer(File file) {
+		file = file.getAbsoluteFile();
+		if (!nameFilter.test(file.getName()) || known.contains(file) || pending.containsKey(file))
+			return;
+		pending.put(file, new long[]{-1, -1, System.currentTimeMillis()});
+	}
+
+	/** Pending files that stayed unchanged for the quiet period, they become known. */
+	private synchronized List<File> takeReady() {
+		List<File> ready = new ArrayList<>();
+		long now = System.currentTimeMillis();
+		for (Iterator<Map.Entry<File, long[]>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<File, long[]> entry = it.next();
+			File file = entry.getKey();
+			long[] state = entry.getValue();
+			if (!file.exists()) {
+				it.remove();
+				continue;
+			}
+			long size = file.length();
+			long modified = file.lastModified();
+			if (size != state[0] || modified != state[1]) {
+				state[0] = size;
+				state[1] = modified;
+				state[2] = now;
+			} else if (size > 0 && now - state[2] >= quietMillis && canRead(file)) {
+				it.remove();
+				known.add(file);
+				ready.add(file);
+			}
+		}
+		return ready;
+	}
+
+	private static boolean canRead(File file) {
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package chobotix.core;
+
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.io.FileSaver;
+import ij.process.ByteProcessor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Saves binary masks on a few background threads, so encoding and disk writes do not block the analysis.
+ * <p>
+ * At most {@code capacity} masks wait or are being written at once; {@link #export} blocks when the writers
+ * fall behind, which keeps memory bounded. With {@link Format#OFF} nothing is saved and callers should not
+ * build masks at all, see {@link #isEnabled()}.
+ * </p>
+ * <p>
+ * A failed write does not stop the analysis, the first failure is reported by {@link #close()}.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class MaskExporter implements Closeable {
+
+	public enum Format {
+		OFF(""), JPEG(".jpg"), PNG(".png"), PACKED(PackedMask.EXTENSION);
+
+		private final String extension;
+
+		Format(String extension) {
+			this.extension = extension;
+		}
+
+		public String getExtension() {
+			return extension;
+		}
+
+		public static String[] names() {
+			Format[] formats = values();
+			String[] names = new String[formats.length];
+			for (int i = 0; i < formats.length; i++)
+				names[i] = formats[i].name();
+			return names;
+		}
+	}
+
+	private final Format format;
+	private final ExecutorService pool;
+	private final Semaphore slots;
+	private volatile IOException failure;
+
+	/**
+	 * @param threads  number of writer threads
+	 * @param capacity maximum number of masks queued or being written
+	 */
+	public MaskExporter(Format format, int threads, int capacity) {
+		this.format = format;
+		if (format == Format.OFF) {
+			pool = null;
+			slots = null;
+		} else {
+			AtomicInteger counter = new AtomicInteger();
+			pool = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+				Thread thread = new Thread(r, "chobotix-mask-writer-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+			slots = new Semaphore(Math.max(1, capacity));
+		}
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	public boolean isEnabled() {
+		return format != Format.OFF;
+	}
+
+	/**
+	 * Queues a 0/255 mask to be saved as {@code basePath} + extension of the format.
+	 * The mask array must not be modified afterwards. Blocks while the queue is full.
+	 */
+	public void export(byte[] mask, int width, int height, String basePath) {
+		if (!isEnabled())
+			return;
+		try {
+			slots.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		pool.execute(() -> {
+			try {
+				write(mask, width, height, new File(basePath + format.getExtension()));
+			} catch (IOException e) {
+				if (failure == null)
+					failure = e;
+			} finally {
+				slots.release();
+			}
+		});
+	}
+
+	/** Waits until all queued masks are written. */
+	@Override
+	public void close() throws IOException {
+		if (pool == null)
+			return;
+		pool.shutdown();
+		try {
+			while (!pool.awaitTermination(1, TimeUnit.MINUTES))
+				System.out.println("Waiting for masks to be written...");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	private void write(byte[] mask, int width, int height, File file) throws IOException {
+		if (format == Format.PACKED) {
+			PackedMask.write(mask, width, height, file);
+			return;
+		}
+		//displayed the same way as after "Convert to Mask"
+		ByteProcessor ip = new ByteProcessor(width, height, mask);
+		if (!Prefs.blackBackground)
+			ip.invertLut();
+		ImagePlus imp = new ImagePlus(file.getName(), ip);
+		boolean saved = format == Format.JPEG ? new FileSaver(imp).saveAsJpeg(file.getPath()) : new FileSaver(imp).saveAsPng(file.getPath());
+		if (!saved)
+			throw new IOException("Could not save mask " + file.getPath());
+	}
+}
@@ -0,0 +1,103 @@
+package chobotix.core;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Memory shared by the files analyzed at once: a file is admitted only when its estimated working set fits
+ * into what the files already running left free, otherwise its worker waits.
+ * <p>
+ * Files are admitted in the order they asked, so a big file is not overtaken forever by small ones.
+ * A file bigger than the whole budget is admitted alone, once all the others are done.
+ * With a budget, workers can be set generously, the budget keeps the heap from running out.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class MemoryBudget {
+	private final long bytes;
+	private long used;
+	/** Files waiting for admission, the first one goes next. */
+	private final Deque<Object> waiting = new ArrayDeque<>();
+
+	/** @param bytes memory the admitted files may take together */
+	public MemoryBudget(long bytes) {
+		if (bytes <= 0)
+			throw new IllegalArgumentException("Memory budget has to be positive: " + bytes);
+		this.bytes = bytes;
+	}
+
+	/** Budget of the part of the maximum heap, the rest is left to the JVM, ImageJ and the results. */
+	public static MemoryBudget ofHeap(double fraction) {
+		return new MemoryBudget((long) (Runtime.getRuntime().maxMemory() * fraction));
+	}
+
+	/** Budget in MB, 0 takes three quarters of the maximum heap. */
+	public static MemoryBudget ofMB(int megabytes) {
+		return megabytes > 0 ? new MemoryBudget(megabytes * 1024L * 1024L) : ofHeap(0.75);
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	/** Memory taken by the files admitted now. */
+	public synchronized long getUsedBytes() {
+		return used;
+	}
+
+	/**
+	 * Waits until the working set of a file fits in, the returned grant gives the memory back when closed.
+	 * A working set bigger than the budget takes the whole budget.
+	 */
+	public Grant acquire(long workingSetBytes) throws InterruptedException {
+		long granted = Math.min(Math.max(0, workingSetBytes), bytes);
+		RunMetrics.FileRecord metrics = RunMetrics.current();
+		long start = metrics.start();
+		synchronized (this) {
+			Object turn = new Object();
+			waiting.add(turn);
+			try {
+				while (waiting.peekFirst() != turn || used + granted > bytes)
+					wait();
+			} catch (InterruptedException e) {
+				//the files behind go on
+				waiting.remove(turn);
+				notifyAll();
+				throw e;
+			}
+			waiting.removeFirst();
+			used += granted;
+			notifyAll();
+		}
+		metrics.stop(RunMetrics.Stage.WAIT, start);
+		return new Grant(granted);
+	}
+
+	private synchronized void release(long granted) {
+		used -= granted;
+		notifyAll();
+	}
+
+	/** Memory of one admitted file. */
+	public class Grant implements Closeable {
+		private final long granted;
+		private boolean released;
+
+		private Grant(long granted) {
+			this.granted = granted;
+		}
+
+		public long getBytes() {
+			return granted;
+		}
+
+		@Override
+		public void close() {
+			if (!released) {
+				released = true;
+				release(granted);
+			}
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package chobotix.core;
+
+import ij.process.ByteProcessor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Lossless bit-packed binary mask file (.mask), eight times smaller than raw 8-bit and much cheaper to write than a JPEG.
+ * <p>
+ * Format: magic {@code "CHBMASK1"}, width and height as big-endian ints, then one bit per pixel (1 = foreground),
+ * row by row, most significant bit first, the last byte padded with zeros.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class PackedMask {
+	public static final String EXTENSION = ".mask";
+	private static final byte[] MAGIC = {'C', 'H', 'B', 'M', 'A', 'S', 'K', '1'};
+
+	private PackedMask() {
+	}
+
+	/** Writes a mask, any non-zero pixel is foreground. */
+	public static void write(byte[] mask, int width, int height, File file) throws IOException {
+		if (mask.length != width * height)
+			throw new IllegalArgumentException("Mask has " + mask.length + " pixels, expected " + width + "x" + height);
+		byte[] packed = new byte[(mask.length + 7) / 8];
+		for (int i = 0; i < mask.length; i++) {
+			if (mask[i] != 0)
+				packed[i >> 3] |= (byte) (0x80 >>> (i & 7));
+		}
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.write(MAGIC);
+			out.writeInt(width);
+			out.writeInt(height);
+			out.write(packed);
+		}
+	}
+
+	/** Reads a mask as a 0/255 image. */
+	public static ByteProcessor read(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			for (int i = 0; i < MAGIC.length; i++) {
+				if (magic[i] != MAGIC[i])
+					throw new IOException(file.getPath() + " is not a packed mask");
+			}
+			int width = in.readInt();
+			int height = in.readInt();
+			byte[] packed = new byte[(int) (((long) width * height + 7) / 8)];
+			in.readFully(packed);
+			byte[] mask = new byte[width * height];
+			for (int i = 0; i < mask.length; i++) {
+				if ((packed[i >> 3] & (0x80 >>> (i & 7))) != 0)
+					mask[i] = (byte) 255;
+			}
+			return new ByteProcessor(width, height, mask);
+		}
+	}
+}
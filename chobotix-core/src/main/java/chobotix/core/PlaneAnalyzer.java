@@ -0,0 +1,52 @@
+package chobotix.core;
+
+import java.io.IOException;
+
+/**
+ * Per-file analysis that works on the planes handed over by a {@link FilePipeline}, instead of decoding them itself,
+ * so several analyses of the same file share one decoding.
+ * <p>
+ * The pipeline asks every analysis which channels of which planes it needs, decodes each of those planes once,
+ * strip by strip (all the planes of a strip of rows before the next strip), and hands every strip to all the
+ * analyses that need it.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public interface PlaneAnalyzer<R> {
+	/**
+	 * Starts the analysis of the file the reader reads. Returns null to skip the file, its result is null then.
+	 * Called concurrently for different files, before the file is admitted to a {@link MemoryBudget},
+	 * so large buffers are better allocated when the first strip comes.
+	 */
+	FileAnalysis<R> begin(PlaneReader reader) throws IOException;
+
+	/**
+	 * Memory the analysis of the file keeps besides the strips handed over to it (masks, projections, kept planes),
+	 * estimated from the dimensions before anything is decoded, for the admission to a {@link MemoryBudget}.
+	 * Not counted for files {@link #begin} skipped.
+	 */
+	default long estimateBytes(PlaneReader reader) {
+		return 0;
+	}
+
+	/** Analysis of one file. */
+	interface FileAnalysis<R> {
+		/** Channels needed of the plane, none when the plane is not analyzed. */
+		int[] channels(int slice, int frame);
+
+		/** Strips kept by the analysis besides those handed over (e.g. projections), counted into the strip memory budget. */
+		default int bufferedStrips() {
+			return 0;
+		}
+
+		/** A strip of a needed plane. Called concurrently for different planes of the same rows. */
+		void accept(PlaneStrip strip) throws IOException;
+
+		/** All the planes of the rows were accepted. */
+		default void endStrip(int y, int rows) throws IOException {
+		}
+
+		/** All the planes were accepted. */
+		R finish() throws IOException;
+	}
+}
@@ -0,0 +1,124 @@
+package chobotix.core;
+
+import loci.formats.FormatTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Local cache of decoded planes, so that later passes over the same files (preparing ROIs, measuring, re-runs
+ * with other settings) neither parse the .oib container nor decode the planes again.
+ * <p>
+ * Each file gets one raw sidecar file in the cache folder: a small header with the dimensions, the size and
+ * modification time of the file and how many rows of each plane are filled, followed by the 16-bit planes.
+ * Planes are filled as they are decoded the first time, so the cache costs no extra decoding, and read
+ * memory-mapped afterwards. The file itself is parsed only when some plane is not cached yet.
+ * An entry whose file changed is dropped and filled again.
+ * </p>
+ * <p>
+ * The cache is kept within its size, the least recently opened entries are deleted when a new one is created.
+ * Only 16-bit files are cached, other files and stacks bigger than the whole cache are read directly.
+ * Several processes may share the cache folder.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class PlaneCache {
+	/** Extension of the cache entries. */
+	public static final String EXTENSION = ".planes";
+
+	private final File directory;
+	private final long maxBytes;
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+
+	/**
+	 * @param directory cache folder, created when missing, should be on a local disk
+	 * @param maxBytes  size the entries are kept within
+	 */
+	public PlaneCache(File directory, long maxBytes) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create cache folder " + directory.getPath());
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/** Reader of the file, through the cache when it is a 16-bit file that fits into it. The caller closes it. */
+	public PlaneReader open(File file) throws IOException {
+		File entry = entryFile(file);
+		if (entry.isFile()) {
+			PlaneReader cached = CachedPlaneReader.open(this, file, entry);
+			if (cached != null) {
+				entry.setLastModified(System.currentTimeMillis());
+				return cached;
+			}
+			System.out.println("Dropping cached planes of changed " + file.getName() + ".");
+			entry.delete();
+		}
+		PlaneReader source = new PlaneReader(file);
+		try {
+			long bytes = CachedPlaneReader.entryBytes(file, source);
+			if (source.getPixelType() != FormatTools.UINT16 || (long) source.getWidth() * source.getHeight() > Integer.MAX_VALUE / 2 || bytes > maxBytes)
+				return source;
+			evict(bytes);
+			return CachedPlaneReader.create(this, source, entry);
+		} catch (IOException | RuntimeException e) {
+			source.close();
+			throw e;
+		}
+	}
+
+	/** Strips read from the cache since the cache was created. */
+	public int getHits() {
+		return hits.get();
+	}
+
+	/** Strips decoded from files since the cache was created. */
+	public int getMisses() {
+		return misses.get();
+	}
+
+	void recordHit() {
+		hits.incrementAndGet();
+	}
+
+	void recordMiss() {
+		misses.incrementAndGet();
+	}
+
+	/** Entry of the file, named after the file and the checksum of its absolute path, so same names in different folders do not clash. */
+	private File entryFile(File file) {
+		CRC32 crc = new CRC32();
+		crc.update(file.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+		return new File(directory, file.getName() + "-" + Long.toHexString(crc.getValue()) + EXTENSION);
+	}
+
+	/** Deletes the least recently opened entries until a new entry of the size fits in. */
+	private synchronized void evict(long bytes) {
+		File[] entries = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+		if (entries == null)
+			return;
+		long total = 0;
+		for (File entry : entries)
+			total += entry.length();
+		if (total + bytes <= maxBytes)
+			return;
+		Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+		for (File entry : entries) {
+			if (total + bytes <= maxBytes)
+				break;
+			long length = entry.length();
+			//entries still mapped cannot be deleted on Windows, they go next time
+			if (entry.delete())
+				total -= length;
+		}
+	}
+}
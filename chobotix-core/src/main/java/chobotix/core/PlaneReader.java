@@ -0,0 +1,190 @@
+package chobotix.core;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import loci.formats.ChannelSeparator;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.in.FV1000Reader;
+import loci.plugins.util.ImageProcessorReader;
+import loci.plugins.util.LociPrefs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reads single planes of a micrograph (.oib or anything else Bio-Formats understands).
+ * <p>
+ * The file is parsed once when the reader is created and then only the requested planes are decoded,
+ * instead of opening the whole hyperstack with {@code IJ.openImage} and splitting the channels.
+ * Channel, slice and frame indexes are zero based, as in Bio-Formats.
+ * Only the first series of the file is read.
+ * Planes larger than the memory can be read in strips of rows, whose size follows a memory budget.
+ * </p>
+ * <p>
+ * Bio-Formats readers are not thread-safe, so all the reading methods are synchronized.
+ * Close the reader when done, it keeps the file open.
+ * </p>
+ * <p>
+ * Opening and decoding is timed into the {@link RunMetrics} record of the current thread, if any.
+ * </p>
+ * <p>
+ * {@link #open(File, PlaneCache)} reads through a {@link PlaneCache}, planes decoded before are then read
+ * from the cache without parsing the file at all.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class PlaneReader implements Closeable {
+	private final File file;
+	private final ImageProcessorReader reader;
+
+	public PlaneReader(File file) throws IOException {
+		this.file = file;
+		RunMetrics.FileRecord metrics = RunMetrics.current();
+		long start = metrics.start();
+		reader = new ImageProcessorReader(new ChannelSeparator(makeReader(file)));
+		try {
+			reader.setId(file.getPath());
+		} catch (FormatException e) {
+			reader.close();
+			throw new IOException("Could not read " + file.getPath(), e);
+		}
+		metrics.stop(RunMetrics.Stage.OPEN, start);
+	}
+
+	/** For readers that do not read the file with Bio-Formats, they override all the reading methods. */
+	PlaneReader(File file, ImageProcessorReader reader) {
+		this.file = file;
+		this.reader = reader;
+	}
+
+	/** Reader of the file through the cache, or straight from the file when the cache is null. */
+	public static PlaneReader open(File file, PlaneCache cache) throws IOException {
+		return cache != null ? cache.open(file) : new PlaneReader(file);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getWidth() {
+		return reader.getSizeX();
+	}
+
+	public int getHeight() {
+		return reader.getSizeY();
+	}
+
+	public int getChannels() {
+		return reader.getSizeC();
+	}
+
+	public int getSlices() {
+		return reader.getSizeZ();
+	}
+
+	public int getFrames() {
+		return reader.getSizeT();
+	}
+
+	/** Bio-Formats pixel type of the planes, see {@code loci.formats.FormatTools}. */
+	public int getPixelType() {
+		return reader.getPixelType();
+	}
+
+	/** Decodes one plane. */
+	public ImageProcessor readProcessor(int channel, int slice, int frame) throws IOException {
+		return readStrip(channel, slice, frame, 0, getHeight());
+	}
+
+	/**
+	 * Decodes a strip of whole rows of one plane, {@code rows} rows starting at row {@code y}.
+	 * Only the strip is kept in memory, see {@link #stripRows(long, int)}.
+	 */
+	public synchronized ImageProcessor readStrip(int channel, int slice, int frame, int y, int rows) throws IOException {
+		checkStrip(channel, slice, frame, y, rows);
+		RunMetrics.FileRecord metrics = RunMetrics.current();
+		long start = metrics.start();
+		try {
+			int index = reader.getIndex(slice, channel, frame);
+			ImageProcessor ip = y == 0 && rows == getHeight() ? reader.openProcessors(index)[0]
+					: reader.openProcessors(index, 0, y, getWidth(), rows)[0];
+			metrics.stop(RunMetrics.Stage.DECODE, start);
+			metrics.addBytesRead((long) getWidth() * rows * FormatTools.getBytesPerPixel(getPixelType()));
+			return ip;
+		} catch (FormatException e) {
+			throw new IOException("Could not decode plane c=" + channel + ", z=" + slice + ", t=" + frame + " of " + file.getPath(), e);
+		}
+	}
+
+	/** Decodes a strip of whole rows of one plane as raw 16-bit pixels, see {@link #readStrip}. */
+	public short[] readShorts(int channel, int slice, int frame, int y, int rows) throws IOException {
+		return shortPixels(readStrip(channel, slice, frame, y, rows));
+	}
+
+	/**
+	 * Height of strips such that {@code planes} strips at once fit into the memory budget, at least one row
+	 * and at most the whole plane. Pixels are counted as they are kept in memory, 16-bit planes take 2 bytes per pixel.
+	 */
+	public int stripRows(long budgetBytes, int planes) {
+		long rowBytes = (long) getWidth() * Math.max(2, FormatTools.getBytesPerPixel(getPixelType())) * Math.max(1, planes);
+		return (int) Math.max(1, Math.min(getHeight(), budgetBytes / rowBytes));
+	}
+
+	/** Decodes one plane as raw 16-bit pixels, other bit depths are converted without scaling. */
+	public short[] readShorts(int channel, int slice, int frame) throws IOException {
+		return shortPixels(readProcessor(channel, slice, frame));
+	}
+
+	/** Decodes one plane into a single image. */
+	public ImagePlus openPlane(int channel, int slice, int frame) throws IOException {
+		return new ImagePlus(file.getName() + " c" + (channel + 1) + " z" + (slice + 1) + " t" + (frame + 1), readProcessor(channel, slice, frame));
+	}
+
+	/** Decodes all the slices of one channel and frame into a Z-stack. */
+	public ImagePlus openChannel(int channel, int frame) throws IOException {
+		ImageStack stack = new ImageStack(getWidth(), getHeight());
+		for (int slice = 0; slice < getSlices(); slice++)
+			stack.addSlice("z" + (slice + 1), readProcessor(channel, slice, frame));
+		return new ImagePlus(file.getName() + " c" + (channel + 1), stack);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		reader.close();
+	}
+
+	/** Raw 16-bit pixels of the processor, other bit depths are converted without scaling. */
+	public static short[] shortPixels(ImageProcessor ip) {
+		if (ip instanceof ShortProcessor)
+			return (short[]) ip.getPixels();
+		return (short[]) ip.convertToShort(false).getPixels();
+	}
+
+	/**
+	 * Olympus files get their reader directly, which spares instantiating every reader Bio-Formats has
+	 * just to find the right one, other files go through the usual reader selection.
+	 */
+	private static IFormatReader makeReader(File file) {
+		String name = file.getName().toLowerCase();
+		if (name.endsWith(".oib") || name.endsWith(".oif"))
+			return new FV1000Reader();
+		return LociPrefs.makeImageReader();
+	}
+
+	void checkStrip(int channel, int slice, int frame, int y, int rows) {
+		checkPosition(channel, slice, frame);
+		if (y < 0 || rows < 1 || y + rows > getHeight())
+			throw new IllegalArgumentException("Rows " + y + "-" + (y + rows - 1) + " are out of " + getHeight() + " rows of " + file.getPath());
+	}
+
+	private void checkPosition(int channel, int slice, int frame) {
+		if (channel < 0 || channel >= getChannels() || slice < 0 || slice >= getSlices() || frame < 0 || frame >= getFrames())
+			throw new IllegalArgumentException("Plane c=" + channel + ", z=" + slice + ", t=" + frame + " is out of "
+					+ getChannels() + "x" + getSlices() + "x" + getFrames() + " planes of " + file.getPath());
+	}
+}
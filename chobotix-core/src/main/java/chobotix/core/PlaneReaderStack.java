@@ -0,0 +1,117 @@
+package chobotix.core;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Virtual hyperstack that decodes planes through a {@link PlaneReader} only when ImageJ displays them.
+ * <p>
+ * Opening a file for display costs parsing its header and decoding the one displayed plane instead of the whole stack.
+ * A few recently shown planes are kept, so flipping between neighbouring slices stays fast.
+ * Planes are ordered the ImageJ way (channel fastest, then slice, then frame).
+ * Close the stack after closing its image to release the file.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class PlaneReaderStack extends VirtualStack implements Closeable {
+	private static final int KEPT_PLANES = 4;
+
+	private final PlaneReader reader;
+	private final Map<Integer, ImageProcessor> planes = new LinkedHashMap<Integer, ImageProcessor>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, ImageProcessor> eldest) {
+			return size() > KEPT_PLANES;
+		}
+	};
+
+	public PlaneReaderStack(PlaneReader reader) {
+		super(reader.getWidth(), reader.getHeight(), null, null);
+		this.reader = reader;
+	}
+
+	/** Opens the file and decodes the plane at the given stack index (one based) right away. */
+	public static PlaneReaderStack open(File file, int displayedIndex) throws IOException {
+		return open(file, displayedIndex, null);
+	}
+
+	/** Opens the file through the cache (unless it is null) and decodes the plane at the given stack index right away. */
+	public static PlaneReaderStack open(File file, int displayedIndex, PlaneCache planeCache) throws IOException {
+		PlaneReader reader = PlaneReader.open(file, planeCache);
+		try {
+			PlaneReaderStack stack = new PlaneReaderStack(reader);
+			stack.getProcessor(Math.min(displayedIndex, stack.getSize()));
+			return stack;
+		} catch (RuntimeException e) {
+			reader.close();
+			throw e;
+		}
+	}
+
+	public PlaneReader getReader() {
+		return reader;
+	}
+
+	/** Hyperstack image showing this stack. */
+	public ImagePlus createImagePlus() {
+		ImagePlus imp = new ImagePlus(reader.getFile().getName(), this);
+		imp.setDimensions(reader.getChannels(), reader.getSlices(), reader.getFrames());
+		imp.setOpenAsHyperStack(true);
+		return imp;
+	}
+
+	@Override
+	public int getSize() {
+		return reader.getChannels() * reader.getSlices() * reader.getFrames();
+	}
+
+	@Override
+	public ImageProcessor getProcessor(int n) {
+		synchronized (planes) {
+			ImageProcessor ip = planes.get(n);
+			if (ip != null)
+				return ip;
+		}
+		int index = n - 1;
+		int channel = index % reader.getChannels();
+		int slice = (index / reader.getChannels()) % reader.getSlices();
+		int frame = index / (reader.getChannels() * reader.getSlices());
+		ImageProcessor ip;
+		try {
+			ip = reader.readProcessor(channel, slice, frame);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		synchronized (planes) {
+			planes.put(n, ip);
+		}
+		return ip;
+	}
+
+	@Override
+	public String getSliceLabel(int n) {
+		int index = n - 1;
+		return "c" + (index % reader.getChannels() + 1) + " z" + ((index / reader.getChannels()) % reader.getSlices() + 1)
+				+ " t" + (index / (reader.getChannels() * reader.getSlices()) + 1);
+	}
+
+	@Override
+	public int getBitDepth() {
+		return getProcessor(1).getBitDepth();
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (planes) {
+			planes.clear();
+		}
+		reader.close();
+	}
+}
@@ -0,0 +1,59 @@
+package chobotix.core;
+
+/**
+ * Decoded strip of rows of one plane, with the pixels of every channel some analysis of the {@link FilePipeline} needs.
+ * Pixels are raw 16-bit values, shared by all the analyses, so they must not be modified.
+ * @author Jaroslav Hanuš
+ */
+public class PlaneStrip {
+	private final int slice;
+	private final int frame;
+	private final int y;
+	private final int rows;
+	private final int width;
+	private final short[][] channels;
+
+	/** @param channels pixels indexed by channel, null for channels that were not decoded */
+	public PlaneStrip(int slice, int frame, int y, int rows, int width, short[][] channels) {
+		this.slice = slice;
+		this.frame = frame;
+		this.y = y;
+		this.rows = rows;
+		this.width = width;
+		this.channels = channels;
+	}
+
+	public int getSlice() {
+		return slice;
+	}
+
+	public int getFrame() {
+		return frame;
+	}
+
+	/** First row of the strip in the plane. */
+	public int getY() {
+		return y;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	/** Index of the first pixel of the strip in the whole plane. */
+	public int getOffset() {
+		return y * width;
+	}
+
+	/** Pixels of a channel, which has to be one of those the analysis asked for. */
+	public short[] getPixels(int channel) {
+		short[] pixels = channel < channels.length ? channels[channel] : null;
+		if (pixels == null)
+			throw new IllegalArgumentException("Channel " + channel + " of z=" + slice + ", t=" + frame + " was not decoded");
+		return pixels;
+	}
+}
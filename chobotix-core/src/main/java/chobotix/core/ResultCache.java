@@ -0,0 +1,270 @@
+package chobotix.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent cache of per-file analysis results, so re-runs only analyze new or changed files.
+ * <p>
+ * An entry is keyed by the file path relative to the analyzed folder and is valid only while its fingerprint matches:
+ * file size and modification time, content checksum of side files (e.g. the .roi/.zip with ROIs)
+ * and the analysis parameters (thresholds, measured channel, ...).
+ * </p>
+ * <p>
+ * The cache file is an append-only journal of tab separated lines {@code path, fingerprint, encoded result},
+ * a line is written and flushed as soon as a file is analyzed. An interrupted run therefore keeps everything
+ * analyzed so far and the next run continues with the remaining files. Later lines override earlier ones,
+ * the journal is compacted when it is opened and contains too many stale lines.
+ * A last line without its line break was cut off by a crash; it is removed from the journal before the cache is loaded,
+ * and an entry whose result cannot be decoded is analyzed again.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class ResultCache<R> implements Closeable {
+
+	/** Converts results to a single line of text (no tabs, no line breaks) and back. */
+	public interface Codec<R> {
+		String encode(R result);
+
+		/** @throws IllegalArgumentException when the text is not a complete result */
+		R decode(String encoded);
+	}
+
+	/** Files whose content is part of the fingerprint of an analyzed file, may return missing files. */
+	public interface SideFiles {
+		File[] of(File file);
+	}
+
+	/** Whether the outputs written when the file was analyzed (e.g. masks) are still there, otherwise it is analyzed again. */
+	public interface Outputs<R> {
+		boolean exist(File file, R result);
+	}
+
+	private final File root;
+	private final File cacheFile;
+	private final String parametersChecksum;
+	private final Codec<R> codec;
+	private final Map<String, String[]> entries = new HashMap<>();
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+	private Writer journal;
+
+	/**
+	 * Loads the cache.
+	 * @param root       analyzed folder, cached paths are relative to it
+	 * @param cacheFile  journal file, created when missing
+	 * @param parameters description of all analysis parameters that influence results
+	 */
+	public ResultCache(File root, File cacheFile, String parameters, Codec<R> codec) throws IOException {
+		this.root = root.getAbsoluteFile();
+		this.cacheFile = cacheFile;
+		this.parametersChecksum = Long.toHexString(checksum(parameters.getBytes(StandardCharsets.UTF_8)));
+		this.codec = codec;
+		dropCutOffLine();
+		int lines = load();
+		if (lines > 2 * entries.size() + 100)
+			compact();
+		journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(cacheFile, true), StandardCharsets.UTF_8));
+	}
+
+	/** Fingerprint of the file in its current state, together with its side files and the analysis parameters. */
+	public String fingerprint(File file, File... sideFiles) throws IOException {
+		StringBuilder fingerprint = new StringBuilder();
+		fingerprint.append(file.length()).append(':').append(file.lastModified());
+		for (File sideFile : sideFiles) {
+			fingerprint.append(':').append(sideFile.getName()).append('=');
+			if (sideFile.exists())
+				fingerprint.append(Long.toHexString(checksum(sideFile)));
+			else
+				fingerprint.append('-');
+		}
+		return fingerprint.append(':').append(parametersChecksum).toString();
+	}
+
+	/** Cached result of the file, null when there is none, the fingerprint does not match or the result is damaged. */
+	public synchronized R get(File file, String fingerprint) {
+		String[] entry = entries.get(key(file));
+		if (entry == null || !entry[0].equals(fingerprint))
+			return null;
+		try {
+			return codec.decode(entry[1]);
+		} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+			System.out.println("Damaged cached result of " + key(file) + ", analyzing it again: " + e);
+			return null;
+		}
+	}
+
+	/** Stores the result and writes it to the journal right away. */
+	public synchronized void put(File file, String fingerprint, R result) throws IOException {
+		String key = key(file);
+		String encoded = codec.encode(result);
+		entries.put(key, new String[]{fingerprint, encoded});
+		journal.write(key + "\t" + fingerprint + "\t" + encoded + "\n");
+		journal.flush();
+	}
+
+	/**
+	 * Wraps a per-file task so that cached results are returned without running it and new results are stored.
+	 * Null results are not cached.
+	 */
+	public BatchRunner.FileTask<R> wrap(BatchRunner.FileTask<R> task, SideFiles sideFiles) {
+		return wrap(task, sideFiles, (file, result) -> true);
+	}
+
+	/** Wraps a per-file task, a cached result is returned only while the outputs of its analysis exist. */
+	public BatchRunner.FileTask<R> wrap(BatchRunner.FileTask<R> task, SideFiles sideFiles, Outputs<R> outputs) {
+		return file -> {
+			String fingerprint = fingerprint(file, sideFiles.of(file));
+			R result = get(file, fingerprint);
+			if (result != null && outputs.exist(file, result)) {
+				hits.incrementAndGet();
+				return result;
+			}
+			misses.incrementAndGet();
+			result = task.process(file);
+			if (result != null)
+				put(file, fingerprint, result);
+			return result;
+		};
+	}
+
+	/** Wraps a task for files without side files. */
+	public BatchRunner.FileTask<R> wrap(BatchRunner.FileTask<R> task) {
+		return wrap(task, file -> new File[0]);
+	}
+
+	public int getHits() {
+		return hits.get();
+	}
+
+	public int getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		journal.close();
+	}
+
+	/** Joins values into a lossless text form for codecs. */
+	public static String encodeDoubles(double... values) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) sb.append(',');
+			sb.append(values[i]);
+		}
+		return sb.toString();
+	}
+
+	public static double[] decodeDoubles(String encoded) {
+		if (encoded.isEmpty())
+			return new double[0];
+		String[] parts = encoded.split(",");
+		double[] values = new double[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			values[i] = Double.parseDouble(parts[i]);
+		return values;
+	}
+
+	/** Decodes exactly the number of values, e.g. of a result cut off by a crash it throws IllegalArgumentException. */
+	public static double[] decodeDoubles(String encoded, int count) {
+		double[] values = decodeDoubles(encoded);
+		if (values.length != count)
+			throw new IllegalArgumentException(values.length + " values instead of " + count);
+		return values;
+	}
+
+	private String key(File file) {
+		String path = file.getAbsolutePath();
+		String rootPath = root.getPath() + File.separator;
+		if (path.startsWith(rootPath))
+			path = path.substring(rootPath.length());
+		return path.replace(File.separatorChar, '/');
+	}
+
+	private int load() throws IOException {
+		if (!cacheFile.exists())
+			return 0;
+		int lines = 0;
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] parts = line.split("\t", -1);
+				if (parts.length != 3)
+					continue;
+				entries.put(parts[0], new String[]{parts[1], parts[2]});
+				lines++;
+			}
+		}
+		return lines;
+	}
+
+	/** Truncates the journal after its last line break, a line without it was cut off while being written. */
+	private void dropCutOffLine() throws IOException {
+		if (!cacheFile.exists() || cacheFile.length() == 0)
+			return;
+		try (RandomAccessFile file = new RandomAccessFile(cacheFile, "rw")) {
+			long length = file.length();
+			long end = length;
+			byte[] buffer = new byte[8192];
+			search:
+			while (end > 0) {
+				int n = (int) Math.min(buffer.length, end);
+				file.seek(end - n);
+				file.readFully(buffer, 0, n);
+				for (int i = n - 1; i >= 0; i--) {
+					if (buffer[i] == '\n')
+						break search;
+					end--;
+				}
+			}
+			if (end < length) {
+				System.out.println("Dropping a cache entry cut off by an interrupted run from " + cacheFile.getName());
+				file.setLength(end);
+			}
+		}
+	}
+
+	private void compact() throws IOException {
+		File tmp = new File(cacheFile.getPath() + ".tmp");
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+			for (Map.Entry<String, String[]> entry : entries.entrySet())
+				out.write(entry.getKey() + "\t" + entry.getValue()[0] + "\t" + entry.getValue()[1] + "\n");
+		}
+		Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static long checksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[8192];
+		try (InputStream in = new FileInputStream(file)) {
+			int read;
+			while ((read = in.read(buffer)) > 0)
+				crc.update(buffer, 0, read);
+		}
+		return crc.getValue();
+	}
+
+	private static long checksum(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length);
+		return crc.getValue();
+	}
+}
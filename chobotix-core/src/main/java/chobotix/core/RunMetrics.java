@@ -0,0 +1,275 @@
+package chobotix.core;
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lightweight timing of the stages of a batch run, with live progress and a summary saved next to the results.
+ * <p>
+ * Each processed file gets a {@link FileRecord} with durations of its stages, bytes read and a high-water mark of
+ * used heap sampled at the end of each stage. The record of the file being processed is bound to the worker thread,
+ * so code deep in the analysis (like {@link PlaneReader}) just times itself with {@link #current()} without passing
+ * anything around. Outside of an instrumented run {@link #current()} returns a record ignoring everything.
+ * </p>
+ * <p>
+ * Stage times of parallel files add up, so they may be longer than the whole run, they tell where the work goes.
+ * Progress (files/s, MB/s and ETA) is shown in the ImageJ status bar and printed at most once a second.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class RunMetrics {
+
+	public enum Stage {
+		/** Finding the files of the dataset, done once for the whole run. */
+		DISCOVER,
+		/** Opening and parsing a file (and its ROIs). */
+		OPEN,
+		/** Waiting until the file fits into the {@link MemoryBudget}. */
+		WAIT,
+		/** Decoding planes. */
+		DECODE,
+		THRESHOLD,
+		MEASURE,
+		/** Handing masks to the exporter, including waiting for a free slot in its queue. */
+		EXPORT,
+		/** Writing results into tables. */
+		WRITE,
+		/** Interactive ROI preparation, including the time the user spends with the file. */
+		PREPARE;
+
+		public String label() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final ThreadLocal<FileRecord> current = new ThreadLocal<>();
+	private static final FileRecord disabled = new FileRecord(null, false);
+
+	private final List<FileRecord> records = new ArrayList<>();
+	private final long[] runNanos = new long[Stage.values().length];
+	private long startNanos = System.nanoTime();
+	private long lastReportNanos;
+	private int totalFiles;
+	private int workers = 1;
+
+	/** Record of the file processed by the current thread. */
+	public static FileRecord current() {
+		FileRecord record = current.get();
+		return record != null ? record : disabled;
+	}
+
+	/** Starts the clock of the run. */
+	public synchronized void start(int totalFiles, int workers) {
+		this.totalFiles += totalFiles;
+		this.workers = workers;
+		if (records.isEmpty())
+			startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Makes the record current on this thread, e.g. in a fork-join task working on a part of a file,
+	 * and returns the previous one to be restored afterwards. Null (or a record outside of a run) unbinds it.
+	 */
+	public static FileRecord setCurrent(FileRecord record) {
+		FileRecord previous = current.get();
+		if (record == null || record == disabled)
+			current.remove();
+		else
+			current.set(record);
+		return previous;
+	}
+
+	/** Starts processing of a file on the current thread. */
+	public FileRecord begin(File file) {
+		FileRecord record = new FileRecord(file, true);
+		current.set(record);
+		return record;
+	}
+
+	/** Ends processing of the file on the current thread, the record may still get stages from other threads. */
+	public void end(FileRecord record) {
+		record.processingNanos = System.nanoTime() - record.beginNanos;
+		current.remove();
+	}
+
+	/** Adds the finished file to the summary and reports progress. */
+	public synchronized void finish(FileRecord record) {
+		records.add(record);
+		long now = System.nanoTime();
+		if (now - lastReportNanos >= REPORT_INTERVAL_NANOS || records.size() == totalFiles) {
+			lastReportNanos = now;
+			String progress = progress(now);
+			IJ.showStatus(progress);
+			IJ.showProgress(records.size(), Math.max(totalFiles, records.size()));
+			System.out.println(progress);
+		}
+	}
+
+	/** Adds time of work done for the whole run rather than for a file, like saving the final tables. */
+	public synchronized void addRunTime(Stage stage, long nanos) {
+		runNanos[stage.ordinal()] += nanos;
+	}
+
+	public synchronized int getFileCount() {
+		return records.size();
+	}
+
+	private String progress(long now) {
+		int done = records.size();
+		double seconds = (now - startNanos) / 1e9;
+		double filesPerSecond = done / Math.max(seconds, 1e-9);
+		String text = String.format(Locale.ROOT, "Processed %d/%d files, %.2f files/s, %.1f MB/s", done, totalFiles,
+				filesPerSecond, bytesRead() / 1e6 / Math.max(seconds, 1e-9));
+		if (done < totalFiles && done > 0)
+			text += ", ETA " + formatDuration((long) ((totalFiles - done) / filesPerSecond));
+		return text;
+	}
+
+	private long bytesRead() {
+		long bytes = 0;
+		for (FileRecord record : records)
+			bytes += record.bytesRead;
+		return bytes;
+	}
+
+	private static String formatDuration(long seconds) {
+		if (seconds >= 3600)
+			return String.format(Locale.ROOT, "%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+		return String.format(Locale.ROOT, "%d:%02d", seconds / 60, seconds % 60);
+	}
+
+	/**
+	 * Saves a line per file into {@code <base>.csv} and totals of the run into {@code <base>.json}.
+	 */
+	public synchronized void writeSummary(File base) throws IOException {
+		long wallNanos = System.nanoTime() - startNanos;
+		Stage[] stages = Stage.values();
+		try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(new File(base.getPath() + ".csv").toPath(), StandardCharsets.UTF_8))) {
+			StringBuilder header = new StringBuilder("file,bytes_read");
+			for (Stage stage : stages)
+				header.append(',').append(stage.label()).append("_ms");
+			csv.println(header.append(",total_ms,heap_high_water_mb"));
+			for (FileRecord record : records) {
+				StringBuilder line = new StringBuilder(csvField(record.file.getPath())).append(',').append(record.bytesRead);
+				for (Stage stage : stages)
+					line.append(',').append(millis(record.nanos[stage.ordinal()]));
+				line.append(',').append(millis(record.getTotalNanos()));
+				line.append(',').append(megabytes(record.heapHighWater));
+				csv.println(line);
+			}
+		}
+
+		long bytes = bytesRead();
+		long heapHighWater = 0;
+		long[] stageNanos = new long[stages.length];
+		for (FileRecord record : records) {
+			heapHighWater = Math.max(heapHighWater, record.heapHighWater);
+			for (int s = 0; s < stages.length; s++)
+				stageNanos[s] += record.nanos[s];
+		}
+		double seconds = wallNanos / 1e9;
+		try (PrintWriter json = new PrintWriter(Files.newBufferedWriter(new File(base.getPath() + ".json").toPath(), StandardCharsets.UTF_8))) {
+			json.println("{");
+			json.println("  \"files\": " + records.size() + ",");
+			json.println("  \"workers\": " + workers + ",");
+			json.println("  \"wall_s\": " + format(seconds) + ",");
+			json.println("  \"files_per_s\": " + format(records.size() / Math.max(seconds, 1e-9)) + ",");
+			json.println("  \"bytes_read\": " + bytes + ",");
+			json.println("  \"mb_per_s\": " + format(bytes / 1e6 / Math.max(seconds, 1e-9)) + ",");
+			json.println("  \"heap_high_water_mb\": " + megabytes(heapHighWater) + ",");
+			json.println("  \"heap_max_mb\": " + megabytes(Runtime.getRuntime().maxMemory()) + ",");
+			json.println("  \"file_stage_s\": " + stageObject(stageNanos) + ",");
+			json.println("  \"run_stage_s\": " + stageObject(runNanos));
+			json.println("}");
+		}
+	}
+
+	private static String stageObject(long[] nanos) {
+		StringBuilder object = new StringBuilder("{");
+		for (Stage stage : Stage.values()) {
+			if (object.length() > 1)
+				object.append(", ");
+			object.append('"').append(stage.label()).append("\": ").append(format(nanos[stage.ordinal()] / 1e9));
+		}
+		return object.append('}').toString();
+	}
+
+	private static String csvField(String text) {
+		if (text.indexOf(',') < 0 && text.indexOf('"') < 0)
+			return text;
+		return '"' + text.replace("\"", "\"\"") + '"';
+	}
+
+	private static String millis(long nanos) {
+		return format(nanos / 1e6);
+	}
+
+	private static String megabytes(long bytes) {
+		return format(bytes / 1e6);
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	/** Stage durations and other numbers of one file. */
+	public static class FileRecord {
+		private final File file;
+		private final boolean enabled;
+		private final long beginNanos = System.nanoTime();
+		private final long[] nanos = new long[Stage.values().length];
+		private long processingNanos;
+		private long bytesRead;
+		private long heapHighWater;
+
+		private FileRecord(File file, boolean enabled) {
+			this.file = file;
+			this.enabled = enabled;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		/** Start time for {@link #stop}. */
+		public long start() {
+			return enabled ? System.nanoTime() : 0;
+		}
+
+		/** Adds time since the start to the stage and samples used heap. */
+		public void stop(Stage stage, long start) {
+			if (!enabled)
+				return;
+			long now = System.nanoTime();
+			Runtime runtime = Runtime.getRuntime();
+			synchronized (this) {
+				nanos[stage.ordinal()] += now - start;
+				heapHighWater = Math.max(heapHighWater, runtime.totalMemory() - runtime.freeMemory());
+			}
+		}
+
+		public synchronized void addBytesRead(long bytes) {
+			if (enabled)
+				bytesRead += bytes;
+		}
+
+		public synchronized long getStageNanos(Stage stage) {
+			return nanos[stage.ordinal()];
+		}
+
+		/** Processing time of the file plus stages done for it afterwards, like writing its results. */
+		public synchronized long getTotalNanos() {
+			return processingNanos + nanos[Stage.WRITE.ordinal()];
+		}
+	}
+}
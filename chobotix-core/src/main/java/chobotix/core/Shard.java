@@ -0,0 +1,142 @@
+package chobotix.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * One of N parts of a dataset, analyzed by its own process, on this host or on another one sharing the file system.
+ * <p>
+ * A file belongs to the shard given by a checksum of its path relative to the analyzed folder, so every process
+ * picks its files on its own, whatever order its directory listing has, and every file falls into exactly one shard.
+ * Shards save their results with {@link ShardResults}, a merge then puts the tables together in the usual order.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class Shard {
+	private final int index;
+	private final int count;
+
+	/** @param index zero based index of the shard, lower than count */
+	public Shard(int index, int count) {
+		if (count < 1 || index < 0 || index >= count)
+			throw new IllegalArgumentException("Shard " + (index + 1) + " of " + count + " does not exist");
+		this.index = index;
+		this.count = count;
+	}
+
+	/** Parses {@code i/N}, shards are numbered from 1 to N. */
+	public static Shard parse(String value) {
+		int slash = value.indexOf('/');
+		try {
+			if (slash > 0)
+				return new Shard(Integer.parseInt(value.substring(0, slash).trim()) - 1, Integer.parseInt(value.substring(slash + 1).trim()));
+		} catch (NumberFormatException e) {
+			//reported below
+		}
+		throw new IllegalArgumentException("Shard has to be given as i/N, e.g. 2/4, not " + value);
+	}
+
+	/** Zero based index of the shard. */
+	public int getIndex() {
+		return index;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/** Suffix of the files of the shard, e.g. {@code .shard-2-of-4}. */
+	public String getSuffix() {
+		return ".shard-" + (index + 1) + "-of-" + count;
+	}
+
+	/** Whether the file of the analyzed folder belongs to this shard. */
+	public boolean owns(File root, File file) {
+		return indexOf(relativePath(root, file), count) == index;
+	}
+
+	/** Files of the list belonging to this shard, in the order of the list. */
+	public List<File> select(File root, List<File> files) {
+		List<File> selected = new ArrayList<>();
+		for (File file : files)
+			if (owns(root, file))
+				selected.add(file);
+		return selected;
+	}
+
+	/** Zero based shard of the relative path among count shards. */
+	public static int indexOf(String relativePath, int count) {
+		CRC32 crc = new CRC32();
+		crc.update(relativePath.getBytes(StandardCharsets.UTF_8));
+		return (int) (crc.getValue() % count);
+	}
+
+	/** Path of the file relative to the root with / separators, the same on every host. */
+	public static String relativePath(File root, File file) {
+		String path = file.getAbsolutePath();
+		String rootPath = root.getAbsolutePath() + File.separator;
+		if (path.startsWith(rootPath))
+			path = path.substring(rootPath.length());
+		return path.replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * Runs count shards as processes of this host and waits for all of them. Each process runs the main class
+	 * with the JVM options and the command line of this one, without {@code --shards} and with {@code --shard i/N}, and logs into
+	 * the base path plus the shard suffix and {@code .log}. Results of earlier shards are deleted first.
+	 * @param workers  {@code --workers} of each process, 0 keeps the command line as it is
+	 * @param basePath base path of the shard results, see {@link ShardResults#file}
+	 * @return shards that failed, empty when all succeeded
+	 */
+	public static List<Shard> runProcesses(Class<?> mainClass, String[] args, int count, int workers, String basePath) throws IOException {
+		ShardResults.deleteAll(basePath);
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+		List<Process> processes = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			Shard shard = new Shard(i, count);
+			List<String> command = new ArrayList<>();
+			command.add(java);
+			command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+			command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), mainClass.getName()));
+			command.addAll(CliOptions.without(args, "shards"));
+			if (workers > 0)
+				command.addAll(Arrays.asList("--workers", String.valueOf(workers)));
+			command.addAll(Arrays.asList("--shard", shard.toString()));
+			File log = shard.logFile(basePath);
+			System.out.println("Starting shard " + shard + ", log " + log.getPath());
+			processes.add(new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start());
+		}
+		List<Shard> failed = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			Shard shard = new Shard(i, count);
+			try {
+				int exitCode = processes.get(i).waitFor();
+				if (exitCode != 0) {
+					System.out.println("Shard " + shard + " failed with exit code " + exitCode + ", see " + shard.logFile(basePath).getPath());
+					failed.add(shard);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				for (Process process : processes)
+					process.destroy();
+				throw new IOException("Interrupted while waiting for shard " + shard, e);
+			}
+		}
+		return failed;
+	}
+
+	private File logFile(String basePath) {
+		return new File(basePath + getSuffix() + ".log");
+	}
+
+	@Override
+	public String toString() {
+		return (index + 1) + "/" + count;
+	}
+}
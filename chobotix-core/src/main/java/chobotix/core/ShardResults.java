@@ -0,0 +1,167 @@
+package chobotix.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Results of the files of one {@link Shard}, saved by the process analyzing the shard, and their merge.
+ * <p>
+ * The shard file is tab separated text: a header line {@code #shard, i/N, parameters}, a line
+ * {@code path, encoded result} per file (the result is empty for skipped files), written and flushed as soon as
+ * the file is analyzed, and {@code #complete} once all the files of the shard are done.
+ * Results are encoded with the codecs of the {@link ResultCache}, so they are read back exactly.
+ * </p>
+ * <p>
+ * A merge needs a complete set: all N shards, each complete and run with the same parameters, so the merged tables
+ * are those of a single run. A crashed shard is simply run again.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class ShardResults<R> implements Closeable {
+	private static final String HEADER = "#shard";
+	private static final String COMPLETE = "#complete";
+	private static final String EXTENSION = ".tsv";
+
+	private final File root;
+	private final ResultCache.Codec<R> codec;
+	private final Writer out;
+
+	/**
+	 * Starts the results of the shard, replacing results of an earlier run of the shard.
+	 * @param root       analyzed folder, paths are relative to it
+	 * @param parameters description of all analysis parameters that influence results
+	 */
+	public ShardResults(File shardFile, File root, Shard shard, String parameters, ResultCache.Codec<R> codec) throws IOException {
+		this.root = root;
+		this.codec = codec;
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(shardFile), StandardCharsets.UTF_8));
+		out.write(HEADER + "\t" + shard + "\t" + clean(parameters) + "\n");
+		out.flush();
+	}
+
+	/** File of the shard's results, the base path plus the shard suffix, e.g. {@code Results_exp1.shard-2-of-4.tsv}. */
+	public static File file(String basePath, Shard shard) {
+		return new File(basePath + shard.getSuffix() + EXTENSION);
+	}
+
+	/** Deletes results of all the shards saved with the base path, e.g. of an earlier run with another shard count. */
+	public static void deleteAll(String basePath) {
+		for (File file : shardFiles(new File(basePath)))
+			file.delete();
+	}
+
+	/** Saves the result of the file right away, null for a skipped file. */
+	public synchronized void add(File file, R result) throws IOException {
+		out.write(Shard.relativePath(root, file) + "\t" + (result == null ? "" : codec.encode(result)) + "\n");
+		out.flush();
+	}
+
+	/** Marks the shard as done, after the results of all its files were added. */
+	public synchronized void complete() throws IOException {
+		out.write(COMPLETE + "\n");
+		out.flush();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+
+	/**
+	 * Results of all the shards saved with the base path, keyed by the relative paths of the files.
+	 * Skipped files are present with a null result.
+	 * @throws IOException when there are no shards, some are missing or incomplete or were run with other parameters
+	 */
+	public static <R> Map<String, R> merge(String basePath, String parameters, ResultCache.Codec<R> codec) throws IOException {
+		File base = new File(basePath);
+		File[] files = shardFiles(base);
+		if (files.length == 0)
+			throw new IOException("No shard results " + base.getName() + ".shard-*" + EXTENSION + " found");
+		Set<Integer> merged = new HashSet<>();
+		Set<Integer> failed = new HashSet<>();
+		List<String> problems = new ArrayList<>();
+		Map<String, R> results = new HashMap<>();
+		int count = -1;
+		for (File file : files) {
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+				String[] header = String.valueOf(in.readLine()).split("\t", 3);
+				if (header.length != 3 || !header[0].equals(HEADER)) {
+					problems.add(file.getName() + " is not a shard result file");
+					continue;
+				}
+				Shard shard = Shard.parse(header[1]);
+				if (count < 0)
+					count = shard.getCount();
+				if (shard.getCount() != count) {
+					problems.add(file.getName() + " is shard " + shard + ", other shards are of " + count);
+					continue;
+				}
+				if (!header[2].equals(clean(parameters))) {
+					failed.add(shard.getIndex());
+					problems.add("Shard " + shard + " was run with other parameters: " + header[2]);
+					continue;
+				}
+				boolean complete = false;
+				Map<String, String> encoded = new HashMap<>();
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.equals(COMPLETE)) {
+						complete = true;
+						break;
+					}
+					String[] parts = line.split("\t", -1);
+					if (parts.length == 2)
+						encoded.put(parts[0], parts[1]);
+				}
+				//results are decoded only once the shard is known to be complete, a crash may have cut off its last line
+				if (!complete) {
+					failed.add(shard.getIndex());
+					problems.add("Shard " + shard + " did not finish (" + encoded.size() + " files done), run it again");
+					continue;
+				}
+				Map<String, R> shardResults = new HashMap<>();
+				try {
+					for (Map.Entry<String, String> entry : encoded.entrySet())
+						shardResults.put(entry.getKey(), entry.getValue().isEmpty() ? null : codec.decode(entry.getValue()));
+				} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+					failed.add(shard.getIndex());
+					problems.add("Shard " + shard + " has damaged results (" + e.getMessage() + "), run it again");
+					continue;
+				}
+				merged.add(shard.getIndex());
+				results.putAll(shardResults);
+			}
+		}
+		for (int i = 0; i < count; i++)
+			if (!merged.contains(i) && !failed.contains(i))
+				problems.add("Shard " + (i + 1) + "/" + count + " is missing");
+		if (!problems.isEmpty())
+			throw new IOException("Cannot merge shards of " + base.getName() + ":\n" + String.join("\n", problems));
+		return results;
+	}
+
+	private static File[] shardFiles(File base) {
+		String prefix = base.getName() + ".shard-";
+		File[] files = base.getAbsoluteFile().getParentFile().listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(EXTENSION));
+		return files != null ? files : new File[0];
+	}
+
+	private static String clean(String parameters) {
+		return parameters.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+}
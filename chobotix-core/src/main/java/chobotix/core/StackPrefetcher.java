@@ -0,0 +1,154 @@
+package chobotix.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Opens the next few files of a list in the background while the user works on the current one.
+ * <p>
+ * {@link #take(File)} returns a {@link PlaneReaderStack} with the displayed plane already decoded,
+ * waiting only if the background work is not done yet, and schedules the files that follow it in the list.
+ * Files not in the list are opened on the spot. Stacks that were prefetched but never taken are closed by {@link #close()},
+ * which waits for the files being opened and cancels the others.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class StackPrefetcher implements Closeable {
+	private final List<File> files;
+	private final int ahead;
+	private final int displayedIndex;
+	private final PlaneCache planeCache;
+	private final ExecutorService pool;
+	private final Map<File, Prefetch> scheduled = new HashMap<>();
+	private final Set<File> taken = new HashSet<>();
+	/** Set by {@link #close()}, guarded by {@link #scheduled} like the started flags of the prefetches. */
+	private boolean closed;
+
+	/** Opening of a file in the background. */
+	private class Prefetch {
+		final File file;
+		Future<PlaneReaderStack> future;
+		boolean started;
+
+		Prefetch(File file) {
+			this.file = file;
+		}
+
+		PlaneReaderStack open() {
+			synchronized (scheduled) {
+				if (closed)
+					return null;
+				started = true;
+			}
+			try {
+				return PlaneReaderStack.open(file, displayedIndex, planeCache);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * @param files          files in the order they will be taken
+	 * @param ahead          how many files after the taken one are prepared
+	 * @param displayedIndex one based stack index of the plane that is displayed first
+	 */
+	public StackPrefetcher(List<File> files, int ahead, int displayedIndex) {
+		this(files, ahead, displayedIndex, null);
+	}
+
+	/** Prefetcher reading the files through the cache, unless it is null. */
+	public StackPrefetcher(List<File> files, int ahead, int displayedIndex, PlaneCache planeCache) {
+		this.files = files;
+		this.ahead = ahead;
+		this.displayedIndex = displayedIndex;
+		this.planeCache = planeCache;
+		pool = Executors.newFixedThreadPool(Math.max(1, Math.min(ahead, 2)), r -> {
+			Thread thread = new Thread(r, "chobotix-prefetch");
+			thread.setDaemon(true);
+			return thread;
+		});
+		schedule(0);
+	}
+
+	/** Stack of the file, prefetched if possible. The caller closes it. */
+	public PlaneReaderStack take(File file) throws IOException {
+		Prefetch prefetch;
+		synchronized (scheduled) {
+			prefetch = scheduled.remove(file);
+			taken.add(file);
+		}
+		int index = files.indexOf(file);
+		if (index >= 0)
+			schedule(index + 1);
+		if (prefetch == null)
+			return PlaneReaderStack.open(file, displayedIndex, planeCache);
+		try {
+			PlaneReaderStack stack = prefetch.future.get();
+			//null only when taken after close
+			return stack != null ? stack : PlaneReaderStack.open(file, displayedIndex, planeCache);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while opening " + file.getPath(), e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof UncheckedIOException)
+				throw ((UncheckedIOException) e.getCause()).getCause();
+			throw new IOException("Could not open " + file.getPath(), e.getCause());
+		}
+	}
+
+	@Override
+	public void close() {
+		List<Future<PlaneReaderStack>> started = new ArrayList<>();
+		synchronized (scheduled) {
+			closed = true;
+			for (Prefetch prefetch : scheduled.values()) {
+				//a cancelled running task would still finish opening its stack
+				if (prefetch.started)
+					started.add(prefetch.future);
+				else
+					prefetch.future.cancel(false);
+			}
+			scheduled.clear();
+		}
+		pool.shutdown();
+		for (Future<PlaneReaderStack> future : started) {
+			try {
+				PlaneReaderStack stack = future.get();
+				if (stack != null)
+					stack.close();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException | IOException e) {
+				//nothing to release
+			}
+		}
+	}
+
+	private void schedule(int from) {
+		synchronized (scheduled) {
+			if (closed)
+				return;
+			for (int i = from; i < Math.min(files.size(), from + ahead); i++) {
+				File file = files.get(i);
+				if (!scheduled.containsKey(file) && !taken.contains(file)) {
+					Prefetch prefetch = new Prefetch(file);
+					prefetch.future = pool.submit(prefetch::open);
+					scheduled.put(file, prefetch);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package chobotix.core;
+
+import ij.measure.ResultsTable;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a results table row by row while it is being computed, instead of keeping it in memory
+ * and saving it with {@code ResultsTable.saveAs} at the end of a run.
+ * <p>
+ * Rows are formatted by ImageJ's own {@code ResultsTable}, so the file looks the same as a saved table
+ * (tab separated, header line, no row numbers). The writer buffers output and flushes it at least every
+ * {@link #FLUSH_INTERVAL_MS} milliseconds, so a crash loses only the last few rows.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class StreamingResultsWriter implements Closeable {
+	public static final long FLUSH_INTERVAL_MS = 2000;
+
+	private final File file;
+	private final Writer out;
+	private String headings;
+	private long lastFlush = System.currentTimeMillis();
+	private int rowCount;
+
+	public StreamingResultsWriter(File file) throws IOException {
+		this.file = file;
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Appends all rows of the table and resets it, so the same small table can be reused for the next rows.
+	 * All appended tables have to have the same columns.
+	 */
+	public synchronized void append(ResultsTable rows) throws IOException {
+		if (rows.size() == 0)
+			return;
+		rows.showRowNumbers(false);
+		String rowsHeadings = rows.getColumnHeadings();
+		if (headings == null) {
+			headings = rowsHeadings;
+			out.write(headings);
+			out.write('\n');
+		} else if (!headings.equals(rowsHeadings)) {
+			throw new IllegalArgumentException("Columns " + rowsHeadings + " do not match already written columns " + headings);
+		}
+		for (int row = 0; row < rows.size(); row++) {
+			out.write(rows.getRowAsString(row));
+			out.write('\n');
+			rowCount++;
+		}
+		rows.reset();
+		if (System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL_MS)
+			flush();
+	}
+
+	public synchronized void flush() throws IOException {
+		out.flush();
+		lastFlush = System.currentTimeMillis();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+}
@@ -0,0 +1,97 @@
+package chobotix.core;
+
+import ij.measure.ResultsTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory wide table with primitive columns, a faster replacement of a {@code ResultsTable} filled column by column
+ * with {@code getFreeColumn}/{@code setValue}.
+ * <p>
+ * Columns are kept as the {@code double[]} arrays they were added with (not copied), looked up by name in
+ * constant time and padded with 0 only when the table is saved, so adding a column costs the same
+ * no matter how big the table already is. Names are unique, see {@link WideTable}.
+ * Saved tables have the same layout as those of {@link WideResultsWriter}.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class WideColumnTable implements WideTable {
+	private final List<String> names = new ArrayList<>();
+	private final List<String> labels = new ArrayList<>();
+	private final List<double[]> columns = new ArrayList<>();
+	private final Map<String, Integer> indexes = new HashMap<>();
+
+	@Override
+	public synchronized void addColumn(String name, String label, double[] values) {
+		if (indexes.containsKey(name))
+			throw new IllegalArgumentException("Column " + name + " is already in the table");
+		indexes.put(name, names.size());
+		names.add(name);
+		labels.add(label);
+		columns.add(values);
+	}
+
+	public synchronized int getColumnCount() {
+		return names.size();
+	}
+
+	/** Rows of values, i.e. length of the longest column. */
+	public synchronized int getRowCount() {
+		int rows = 0;
+		for (double[] column : columns)
+			rows = Math.max(rows, column.length);
+		return rows;
+	}
+
+	/** Index of the column, -1 when there is none. */
+	public synchronized int getColumnIndex(String name) {
+		Integer index = indexes.get(name);
+		return index != null ? index : -1;
+	}
+
+	public synchronized String getName(int column) {
+		return names.get(column);
+	}
+
+	public synchronized String getLabel(int column) {
+		return labels.get(column);
+	}
+
+	public synchronized double[] getValues(int column) {
+		return columns.get(column);
+	}
+
+	/** Saves the table as tab separated text. */
+	public synchronized void save(File output) throws IOException {
+		int[] lengths = new int[columns.size()];
+		for (int i = 0; i < lengths.length; i++)
+			lengths[i] = columns.get(i).length;
+		WideResultsWriter.writeTable(output, names, labels, lengths, (column, row) -> columns.get(column)[row]);
+	}
+
+	/**
+	 * Copies the columns into a {@code ResultsTable} in the usual layout (row 1 labels, values from row 2).
+	 * All rows are added at once.
+	 * @throws IllegalArgumentException when the {@code ResultsTable} already has a column of one of the names
+	 */
+	public synchronized void fill(ResultsTable rt) {
+		for (String name : names)
+			if (rt.getColumnIndex(name) != ResultsTable.COLUMN_NOT_FOUND)
+				throw new IllegalArgumentException("Column " + name + " is already in the table");
+		int rows = getRowCount() + 2;
+		while (rt.getCounter() < rows)
+			rt.addRow();
+		for (int i = 0; i < names.size(); i++) {
+			int index = rt.getFreeColumn(names.get(i));
+			rt.setValue(index, 1, labels.get(i));
+			double[] values = columns.get(i);
+			for (int row = 0; row < values.length; row++)
+				rt.setValue(index, row + 2, values[row]);
+		}
+	}
+}
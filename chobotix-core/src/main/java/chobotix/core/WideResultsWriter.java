@@ -0,0 +1,258 @@
+package chobotix.core;
+
+import ij.IJ;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Streams a "wide" table, where every analyzed object adds a column, e.g. one column per ROI and file with a row
+ * per slice. Such a table cannot be appended to a text file row by row, so columns are first appended to a binary
+ * spool file next to the output ({@code <output>.part}) and transposed into the final table when the writer is closed.
+ * <p>
+ * The layout matches a {@code ResultsTable} filled by {@code getFreeColumn}/{@code setValue} and saved as .xls:
+ * header with column names, an empty first row, a row with the column labels and then the values,
+ * cells below a shorter column are 0. Memory use does not depend on the number of columns' values,
+ * the spool is memory-mapped when transposing.
+ * </p>
+ * <p>
+ * The spool is flushed at least every {@link StreamingResultsWriter#FLUSH_INTERVAL_MS} milliseconds.
+ * After a crash the table can be rebuilt from what was spooled with {@link #recover(File, ColumnarTableWriter.Compression)}.
+ * </p>
+ * <p>
+ * Optionally the same columns are saved as a binary {@link ColumnarTable} next to the output, with exact values,
+ * for analyses that load the tables repeatedly.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class WideResultsWriter implements WideTable, Closeable {
+	/** Decimal places of non-integer values, as set by "Set Measurements... decimal=5". */
+	public static final int PRECISION = 5;
+
+	private final File output;
+	private final File spool;
+	private final DataOutputStream out;
+	private final ColumnarTableWriter.Compression columnar;
+	private final Set<String> names = new HashSet<>();
+	private long lastFlush = System.currentTimeMillis();
+
+	public WideResultsWriter(File output) throws IOException {
+		this(output, null);
+	}
+
+	/** Writer saving also a columnar table with the compression next to the output, unless it is null. */
+	public WideResultsWriter(File output, ColumnarTableWriter.Compression columnar) throws IOException {
+		this.output = output;
+		this.columnar = columnar;
+		this.spool = spoolFile(output);
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spool), 1 << 16));
+	}
+
+	public File getFile() {
+		return output;
+	}
+
+	public synchronized int getColumnCount() {
+		return names.size();
+	}
+
+	/** Appends a column, {@code values[i]} goes to table row {@code i+2}. */
+	@Override
+	public synchronized void addColumn(String name, String label, double[] values) throws IOException {
+		if (!names.add(name))
+			throw new IllegalArgumentException("Column " + name + " is already in the table");
+		out.writeUTF(name);
+		out.writeUTF(label);
+		out.writeInt(values.length);
+		for (double value : values)
+			out.writeDouble(value);
+		if (System.currentTimeMillis() - lastFlush >= StreamingResultsWriter.FLUSH_INTERVAL_MS) {
+			out.flush();
+			lastFlush = System.currentTimeMillis();
+		}
+	}
+
+	/** Writes the table of all the columns added so far and keeps the writer open, e.g. while watching for new files. */
+	public synchronized void update() throws IOException {
+		out.flush();
+		lastFlush = System.currentTimeMillis();
+		transpose(spool, output, columnar);
+	}
+
+	/** Writes the table and removes the spool. */
+	@Override
+	public synchronized void close() throws IOException {
+		out.close();
+		transpose(spool, output, columnar);
+		if (!spool.delete())
+			spool.deleteOnExit();
+	}
+
+	/** Rebuilds the output from the spool left by a crashed run, returns false when there is none. No columnar table is saved. */
+	public static boolean recover(File output) throws IOException {
+		return recover(output, null);
+	}
+
+	/** Rebuilds the output, and the columnar table unless the compression is null, from the spool left by a crashed run. */
+	public static boolean recover(File output, ColumnarTableWriter.Compression columnar) throws IOException {
+		File spool = spoolFile(output);
+		if (!spool.exists())
+			return false;
+		transpose(spool, output, columnar);
+		return true;
+	}
+
+	/** Formats a value the way an automatically formatted {@code ResultsTable} column does. */
+	public static String format(double value) {
+		if (value == Math.rint(value) && Math.abs(value) < 1e9)
+			return IJ.d2s(value, 0);
+		return IJ.d2s(value, PRECISION);
+	}
+
+	private static File spoolFile(File output) {
+		return new File(output.getPath() + ".part");
+	}
+
+	private static void transpose(File spool, File output, ColumnarTableWriter.Compression columnar) throws IOException {
+		List<String> names = new ArrayList<>();
+		List<String> labels = new ArrayList<>();
+		List<long[]> positions = new ArrayList<>();
+		long spoolLength = spool.length();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spool), 1 << 16))) {
+			long position = 0;
+			while (true) {
+				String name, label;
+				int count;
+				try {
+					name = in.readUTF();
+					label = in.readUTF();
+					count = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				position += 2 + utfLength(name) + 2 + utfLength(label) + 4;
+				//a column cut off by a crash is dropped
+				if (position + 8L * count > spoolLength)
+					break;
+				names.add(name);
+				labels.add(label);
+				positions.add(new long[]{position, count});
+				position += 8L * count;
+				skipFully(in, 8L * count);
+			}
+		}
+		try (RandomAccessFile file = new RandomAccessFile(spool, "r")) {
+			MappedDoubles values = new MappedDoubles(file.getChannel());
+			int[] lengths = new int[positions.size()];
+			for (int i = 0; i < lengths.length; i++)
+				lengths[i] = (int) positions.get(i)[1];
+			writeTable(output, names, labels, lengths, (column, row) -> values.get(positions.get(column)[0] + 8L * row));
+			if (columnar == null)
+				return;
+			try (ColumnarTableWriter writer = new ColumnarTableWriter(ColumnarTableWriter.fileOf(output), columnar)) {
+				for (int i = 0; i < lengths.length; i++) {
+					double[] column = new double[lengths[i]];
+					for (int row = 0; row < column.length; row++)
+						column[row] = values.get(positions.get(i)[0] + 8L * row);
+					writer.addColumn(names.get(i), labels.get(i), column);
+				}
+			}
+		}
+	}
+
+	/** Values of a wide table, {@code row} is always below the length of the column. */
+	interface ColumnValues {
+		double get(int column, int row);
+	}
+
+	/** Writes the wide table layout, shared with {@link WideColumnTable}. */
+	static void writeTable(File output, List<String> names, List<String> labels, int[] lengths, ColumnValues values) throws IOException {
+		int rows = 0;
+		for (int length : lengths)
+			rows = Math.max(rows, length);
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8), 1 << 16)) {
+			StringBuilder line = new StringBuilder();
+			line.append(String.join("\t", names));
+			writeLine(out, line);
+			for (int i = 0; i < names.size(); i++)
+				line.append(i > 0 ? "\t" : "").append('0');
+			writeLine(out, line);
+			line.append(String.join("\t", labels));
+			writeLine(out, line);
+			for (int row = 0; row < rows; row++) {
+				for (int i = 0; i < names.size(); i++) {
+					if (i > 0) line.append('\t');
+					line.append(row < lengths[i] ? format(values.get(i, row)) : "0");
+				}
+				writeLine(out, line);
+			}
+		}
+	}
+
+	private static void writeLine(Writer out, StringBuilder line) throws IOException {
+		line.append('\n');
+		out.append(line);
+		line.setLength(0);
+	}
+
+	private static int utfLength(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) length++;
+			else if (c > 0x07FF) length += 3;
+			else length += 2;
+		}
+		return length;
+	}
+
+	private static void skipFully(DataInputStream in, long bytes) throws IOException {
+		while (bytes > 0) {
+			long skipped = in.skip(bytes);
+			if (skipped <= 0)
+				throw new EOFException();
+			bytes -= skipped;
+		}
+	}
+
+	/** Big-endian doubles of a file mapped in 1 GiB windows, so files over 2 GiB work too. */
+	private static class MappedDoubles {
+		private static final int WINDOW_BITS = 30;
+		private final MappedByteBuffer[] windows;
+
+		MappedDoubles(FileChannel channel) throws IOException {
+			long size = channel.size();
+			int count = (int) ((size >> WINDOW_BITS) + 1);
+			windows = new MappedByteBuffer[count];
+			for (int i = 0; i < count; i++) {
+				long start = (long) i << WINDOW_BITS;
+				//windows overlap by 8 bytes, so no double is split between two windows
+				long length = Math.min(size - start, (1L << WINDOW_BITS) + 8);
+				windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.max(0, length));
+			}
+		}
+
+		double get(long position) {
+			return windows[(int) (position >> WINDOW_BITS)].getDouble((int) (position & ((1L << WINDOW_BITS) - 1)));
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package chobotix.core;
+
+import java.io.IOException;
+
+/**
+ * A "wide" results table, where every analyzed object adds a column of values, e.g. one column per ROI and file
+ * with a row per slice. Saved tables have the layout of a {@code ResultsTable} filled by
+ * {@code getFreeColumn}/{@code setValue}, see {@link WideResultsWriter}.
+ * <p>
+ * Column names are unique: a column with a name already in the table is rejected, the way {@code getFreeColumn}
+ * returned {@code COLUMN_IN_USE} for it, rather than hiding the values of another file with the same name.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public interface WideTable {
+	/**
+	 * Adds a column, {@code values[i]} goes to table row {@code i+2}, row 1 holds the label.
+	 * @throws IllegalArgumentException when the table already has a column of the name
+	 */
+	void addColumn(String name, String label, double[] values) throws IOException;
+}
@@ -0,0 +1,207 @@
+package chobotix.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tables written by {@link ColumnarTableWriter} are read back exactly by {@link ColumnarTable}, damaged ones are rejected.
+ * @author Jaroslav Hanuš
+ */
+public class ColumnarTableTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final String[] NAMES = {"empty", "one", "special", "random", "repeated", "Spheroid 1 ∆"};
+
+	/** Columns of different lengths, with values a text table would not keep exactly. */
+	private static double[][] columns() {
+		Random random = new Random(7);
+		double[] randomValues = new double[1000];
+		for (int i = 0; i < randomValues.length; i++)
+			randomValues[i] = random.nextGaussian() * 1e3;
+		double[] repeated = new double[5000];
+		for (int i = 0; i < repeated.length; i++)
+			repeated[i] = i % 4;
+		return new double[][]{
+				{},
+				{Math.PI},
+				{Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, -0.0, Double.MIN_VALUE, Double.MAX_VALUE, 1e-300},
+				randomValues,
+				repeated,
+				{1, 2, 3}};
+	}
+
+	private File write(String name, ColumnarTableWriter.Compression compression) throws IOException {
+		File file = new File(folder.getRoot(), name + ColumnarTable.EXTENSION);
+		double[][] columns = columns();
+		try (ColumnarTableWriter writer = new ColumnarTableWriter(file, compression)) {
+			for (int i = 0; i < columns.length; i++)
+				writer.addColumn(NAMES[i], "label " + i, columns[i]);
+			assertFalse("only moved into place when closed", file.exists());
+		}
+		return file;
+	}
+
+	@Test
+	public void rawColumnsAreReadBackExactly() throws IOException {
+		assertReadBack(write("raw", ColumnarTableWriter.Compression.RAW));
+	}
+
+	@Test
+	public void deflatedColumnsAreReadBackExactly() throws IOException {
+		assertReadBack(write("deflated", ColumnarTableWriter.Compression.DEFLATE));
+	}
+
+	private void assertReadBack(File file) throws IOException {
+		double[][] columns = columns();
+		try (ColumnarTable table = new ColumnarTable(file)) {
+			assertEquals(columns.length, table.getColumnCount());
+			//read in reverse, columns are independent of each other
+			for (int i = columns.length - 1; i >= 0; i--) {
+				assertEquals(NAMES[i], table.getName(i));
+				assertEquals("label " + i, table.getLabel(i));
+				assertEquals(columns[i].length, table.getLength(i));
+				assertBitsEqual(columns[i], table.getValues(i));
+				assertBitsEqual(columns[i], table.getValues(NAMES[i]));
+			}
+			assertEquals(-1, table.getColumnIndex("missing"));
+			assertNull(table.getValues("missing"));
+		}
+		File[] left = folder.getRoot().listFiles((dir, name) -> name.endsWith(".tmp"));
+		assertEquals(0, left.length);
+	}
+
+	@Test
+	public void deflateMakesRepeatedValuesSmaller() throws IOException {
+		File raw = write("raw", ColumnarTableWriter.Compression.RAW);
+		File deflated = write("deflated", ColumnarTableWriter.Compression.DEFLATE);
+		assertTrue(deflated.length() + " < " + raw.length(), deflated.length() < raw.length() - 30000);
+	}
+
+	@Test
+	public void partialFilesAreRejected() throws IOException {
+		byte[] bytes = Files.readAllBytes(write("partial", ColumnarTableWriter.Compression.DEFLATE).toPath());
+		File partial = new File(folder.getRoot(), "cut" + ColumnarTable.EXTENSION);
+		for (int length = 0; length < bytes.length; length += 97) {
+			Files.write(partial.toPath(), Arrays.copyOf(bytes, length));
+			assertRejected(partial);
+		}
+		Files.write(partial.toPath(), Arrays.copyOf(bytes, bytes.length - 1));
+		assertRejected(partial);
+	}
+
+	@Test
+	public void otherFilesAreRejected() throws IOException {
+		File text = new File(folder.getRoot(), "text" + ColumnarTable.EXTENSION);
+		Files.write(text.toPath(), "Spheroid 1\tSpheroid 2\n1\t2\n3\t4\n".getBytes(StandardCharsets.UTF_8));
+		assertRejected(text);
+		File file = write("version", ColumnarTableWriter.Compression.RAW);
+		try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+			out.seek(4);
+			out.writeInt(ColumnarTableWriter.VERSION + 1);
+		}
+		assertRejected(file);
+	}
+
+	@Test
+	public void damagedDeflatedColumnIsRejected() throws IOException {
+		File file = write("damaged", ColumnarTableWriter.Compression.DEFLATE);
+		int repeated = Arrays.asList(NAMES).indexOf("repeated");
+		ColumnarTable.Column column;
+		try (ColumnarTable table = new ColumnarTable(file)) {
+			column = table.getColumn(repeated);
+		}
+		assertEquals(ColumnarTableWriter.DEFLATED, column.compression);
+		try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+			out.seek(column.position);
+			out.write(new byte[(int) column.storedBytes]);
+		}
+		try (ColumnarTable table = new ColumnarTable(file)) {
+			assertBitsEqual(columns()[0], table.getValues(0));
+			table.getValues(repeated);
+			fail("damaged column read");
+		} catch (IOException e) {
+			//expected
+		}
+	}
+
+	@Test
+	public void convertsToCsvWithExactValues() throws IOException {
+		File file = write("csv", ColumnarTableWriter.Compression.DEFLATE);
+		File csv = new File(folder.getRoot(), "csv.csv");
+		assertEquals(0, ColumnarTable.convert("--input", file.getPath(), "--output", csv.getPath()));
+		List<String> lines = Files.readAllLines(csv.toPath(), StandardCharsets.UTF_8);
+		assertEquals(String.join(",", NAMES), lines.get(0));
+		double[][] columns = columns();
+		assertEquals(1 + columns[4].length, lines.size());
+		String[] first = lines.get(1).split(",", -1);
+		assertEquals("", first[0]);
+		assertEquals(Math.PI, Double.parseDouble(first[1]), 0);
+		assertEquals("NaN", first[2]);
+		assertEquals(columns[3][0], Double.parseDouble(first[3]), 0);
+		assertEquals("-Infinity", lines.get(3).split(",", -1)[2]);
+	}
+
+	@Test
+	public void wideResultsWriterSavesColumnarTableAlsoWhenRecovered() throws IOException {
+		File output = new File(folder.getRoot(), "SpheroidFluorescence_exp1.xls");
+		File columnar = ColumnarTableWriter.fileOf(output);
+		double[][] columns = columns();
+		WideResultsWriter writer = new WideResultsWriter(output, ColumnarTableWriter.Compression.RAW);
+		try {
+			for (int i = 0; i < columns.length; i++)
+				writer.addColumn(NAMES[i], "label " + i, columns[i]);
+			writer.update();
+			//as if the run crashed after the spool was written
+			assertTrue(output.delete() && columnar.delete());
+			assertTrue(WideResultsWriter.recover(output, ColumnarTableWriter.Compression.DEFLATE));
+			assertTrue(output.exists());
+			try (ColumnarTable table = new ColumnarTable(columnar)) {
+				assertEquals(columns.length, table.getColumnCount());
+				for (int i = 0; i < columns.length; i++)
+					assertBitsEqual(columns[i], table.getValues(i));
+			}
+		} finally {
+			writer.close();
+		}
+		//the text table converted back from the columnar one is the same as the one the writer saved
+		File text = new File(folder.getRoot(), "converted.xls");
+		try (ColumnarTable table = new ColumnarTable(columnar)) {
+			table.saveAsText(text);
+		}
+		assertArrayEquals(Files.readAllBytes(output.toPath()), Files.readAllBytes(text.toPath()));
+	}
+
+	private static void assertRejected(File file) {
+		try (ColumnarTable table = new ColumnarTable(file)) {
+			for (int i = 0; i < table.getColumnCount(); i++)
+				table.getValues(i);
+			fail(file.getName() + " of " + file.length() + " bytes read");
+		} catch (IOException e) {
+			//expected
+		}
+	}
+
+	private static void assertBitsEqual(double[] expected, double[] actual) {
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++)
+			assertEquals("value " + i, Double.doubleToRawLongBits(expected[i]), Double.doubleToRawLongBits(actual[i]));
+	}
+}
@@ -0,0 +1,72 @@
+package chobotix.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link DatasetManifest} lists only changed directories again, from the manifest file or from memory.
+ * @author Jaroslav Hanuš
+ */
+public class DatasetManifestTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** A folder with images in two subfolders, each with a ROI companion. */
+	private File dataset() throws IOException {
+		File root = folder.newFolder();
+		for (String name : new String[]{"day 1/a.oib", "day 1/a.roi", "day 2/b.oib", "day 2/b.roi", "notes.txt"}) {
+			File file = new File(root, name);
+			file.getParentFile().mkdirs();
+			assertTrue(file.createNewFile());
+		}
+		return root;
+	}
+
+	private static List<String> names(DatasetManifest manifest) {
+		List<String> names = new ArrayList<>();
+		for (DatasetManifest.Entry entry : manifest.find(name -> name.endsWith(".oib"), true, ".roi"))
+			names.add(entry.getFile().getName() + (entry.getCompanion(0) != null ? "+roi" : ""));
+		return names;
+	}
+
+	@Test
+	public void rescanListsChangedDirectoriesWithoutManifestFile() throws IOException {
+		File root = dataset();
+		DatasetManifest manifest = DatasetManifest.scan(root, null, false, 2);
+		assertEquals(3, manifest.getListedDirectories());
+		assertEquals(Arrays.asList("a.oib+roi", "b.oib+roi"), names(manifest));
+
+		DatasetManifest unchanged = manifest.rescan(2);
+		assertEquals(0, unchanged.getListedDirectories());
+		assertEquals(names(manifest), names(unchanged));
+
+		assertTrue(new File(root, "day 2/c.oib").createNewFile());
+		DatasetManifest changed = unchanged.rescan(2);
+		assertEquals(1, changed.getListedDirectories());
+		assertEquals(Arrays.asList("a.oib+roi", "b.oib+roi", "c.oib"), names(changed));
+		assertFalse("no manifest file in the scanned folder", new File(root, DatasetManifest.FILE_NAME).exists());
+	}
+
+	@Test
+	public void manifestFileIsReused() throws IOException {
+		File root = dataset();
+		File manifestFile = new File(folder.getRoot(), "dataset.manifest");
+		assertEquals(3, DatasetManifest.scan(root, manifestFile, true, 1).getListedDirectories());
+		assertTrue(manifestFile.exists());
+		DatasetManifest reused = DatasetManifest.scan(root, manifestFile, true, 1);
+		assertEquals(0, reused.getListedDirectories());
+		assertEquals(Arrays.asList("a.oib+roi", "b.oib+roi"), names(reused));
+		assertEquals(3, DatasetManifest.scan(root, manifestFile, false, 1).getListedDirectories());
+	}
+}
@@ -0,0 +1,197 @@
+package chobotix.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ResultCache} returns results only of files, side files, parameters and outputs that did not change,
+ * and its journal survives a crash and compaction.
+ * @author Jaroslav Hanuš
+ */
+public class ResultCacheTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final String PARAMETERS = "threshold 750/1000";
+
+	private static final ResultCache.Codec<double[]> CODEC = new ResultCache.Codec<double[]>() {
+		@Override
+		public String encode(double[] result) {
+			return ResultCache.encodeDoubles(result);
+		}
+
+		@Override
+		public double[] decode(String encoded) {
+			return ResultCache.decodeDoubles(encoded, 2);
+		}
+	};
+
+	/** Names of the files the task analyzed, in the order it did. */
+	private final List<String> analyzed = new ArrayList<>();
+
+	private File root() {
+		return new File(folder.getRoot(), "exp1");
+	}
+
+	private File cacheFile() {
+		return new File(folder.getRoot(), ".chobotix-cache.tsv");
+	}
+
+	/** Image files with their ROI side files, the ROI of the last image is missing. */
+	private List<File> files() throws IOException {
+		List<File> files = new ArrayList<>();
+		for (String name : new String[]{"a.oib", "day 1/b.oib", "day 1/c.oib"}) {
+			File file = new File(root(), name);
+			if (!file.exists()) {
+				file.getParentFile().mkdirs();
+				write(file, "pixels of " + name);
+				if (!name.startsWith("day 1/c"))
+					write(roiOf(file), "roi of " + name);
+			}
+			files.add(file);
+		}
+		return files;
+	}
+
+	private static File roiOf(File file) {
+		return new File(file.getPath() + ".roi");
+	}
+
+	private static File maskOf(File file) {
+		return new File(file.getPath() + ".mask.tif");
+	}
+
+	/** Analyzes the files through the cache, the analysis writes a mask of each file and returns its length. */
+	private List<String> run(String parameters) throws Exception {
+		analyzed.clear();
+		try (ResultCache<double[]> cache = new ResultCache<>(root(), cacheFile(), parameters, CODEC)) {
+			BatchRunner.FileTask<double[]> task = cache.wrap(file -> {
+				analyzed.add(file.getName());
+				write(maskOf(file), "mask");
+				return new double[]{file.length(), analyzed.size()};
+			}, file -> new File[]{roiOf(file)}, (file, result) -> maskOf(file).exists());
+			for (File file : files())
+				assertEquals(file.length(), task.process(file)[0], 0);
+			assertEquals(files().size(), cache.getHits() + cache.getMisses());
+			assertEquals(analyzed.size(), cache.getMisses());
+		}
+		return new ArrayList<>(analyzed);
+	}
+
+	@Test
+	public void unchangedFilesAreNotAnalyzedAgain() throws Exception {
+		assertEquals(Arrays.asList("a.oib", "b.oib", "c.oib"), run(PARAMETERS));
+		assertEquals(Arrays.asList(), run(PARAMETERS));
+	}
+
+	@Test
+	public void changedFileIsAnalyzedAgain() throws Exception {
+		List<File> files = files();
+		run(PARAMETERS);
+		write(files.get(0), "other pixels");
+		assertEquals(Arrays.asList("a.oib"), run(PARAMETERS));
+		//the same length, only the modification time tells
+		File b = files.get(1);
+		byte[] bytes = Files.readAllBytes(b.toPath());
+		bytes[0]++;
+		Files.write(b.toPath(), bytes);
+		assertTrue(b.setLastModified(b.lastModified() + 5000));
+		assertEquals(Arrays.asList("b.oib"), run(PARAMETERS));
+		assertEquals(Arrays.asList(), run(PARAMETERS));
+	}
+
+	@Test
+	public void changedRoiFileIsAnalyzedAgain() throws Exception {
+		List<File> files = files();
+		run(PARAMETERS);
+		//the same length and modification time, only the content differs
+		File roi = roiOf(files.get(1));
+		long modified = roi.lastModified();
+		write(roi, "ROI of day 1/b.oib");
+		assertTrue(roi.setLastModified(modified));
+		assertEquals(Arrays.asList("b.oib"), run(PARAMETERS));
+		//a ROI saved for an image without one, and a deleted ROI
+		write(roiOf(files.get(2)), "roi of c");
+		assertTrue(roiOf(files.get(0)).delete());
+		assertEquals(Arrays.asList("a.oib", "c.oib"), run(PARAMETERS));
+	}
+
+	@Test
+	public void otherParametersAnalyzeAllFilesAgain() throws Exception {
+		run(PARAMETERS);
+		assertEquals(Arrays.asList("a.oib", "b.oib", "c.oib"), run(PARAMETERS + ", all planes"));
+		assertEquals(Arrays.asList("a.oib", "b.oib", "c.oib"), run(PARAMETERS));
+	}
+
+	@Test
+	public void deletedMaskIsWrittenAgain() throws Exception {
+		List<File> files = files();
+		run(PARAMETERS);
+		assertTrue(maskOf(files.get(2)).delete());
+		assertEquals(Arrays.asList("c.oib"), run(PARAMETERS));
+		assertTrue(maskOf(files.get(2)).exists());
+	}
+
+	@Test
+	public void cutOffJournalLineIsDropped() throws Exception {
+		run(PARAMETERS);
+		long length = cacheFile().length();
+		//as if the run crashed while writing the result of the last file
+		try (RandomAccessFile journal = new RandomAccessFile(cacheFile(), "rw")) {
+			journal.setLength(length - 4);
+		}
+		assertEquals(Arrays.asList("c.oib"), run(PARAMETERS));
+		List<String> lines = Files.readAllLines(cacheFile().toPath(), StandardCharsets.UTF_8);
+		assertEquals(3, lines.size());
+		for (String line : lines)
+			assertEquals(line, 3, line.split("\t", -1).length);
+		assertEquals(Arrays.asList(), run(PARAMETERS));
+	}
+
+	@Test
+	public void damagedResultIsAnalyzedAgain() throws Exception {
+		run(PARAMETERS);
+		List<String> lines = Files.readAllLines(cacheFile().toPath(), StandardCharsets.UTF_8);
+		String first = lines.get(0);
+		lines.set(0, first.substring(0, first.lastIndexOf(',')));
+		Files.write(cacheFile().toPath(), lines, StandardCharsets.UTF_8);
+		assertEquals(Arrays.asList("a.oib"), run(PARAMETERS));
+	}
+
+	@Test
+	public void compactionKeepsLatestEntries() throws Exception {
+		List<File> files = files();
+		for (File file : files.subList(0, 2))
+			write(maskOf(file), "mask");
+		try (ResultCache<double[]> cache = new ResultCache<>(root(), cacheFile(), PARAMETERS, CODEC)) {
+			for (int i = 0; i <= 200; i++)
+				for (File file : files.subList(0, 2))
+					cache.put(file, cache.fingerprint(file, roiOf(file)), new double[]{file.length(), i});
+		}
+		assertEquals(2 * 201, Files.readAllLines(cacheFile().toPath(), StandardCharsets.UTF_8).size());
+		try (ResultCache<double[]> cache = new ResultCache<>(root(), cacheFile(), PARAMETERS, CODEC)) {
+			assertEquals(2, Files.readAllLines(cacheFile().toPath(), StandardCharsets.UTF_8).size());
+			for (File file : files.subList(0, 2))
+				assertArrayEquals(new double[]{file.length(), 200}, cache.get(file, cache.fingerprint(file, roiOf(file))), 0);
+		}
+		assertEquals(Arrays.asList("c.oib"), run(PARAMETERS));
+	}
+
+	private static void write(File file, String text) throws IOException {
+		Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+	}
+}
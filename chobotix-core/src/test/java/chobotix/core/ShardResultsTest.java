@@ -0,0 +1,189 @@
+package chobotix.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Every file falls into exactly one {@link Shard}, the {@link ShardResults} of all shards merge into the table
+ * of a single run, and incomplete or mismatched sets of shards are rejected.
+ * @author Jaroslav Hanuš
+ */
+public class ShardResultsTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final String PARAMETERS = "threshold 750/1000\tall planes";
+
+	/** Results as their raw bits, read back exactly. */
+	private static final ResultCache.Codec<double[]> CODEC = new ResultCache.Codec<double[]>() {
+		@Override
+		public String encode(double[] result) {
+			StringBuilder encoded = new StringBuilder();
+			for (double value : result)
+				encoded.append(encoded.length() > 0 ? "," : "").append(Long.toHexString(Double.doubleToRawLongBits(value)));
+			return encoded.toString();
+		}
+
+		@Override
+		public double[] decode(String encoded) {
+			String[] parts = encoded.split(",");
+			double[] result = new double[parts.length];
+			try {
+				for (int i = 0; i < parts.length; i++)
+					result[i] = Double.longBitsToDouble(Long.parseUnsignedLong(parts[i], 16));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(e);
+			}
+			return result;
+		}
+	};
+
+	private File root() {
+		return new File(folder.getRoot(), "exp1");
+	}
+
+	/** Files of nested folders in the order of a listing, with names differing in one character only. */
+	private List<File> files() {
+		List<File> files = new ArrayList<>();
+		for (String dir : new String[]{"", "day 1/", "day 2/well Ä/"})
+			for (int i = 0; i < 40; i++)
+				files.add(new File(root(), dir + "image" + i + ".oib"));
+		return files;
+	}
+
+	/** The analysis of a file, every seventh file is skipped. */
+	private static double[] analyze(File file) {
+		int hash = file.getPath().hashCode();
+		return hash % 7 == 0 ? null : new double[]{hash / 3.0, Math.sqrt(Math.abs(hash)), Double.NaN, -0.0};
+	}
+
+	private String basePath() {
+		return new File(folder.getRoot(), "Results_exp1").getPath();
+	}
+
+	@Test
+	public void everyFileFallsIntoExactlyOneShard() {
+		List<File> files = files();
+		for (int count = 1; count <= 8; count++) {
+			int[] owners = new int[files.size()];
+			List<File> selected = new ArrayList<>();
+			for (int i = 0; i < count; i++) {
+				Shard shard = new Shard(i, count);
+				List<File> own = shard.select(root(), files);
+				for (File file : own)
+					owners[files.indexOf(file)]++;
+				selected.addAll(own);
+			}
+			for (int f = 0; f < owners.length; f++)
+				assertEquals(count + " shards, " + files.get(f), 1, owners[f]);
+			assertEquals(files.size(), selected.size());
+		}
+	}
+
+	@Test
+	public void mergedTableEqualsSingleRun() throws IOException {
+		List<File> files = files();
+		List<String> single = new ArrayList<>();
+		for (File file : files)
+			addRow(single, file, analyze(file));
+		for (int count : new int[]{1, 3, 7}) {
+			ShardResults.deleteAll(basePath());
+			for (int i = 0; i < count; i++)
+				runShard(new Shard(i, count), PARAMETERS, true);
+			Map<String, double[]> results = ShardResults.merge(basePath(), PARAMETERS, CODEC);
+			assertEquals(files.size(), results.size());
+			//rows in the order of the listing, as the plugins merge them
+			List<String> merged = new ArrayList<>();
+			for (File file : files)
+				addRow(merged, file, results.get(Shard.relativePath(root(), file)));
+			assertEquals(count + " shards", single, merged);
+		}
+	}
+
+	@Test
+	public void missingShardIsRejected() throws IOException {
+		runShard(new Shard(0, 3), PARAMETERS, true);
+		runShard(new Shard(2, 3), PARAMETERS, true);
+		assertRejected("2/3 is missing");
+	}
+
+	@Test
+	public void incompleteShardIsRejected() throws IOException {
+		runShard(new Shard(0, 2), PARAMETERS, true);
+		runShard(new Shard(1, 2), PARAMETERS, false);
+		assertRejected("2/2 did not finish");
+	}
+
+	@Test
+	public void cutOffLastLineIsRejected() throws IOException {
+		runShard(new Shard(0, 2), PARAMETERS, true);
+		File file = runShard(new Shard(1, 2), PARAMETERS, true);
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		int header = new String(bytes, StandardCharsets.UTF_8).indexOf('\n') + 1;
+		//a crash may cut the shard file anywhere, also within the results or the #complete line
+		for (int length = header; length < bytes.length - 1; length += 3) {
+			Files.write(file.toPath(), Arrays.copyOf(bytes, length));
+			assertRejected("2/2 did not finish");
+		}
+	}
+
+	@Test
+	public void mixedShardCountsAreRejected() throws IOException {
+		runShard(new Shard(0, 2), PARAMETERS, true);
+		runShard(new Shard(1, 2), PARAMETERS, true);
+		runShard(new Shard(2, 3), PARAMETERS, true);
+		assertRejected("other shards are of");
+	}
+
+	@Test
+	public void otherParametersAreRejected() throws IOException {
+		runShard(new Shard(0, 2), PARAMETERS, true);
+		runShard(new Shard(1, 2), PARAMETERS.replace("750", "800"), true);
+		assertRejected("2/2 was run with other parameters");
+	}
+
+	@Test
+	public void noShardsAreRejected() {
+		assertRejected("No shard results");
+	}
+
+	/** Saves the results of the files of the shard, left without {@code #complete} as by a crashed process unless complete. */
+	private File runShard(Shard shard, String parameters, boolean complete) throws IOException {
+		File file = ShardResults.file(basePath(), shard);
+		try (ShardResults<double[]> results = new ShardResults<>(file, root(), shard, parameters, CODEC)) {
+			for (File image : shard.select(root(), files()))
+				results.add(image, analyze(image));
+			if (complete)
+				results.complete();
+		}
+		return file;
+	}
+
+	private void addRow(List<String> rows, File file, double[] result) {
+		if (result != null)
+			rows.add(Shard.relativePath(root(), file) + "\t" + CODEC.encode(result));
+	}
+
+	private void assertRejected(String problem) {
+		try {
+			ShardResults.merge(basePath(), PARAMETERS, CODEC);
+			fail("merged, expected: " + problem);
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(problem));
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package chobotix.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * All the {@link WideTable}s reject a column with a name already in the table and keep the first one.
+ * @author Jaroslav Hanuš
+ */
+public class WideTableTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final double[] FIRST = {1, 2, 3};
+	private static final double[] SECOND = {4, 5};
+
+	/** Adds columns "exp1-a", "exp1-b" and again "exp1-a", as of files with the same name in two folders named alike. */
+	private static void addColumns(WideTable table) throws IOException {
+		table.addColumn("exp1-a", "a", FIRST);
+		table.addColumn("exp1-b", "b", SECOND);
+		try {
+			table.addColumn("exp1-a", "a", SECOND);
+			fail("second column exp1-a added to " + table.getClass().getSimpleName());
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+
+	@Test
+	public void wideColumnTableRejectsDuplicateName() throws IOException {
+		WideColumnTable table = new WideColumnTable();
+		addColumns(table);
+		assertEquals(2, table.getColumnCount());
+		assertEquals(0, table.getColumnIndex("exp1-a"));
+		assertArrayEquals(FIRST, table.getValues(0), 0);
+	}
+
+	@Test
+	public void wideResultsWriterRejectsDuplicateName() throws IOException {
+		File output = new File(folder.getRoot(), "SpheroidFluorescence_exp1.xls");
+		try (WideResultsWriter writer = new WideResultsWriter(output, ColumnarTableWriter.Compression.RAW)) {
+			addColumns(writer);
+			assertEquals(2, writer.getColumnCount());
+		}
+		assertFirstKept(ColumnarTableWriter.fileOf(output));
+	}
+
+	@Test
+	public void columnarTableWriterRejectsDuplicateName() throws IOException {
+		File file = new File(folder.getRoot(), "exp1" + ColumnarTable.EXTENSION);
+		try (ColumnarTableWriter writer = new ColumnarTableWriter(file, ColumnarTableWriter.Compression.DEFLATE)) {
+			addColumns(writer);
+			assertEquals(2, writer.getColumnCount());
+		}
+		assertFirstKept(file);
+	}
+
+	private static void assertFirstKept(File file) throws IOException {
+		try (ColumnarTable table = new ColumnarTable(file)) {
+			assertEquals(2, table.getColumnCount());
+			assertArrayEquals(FIRST, table.getValues("exp1-a"), 0);
+			assertEquals(2, table.read().getColumnCount());
+		}
+	}
+}
@@ -1,8 +1,28 @@
+import chobotix.core.AnalysisStage;
+import chobotix.core.BatchRunner;
+import chobotix.core.CliOptions;
+import chobotix.core.DatasetManifest;
+import chobotix.core.FilePipeline;
+import chobotix.core.FolderWatcher;
+import chobotix.core.MaskExporter;
+import chobotix.core.MemoryBudget;
+import chobotix.core.PlaneAnalyzer;
+import chobotix.core.PlaneReader;
+import chobotix.core.ResultCache;
+import chobotix.core.RunMetrics;
+import chobotix.core.Shard;
+import chobotix.core.ShardResults;
+import chobotix.core.StreamingResultsWriter;
+import chobotix.solvatochromic.StackThresholdResult;
+import chobotix.solvatochromic.ThresholdColocAnalyzer;
+import chobotix.solvatochromic.ThresholdColocLoops;
+import chobotix.solvatochromic.ThresholdColocResult;
+import chobotix.solvatochromic.ThresholdMethod;
+import chobotix.solvatochromic.ThresholdSweep;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.gui.GenericDialog;
 import ij.measure.ResultsTable;
-import ij.plugin.ChannelSplitter;
-import ij.plugin.ImageCalculator;
 import ij.plugin.filter.Analyzer;
 import net.imagej.ImageJ;
 import org.scijava.command.Command;
@@ -10,38 +30,47 @@ import org.scijava.plugin.Plugin;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 /**
  * A simple plugin for measuring the surface of areas with fluorescence intensity above chosen threshold in different channels.
  * Format based on "Hello World - a very simple plugin" from ImageJ tutorials.
  * <p>
  * Walks through the selected directory and all the subdirectories, finds .oib files, opens them.
+ * Files are analyzed in parallel, one per available core, rows are added to the table in the order of the files.
+ * To calibrate thresholds, a whole grid of blue/red threshold pairs can be evaluated from one read of each file,
+ * or thresholds can be chosen for each file from its own histograms (Otsu, Triangle, Li, a percentile).
+ * The analysis is also the "solvatochromic" stage of {@code chobotix.core.CombinedRun}, sharing the decoded planes
+ * with other plugins.
  * Quick and dirty, can definitively be improved, but works for us.
  * </p>
  * @author Jaroslav Hanuš
  */
 @Plugin(type = Command.class, headless = true, menuPath = "Plugins>Solvatochromic shift")
-public class BlueRedYellowArea implements Command {
+public class BlueRedYellowArea implements Command, AnalysisStage<StackThresholdResult> {
 
 	/**
-	 * A {@code main()} method for testing.
+	 * A {@code main()} method for testing and for headless batch runs.
 	 * <p>
-	 * When developing a plugin in an Integrated Development Environment (such as
-	 * Eclipse or NetBeans), it is most convenient to provide a simple
-	 * {@code main()} method that creates an ImageJ context and calls the plugin.
+	 * Without arguments it creates an ImageJ context and calls the plugin,
+	 * which comes in handy when debugging the plugin in an IDE.
 	 * </p>
 	 * <p>
-	 * In particular, this comes in handy when one needs to debug the plugin:
-	 * after setting one or more breakpoints and populating the inputs (e.g. by
-	 * calling something like
-	 * {@code ij.command().run(MyPlugin.class, "inputImage", myImage)} where
-	 * {@code inputImage} is the name of the field specifying the input) debugging
-	 * becomes a breeze.
+	 * With arguments it processes the given directory headless, without starting ImageJ, SciJava or AWT,
+	 * e.g. from cron right after acquisition:
+	 * {@code java -cp <jars> BlueRedYellowArea --input /data/exp1 --threshold-blue 750 --workers 16}.
+	 * Run with {@code --help} to list all options.
 	 * </p>
 	 *
-	 * @param args unused
+	 * @param args command line options, see {@link #USAGE}
 	 */
 	public static void main(final String... args) {
+		if (args.length > 0) {
+			System.exit(runHeadless(args));
+		}
 		// Launch ImageJ as usual.
 		final ImageJ ij = new ImageJ();
 		ij.launch(args);
@@ -49,169 +78,630 @@ public class BlueRedYellowArea implements Command {
 		// Launch our "Hello World" command right away.
 		ij.command().run(BlueRedYellowArea.class, true);
 	}
-	public void processFilesInFolder(File folder, ResultsTable rt) {
-		for (final File fileEntry : folder.listFiles()) {
-			if (fileEntry.isDirectory()) {
-				processFilesInFolder(fileEntry, rt);
-			} else {
-				if (fileEntry.getName().endsWith(".oib")) {
-					System.out.println("Processing " + fileEntry.getName() + "...");
-					processFileTH(fileEntry, rt);
+
+	static final String USAGE = "Usage: BlueRedYellowArea --input <dir> [options]\n"
+			+ "  --output <file>           results table (default <dir>/Results_<dir name>.xls)\n"
+			+ "  --threshold-blue <n>      blue threshold (default 750)\n"
+			+ "  --threshold-red <n>       red threshold (default 1000)\n"
+			+ "  --threshold-method <m>    FIXED, DEFAULT, OTSU, TRIANGLE, LI or PERCENTILE, chosen per file (default FIXED)\n"
+			+ "  --percentile <p>          percentile of PERCENTILE, e.g. 95 leaves at most 5 % above (default 95)\n"
+			+ "  --workers <n>             parallel files (default: number of cores)\n"
+			+ "  --masks <format>          OFF, JPEG, PNG or PACKED (default JPEG)\n"
+			+ "  --sweep-blue <list>       sweep thresholds instead, e.g. 250-2000:250\n"
+			+ "  --sweep-red <list>        red thresholds of the sweep\n"
+			+ "  --strip-mb <n>            read planes in strips fitting into n MB (default 0, whole planes)\n"
+			+ "  --memory-mb <n>           memory the files analyzed at once may take (default 0, 3/4 of the heap)\n"
+			+ "  --all-planes              analyze all Z slices and timepoints, rows per plane plus sum and max\n"
+			+ "                            (with an automatic threshold method each plane is decoded twice)\n"
+			+ "  --no-cache                analyze all files again\n"
+			+ "  --rescan                  list all directories again instead of reusing the saved manifest\n"
+			+ "  --watch                   keep analyzing new files as they are acquired, until Ctrl+C\n"
+			+ "  --watch-idle <min>        stop watching after min minutes without new files (default 0, never)\n"
+			+ "  --no-metrics              do not save RunMetrics_<dir name>.csv and .json\n"
+			+ "  --shard <i/N>             analyze only shard i of N and save its results for --merge, e.g. on one of N hosts\n"
+			+ "  --shards <n>              run n shards as processes of this host, then merge them\n"
+			+ "  --merge                   write the table from the results of all the shards\n";
+
+	/** Processes a directory as described by the command line, returns the process exit code. */
+	static int runHeadless(String... args) {
+		System.setProperty("java.awt.headless", "true");
+		BlueRedYellowArea plugin = new BlueRedYellowArea();
+		File folder, output;
+		int shardProcesses;
+		boolean workersGiven;
+		try {
+			CliOptions options = CliOptions.parse(args,
+					new String[]{"input", "output", "threshold-blue", "threshold-red", "threshold-method", "percentile", "workers", "masks", "sweep-blue", "sweep-red", "strip-mb", "memory-mb", "watch-idle", "shard", "shards"},
+					new String[]{"no-cache", "rescan", "watch", "all-planes", "no-metrics", "merge", "help"});
+			if (options.has("help")) {
+				System.out.print(USAGE);
+				return 0;
+			}
+			folder = options.getDirectory("input");
+			plugin.thresholdBlue = options.getInt("threshold-blue", plugin.thresholdBlue);
+			plugin.thresholdRed = options.getInt("threshold-red", plugin.thresholdRed);
+			plugin.readThresholdMethod(options);
+			plugin.workers = options.getInt("workers", plugin.workers);
+			plugin.maskFormat = MaskExporter.Format.valueOf(options.get("masks", plugin.maskFormat.name()).toUpperCase());
+			plugin.stripBudgetMB = options.getInt("strip-mb", plugin.stripBudgetMB);
+			plugin.memoryBudgetMB = options.getInt("memory-mb", plugin.memoryBudgetMB);
+			plugin.allPlanes = options.has("all-planes");
+			plugin.useCache = !options.has("no-cache");
+			plugin.useManifest = !options.has("rescan");
+			plugin.watch = options.has("watch");
+			plugin.watchIdleMinutes = options.getInt("watch-idle", plugin.watchIdleMinutes);
+			plugin.collectMetrics = !options.has("no-metrics");
+			plugin.sweepThresholds = options.has("sweep-blue") || options.has("sweep-red");
+			plugin.sweepThresholdsBlue = options.get("sweep-blue", String.valueOf(plugin.thresholdBlue));
+			plugin.sweepThresholdsRed = options.get("sweep-red", String.valueOf(plugin.thresholdRed));
+			output = options.getFile("output", plugin.defaultOutput(folder));
+			plugin.shard = options.has("shard") ? Shard.parse(options.get("shard", "")) : null;
+			shardProcesses = options.getInt("shards", 0);
+			workersGiven = options.has("workers");
+			plugin.mergeShards = options.has("merge");
+			if ((plugin.shard != null || shardProcesses > 0 || plugin.mergeShards) && (plugin.sweepThresholds || plugin.watch))
+				throw new IllegalArgumentException("Shards cannot sweep thresholds or watch the folder");
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			return 2;
+		}
+		try {
+			if (shardProcesses > 0) {
+				//each process gets its share of the cores unless told otherwise
+				int shardWorkers = workersGiven ? 0 : Math.max(1, plugin.workers / shardProcesses);
+				if (!Shard.runProcesses(BlueRedYellowArea.class, args, shardProcesses, shardWorkers, plugin.shardBasePath(output)).isEmpty()) {
+					System.err.println("Run the failed shards again with --shard i/N and then merge with --merge.");
+					return 1;
 				}
+				plugin.mergeShards = true;
+			}
+			plugin.processFolder(folder, output);
+			return 0;
+		} catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+			return 1;
+		}
+	}
+
+	int thresholdBlue = 750;
+	int thresholdRed = 1000;
+	/** How thresholds are chosen, the fixed thresholds above or thresholds computed for each file from its histograms. */
+	ThresholdMethod thresholdMethod = ThresholdMethod.FIXED;
+	/** Percentile of {@link ThresholdMethod#PERCENTILE}. */
+	double thresholdPercentile = 95;
+	int workers = BatchRunner.defaultWorkers();
+	boolean useCache = true;
+	/** Reuses listings of unchanged directories saved by earlier runs, see {@link DatasetManifest}. */
+	boolean useManifest = true;
+	/** Keeps watching the folder after the files found at the start are analyzed, new files are analyzed once complete. */
+	boolean watch = false;
+	/** Stops watching after this many minutes without a new file, 0 watches until Esc (or Ctrl+C). */
+	int watchIdleMinutes = 0;
+	/** Saves timing of the stages of the run next to the results, as {@code RunMetrics_<folder>.csv} and {@code .json}. */
+	boolean collectMetrics = true;
+	private RunMetrics metrics;
+	MaskExporter.Format maskFormat = MaskExporter.Format.JPEG;
+	/**
+	 * Memory for decoded pixels of a file in MB, planes are read in strips of rows fitting into it.
+	 * 0 reads whole planes. Saved masks still take a byte per pixel each.
+	 */
+	int stripBudgetMB = 0;
+	/**
+	 * Memory in MB the files analyzed at once may take, estimated for each file from its dimensions before it is decoded.
+	 * Files wait until they fit in, a file too big for whole planes is read in strips. 0 takes three quarters of the heap.
+	 */
+	int memoryBudgetMB = 0;
+	/**
+	 * Analyzes every Z slice and timepoint instead of the first plane only, a row is added per plane
+	 * plus a row with all planes pooled (Sum) and one of the maximum intensity projection (Max).
+	 */
+	boolean allPlanes = false;
+	int maskWriterThreads = 2;
+	/** Analyzes only the files of the shard and saves their results for a merge instead of the table, null analyzes all files. */
+	Shard shard = null;
+	/** Writes the table from the results saved by all the shards instead of analyzing the files. */
+	boolean mergeShards = false;
+
+	boolean sweepThresholds = false;
+	String sweepThresholdsBlue = "250-2000:250";
+	String sweepThresholdsRed = "250-2000:250";
+
+	public void processFilesInFolder(File folder, ResultsTable rt) {
+		processFilesInFolder(folder, (oibFile, result) -> addResultRows(rt, oibFile, result));
+	}
+
+	/** Analyzes all the files and writes each row to the results file as soon as it is ready. */
+	public void processFilesInFolder(File folder, StreamingResultsWriter writer) {
+		ResultsTable row = new ResultsTable();
+		row.setPrecision(5);
+		processFilesInFolder(folder, (oibFile, result) -> {
+			addResultRows(row, oibFile, result);
+			try {
+				writer.append(row);
+				//while watching, rows of newly acquired files are on disk right away
+				if (watch)
+					writer.flush();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	/** Analyzes all the files, results are passed to the consumer in the order of the files. */
+	public void processFilesInFolder(File folder, BatchRunner.ResultConsumer<StackThresholdResult> consumer) {
+		//The watcher is started first, so that files written while the files found now are analyzed are not missed
+		try (FolderWatcher watcher = watch ? new FolderWatcher(folder, name -> name.endsWith(".oib")) : null;
+			 ResultCache<StackThresholdResult> cache = useCache ? openCache(folder) : null;
+			 MaskExporter exporter = openMaskExporter()) {
+			List<File> oibFiles = new ArrayList<>();
+			collectFiles(folder, oibFiles);
+			if (shard != null) {
+				oibFiles = shard.select(folder, oibFiles);
+				System.out.println("Shard " + shard + " analyzes " + oibFiles.size() + " files.");
+			}
+			System.out.println("Thresholding with " + (ThresholdColocLoops.isVectorized() ? "vectorized" : "scalar") + " pixel loops.");
+			warnOfSecondDecoding();
+			MemoryBudget memoryBudget = MemoryBudget.ofMB(memoryBudgetMB);
+			BatchRunner.FileTask<StackThresholdResult> analysis = oibFile -> analyzeFile(oibFile, exporter, memoryBudget);
+			BatchRunner.FileTask<StackThresholdResult> task = cache != null ? cache.wrap(analysis, file -> new File[0], this::masksExist) : analysis;
+			BatchRunner runner = new BatchRunner(workers);
+			runner.setMetrics(metrics);
+			runner.run(oibFiles, task, consumer);
+			if (watcher != null) {
+				watcher.markKnown(oibFiles);
+				System.out.println("Watching " + folder + " for new .oib files, press Esc to stop.");
+				IJ.showStatus("Watching for new .oib files, press Esc to stop");
+				watcher.watch(newFiles -> runner.run(newFiles, task, consumer), watchIdleMinutes * 60_000L, IJ::escapePressed);
+				System.out.println("Stopped watching " + folder + ".");
+			}
+			if (cache != null)
+				System.out.println(cache.getHits() + " files taken from cache, " + cache.getMisses() + " analyzed.");
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Cache of results of already analyzed files, kept in the processed folder.
+	 * Files are analyzed again when they change, when thresholds change or when their masks of {@link #maskFormat} are missing,
+	 * e.g. after a run without masks.
+	 */
+	public ResultCache<StackThresholdResult> openCache(File folder) throws IOException {
+		//shards keep their own journals, processes on several hosts do not append to one file
+		String name = ".BlueRedYellowArea" + (shard != null ? shard.getSuffix() : "") + ".cache";
+		return new ResultCache<>(folder, new File(folder, name), analysisParameters(), StackThresholdResult.CACHE_CODEC);
+	}
+
+	/** Whether the masks the file would be saved with are on disk, for cached results. */
+	private boolean masksExist(File oibFile, StackThresholdResult result) {
+		if (maskFormat == MaskExporter.Format.OFF)
+			return true;
+		int blue = result.hasThresholds() ? result.getThresholdBlue() : thresholdBlue;
+		int red = result.hasThresholds() ? result.getThresholdRed() : thresholdRed;
+		for (String path : ThresholdColocAnalyzer.maskPaths(oibFile, blue, red))
+			if (!new File(path + maskFormat.getExtension()).exists())
+				return false;
+		return true;
+	}
+
+	/** Description of the parameters that influence results, for the cache and the shards. */
+	public String analysisParameters() {
+		String planes = allPlanes ? "c1zAlltAll" : "c1z1t1";
+		String parameters = "BlueRedYellowArea 1 " + planes + " thresholdBlue=" + thresholdBlue + " thresholdRed=" + thresholdRed;
+		if (thresholdMethod == ThresholdMethod.PERCENTILE)
+			return parameters + " thresholdMethod=PERCENTILE percentile=" + thresholdPercentile;
+		return thresholdMethod.isFixed() ? parameters : parameters + " thresholdMethod=" + thresholdMethod;
+	}
+
+	/**
+	 * Evaluates all combinations of the sweep thresholds for all the files and writes a row per file and threshold pair.
+	 * Every file is read only once, no masks are saved and no cache is used.
+	 */
+	public void sweepFilesInFolder(File folder, StreamingResultsWriter writer) {
+		ThresholdSweep sweep = new ThresholdSweep(ThresholdSweep.parseThresholds(sweepThresholdsBlue), ThresholdSweep.parseThresholds(sweepThresholdsRed));
+		List<File> oibFiles = new ArrayList<>();
+		collectFiles(folder, oibFiles);
+		ResultsTable rows = new ResultsTable();
+		rows.setPrecision(5);
+		BatchRunner runner = new BatchRunner(workers);
+		runner.setMetrics(metrics);
+		runner.run(oibFiles, oibFile -> sweepFile(oibFile, sweep), (oibFile, results) -> {
+			addSweepRows(rows, oibFile, sweep, results);
+			try {
+				writer.append(rows);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	/** Results of all threshold pairs of the sweep for one file, indexed [blue threshold][red threshold]. */
+	public ThresholdColocResult[][] sweepFile(File oibFile, ThresholdSweep sweep) {
+		System.out.println("Sweeping thresholds of " + oibFile.getName() + "...");
+		ThresholdSweep.Histograms histograms = sweep.newHistograms();
+		RunMetrics.FileRecord fileMetrics = RunMetrics.current();
+		try (PlaneReader reader = new PlaneReader(oibFile)) {
+			int stripRows = stripRows(reader, 2);
+			for (int y = 0; y < reader.getHeight(); y += stripRows) {
+				int rows = Math.min(stripRows, reader.getHeight() - y);
+				short[] blue = reader.readShorts(0, 0, 0, y, rows);
+				short[] red = reader.readShorts(1, 0, 0, y, rows);
+				long start = fileMetrics.start();
+				histograms.accumulate(blue, red);
+				fileMetrics.stop(RunMetrics.Stage.THRESHOLD, start);
 			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		long start = fileMetrics.start();
+		ThresholdColocResult[][] results = sweep.evaluate(histograms);
+		fileMetrics.stop(RunMetrics.Stage.MEASURE, start);
+		return results;
+	}
+
+	public void addSweepRows(ResultsTable rt, File oibFile, ThresholdSweep sweep, ThresholdColocResult[][] results) {
+		int[] blueThresholds = sweep.getBlueThresholds();
+		int[] redThresholds = sweep.getRedThresholds();
+		for (int i = 0; i < blueThresholds.length; i++) {
+			for (int j = 0; j < redThresholds.length; j++) {
+				rt.addRow();
+				rt.addValue("Directory", oibFile.getParentFile().getParentFile().getName() + "/" + oibFile.getParentFile().getName());
+				rt.addValue("File", oibFile.getName());
+				rt.addValue("Threshold Blue", blueThresholds[i]);
+				rt.addValue("Threshold Red", redThresholds[j]);
+				addResultValues(rt, results[i][j]);
+			}
+		}
+	}
+
+	/** Collects .oib files of the folder and its subfolders, in the order they would be processed serially. */
+	public void collectFiles(File folder, List<File> oibFiles) {
+		long start = System.nanoTime();
+		try {
+			DatasetManifest manifest = DatasetManifest.scan(folder, useManifest, workers);
+			System.out.println("Listed " + manifest.getListedDirectories() + " of " + manifest.getDirectories() + " directories.");
+			oibFiles.addAll(DatasetManifest.files(manifest.find(name -> name.endsWith(".oib"), false)));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			if (metrics != null)
+				metrics.addRunTime(RunMetrics.Stage.DISCOVER, System.nanoTime() - start);
 		}
 	}
 
 	public void processFileTH(File oibFile, ResultsTable rt) {
-		IJ.run("Set Measurements...", "area_fraction display redirect=None decimal=5");
+		try (MaskExporter exporter = openMaskExporter()) {
+			addResultRows(rt, oibFile, analyzeFile(oibFile, exporter));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** Mask writers for {@link #maskFormat}, queue is kept short so that waiting masks do not take much memory. */
+	public MaskExporter openMaskExporter() {
+		return new MaskExporter(maskFormat, maskWriterThreads, 4 * maskWriterThreads);
+	}
+
+	/**
+	 * Analyzes the first plane or, with {@link #allPlanes}, all planes of the file and queues its masks for export,
+	 * see {@link ThresholdColocAnalyzer}.
+	 * Does not touch any ImageJ global state, so it can run for several files in parallel.
+	 */
+	public StackThresholdResult analyzeFile(File oibFile, MaskExporter exporter) {
+		return analyzeFile(oibFile, exporter, null);
+	}
+
+	/** Analyzes the file once it fits into the memory budget, unless the budget is null. */
+	public StackThresholdResult analyzeFile(File oibFile, MaskExporter exporter, MemoryBudget memoryBudget) {
+		try {
+			return FilePipeline.analyze(oibFile, thresholdAnalyzer(exporter), stripBudgetMB * 1024L * 1024L, null, memoryBudget);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** The analysis with the current thresholds or threshold method, also the stage of combined runs. */
+	public ThresholdColocAnalyzer thresholdAnalyzer(MaskExporter exporter) {
+		return new ThresholdColocAnalyzer(thresholdBlue, thresholdRed, allPlanes, exporter, thresholdMethod, thresholdPercentile);
+	}
+
+	/** Rows of strips that {@code planes} planes are read in at once, the whole height without a budget. */
+	private int stripRows(PlaneReader reader, int planes) {
+		return stripBudgetMB > 0 ? reader.stripRows(stripBudgetMB * 1024L * 1024L, planes) : reader.getHeight();
+	}
+
+	public void addResultRow(ResultsTable rt, File oibFile, ThresholdColocResult result) {
+		addResultRow(rt, oibFile, null, result);
+	}
+
+	/** Row of a single plane result, with the thresholds chosen for the file unless stack is null. */
+	private void addResultRow(ResultsTable rt, File oibFile, StackThresholdResult stack, ThresholdColocResult result) {
+		String fileName = oibFile.getName().substring(0, oibFile.getName().lastIndexOf(".oib"));
 		rt.addRow();
 		rt.addValue("Directory", oibFile.getParentFile().getParentFile().getName() + "/" + oibFile.getParentFile().getName());
 		rt.addValue("File", oibFile.getName());
+		if (stack != null)
+			addThresholdValues(rt, stack);
+		addResultValues(rt, result);
 
-		ResultsTable mainRT = ResultsTable.getResultsTable();
-		Integer thresholdBlue = 750;
-		Integer thresholdRed = 1000;
-		ImagePlus imp = IJ.openImage(oibFile.getPath());
-		String fileName = oibFile.getName().substring(0, oibFile.getName().lastIndexOf(".oib"));
-		ImagePlus[] channels = ChannelSplitter.split(imp);
-		channels[2].close();
-
-		ImagePlus blueCh = channels[0];
-		IJ.setAutoThreshold(blueCh, "Default dark");
-		IJ.setRawThreshold(blueCh, thresholdBlue, 65535);
-		IJ.run(blueCh, "Convert to Mask", "");
-		Analyzer analyser = new Analyzer(blueCh);
-		analyser.measure();
-		int rowNumber = mainRT.getCounter();
-		double bluePercentage = mainRT.getValue("%Area", rowNumber-1);
+		System.out.println("Adding values from " + fileName + " to table.");
+	}
+
+	/** Thresholds chosen for the file, when they are not the fixed ones. */
+	private void addThresholdValues(ResultsTable rt, StackThresholdResult result) {
+		if (thresholdMethod.isFixed() || !result.hasThresholds())
+			return;
+		rt.addValue("Threshold Blue", result.getThresholdBlue());
+		rt.addValue("Threshold Red", result.getThresholdRed());
+	}
+
+	/** Adds the row of a single plane result, or a row per plane plus the Sum and Max rows of a stack result. */
+	public void addResultRows(ResultsTable rt, File oibFile, StackThresholdResult result) {
+		if (!result.isStack()) {
+			addResultRow(rt, oibFile, result, result.getPlane(0, 0));
+			return;
+		}
+		String directory = oibFile.getParentFile().getParentFile().getName() + "/" + oibFile.getParentFile().getName();
+		for (int frame = 0; frame < result.getFrames(); frame++) {
+			for (int slice = 0; slice < result.getSlices(); slice++) {
+				rt.addRow();
+				rt.addValue("Directory", directory);
+				rt.addValue("File", oibFile.getName());
+				rt.addValue("Slice", slice + 1);
+				rt.addValue("Frame", frame + 1);
+				addThresholdValues(rt, result);
+				addResultValues(rt, result.getPlane(slice, frame));
+			}
+		}
+		String[] aggregates = {"Sum", "Max"};
+		ThresholdColocResult[] aggregateResults = {result.getSum(), result.getMax()};
+		for (int i = 0; i < aggregates.length; i++) {
+			rt.addRow();
+			rt.addValue("Directory", directory);
+			rt.addValue("File", oibFile.getName());
+			rt.addValue("Slice", aggregates[i]);
+			rt.addValue("Frame", aggregates[i]);
+			addThresholdValues(rt, result);
+			addResultValues(rt, aggregateResults[i]);
+		}
+		System.out.println("Adding values of " + result.getSlices() * result.getFrames() + " planes from " + oibFile.getName() + " to table.");
+	}
+
+	private void addResultValues(ResultsTable rt, ThresholdColocResult result) {
+		double bluePercentage = result.getBluePercentage();
+		double redPercentage = result.getRedPercentage();
+		double colocPercentage = result.getColocPercentage();
+		double darkPercentage = result.getDarkPercentage();
 		rt.addValue("%Area Blue Channel", bluePercentage);
-		String newName = oibFile.getPath().substring(0, oibFile.getPath().lastIndexOf(".oib")) + "_Blue_TH-" + thresholdBlue + ".jpg";
-		IJ.saveAs(blueCh, "Jpeg", newName);
-
-		ImagePlus redCh = channels[1];
-		IJ.setAutoThreshold(redCh, "Default dark");
-		IJ.setRawThreshold(redCh, thresholdRed, 65535);
-		IJ.run(redCh, "Convert to Mask", "");
-		analyser = new Analyzer(redCh);
-		analyser.measure();
-		rowNumber = mainRT.getCounter();
-		double redPercentage = mainRT.getValue("%Area", rowNumber-1);
 		rt.addValue("%Area Red Channel", redPercentage);
-		newName = oibFile.getPath().substring(0, oibFile.getPath().lastIndexOf(".oib")) + "_Red_TH-" + thresholdRed + ".jpg";
-		IJ.saveAs(redCh, "Jpeg", newName);
-
-		ImagePlus coloc = ImageCalculator.run(blueCh, redCh, "AND create");
-		analyser = new Analyzer(coloc);
-		analyser.measure();
-		rowNumber = mainRT.getCounter();
-		double colocPercentage = mainRT.getValue("%Area", rowNumber-1);
 		rt.addValue("%Area Blue AND Red", colocPercentage);
-		newName = oibFile.getPath().substring(0, oibFile.getPath().lastIndexOf(".oib")) + "_Coloc-" + thresholdRed + ".jpg";
-		IJ.saveAs(coloc, "Jpeg", newName);
-
-		ImagePlus allColors = ImageCalculator.run(blueCh, redCh, "OR create");
-		analyser = new Analyzer(allColors);
-		analyser.measure();
-		rowNumber = mainRT.getCounter();
-		double darkPercentage = 100 - mainRT.getValue("%Area", rowNumber-1);
 		rt.addValue("%Area Dark", darkPercentage);
-		newName = oibFile.getPath().substring(0, oibFile.getPath().lastIndexOf(".oib")) + "_AllColors-" + thresholdRed + ".jpg";
-		IJ.saveAs(allColors, "Jpeg", newName);
-
 		rt.addValue("%Area Blue Only", bluePercentage - colocPercentage);
 		rt.addValue("%Area Red Only", redPercentage - colocPercentage);
 		rt.addValue("%Area D + C + BO + RO", darkPercentage + bluePercentage + redPercentage - colocPercentage);
-
-
-		//IJ.run("Set Measurements...", "mean display redirect=None decimal=5");
-		IJ.run("Set Measurements...", "mean limit redirect=None decimal=5");
-		ImagePlus imp2 = IJ.openImage(oibFile.getPath());
-		ImagePlus[] channels2 = ChannelSplitter.split(imp2);
-		channels2[2].close();
-
-		ImagePlus blueOrig = channels2[0];
-		//IJ.run(blueOrig, "8-bit", ""); //Necessary, if I do not find a way how to create 16-bit mask
-		//ImagePlus blueMasked = ImageCalculator.run(blueOrig, blueCh , "MIN create");
-		IJ.setRawThreshold(blueOrig, Math.round (thresholdBlue/2), 65535);
-		analyser = new Analyzer(blueOrig);
-		analyser.measure();
-		rowNumber = mainRT.getCounter();
-		double blueIntDen = mainRT.getValue("Mean", rowNumber-1);
-		rt.addValue("Mean Blue", blueIntDen);
-
-//		analyser = new Analyzer(blueCh);
-//		analyser.measure();
-//		rowNumber = mainRT.getCounter();
-//		double blueIntDenMask = mainRT.getValue("RawIntDen", rowNumber-1); //should correspond to number of mask pixels*255
-//		rt.addValue("RawIntDen Blue mask", blueIntDenMask);
-//		rt.addValue("Blue masked mean", blueIntDen*255/blueIntDenMask);
-
-//		newName = oibFile.getPath().substring(0, oibFile.getPath().lastIndexOf(".oib")) + "_MaskedBlue" + ".jpg";
-//		IJ.saveAs(blueMasked, "Jpeg", newName);
-
-		ImagePlus redOrig = channels2[1];
-		//IJ.run(redOrig, "8-bit", ""); //Necessary, if I do not find a way how to create 16-bit mask
-		//ImagePlus redMasked = ImageCalculator.run(redOrig, redCh, "MIN create");
-		IJ.setRawThreshold(redOrig, Math.round (thresholdRed/2), 65535);
-		analyser = new Analyzer(redOrig);
-		analyser.measure();
-		rowNumber = mainRT.getCounter();
-		double redIntDen = mainRT.getValue("Mean", rowNumber-1);
-		rt.addValue("Mean Red", redIntDen);
-
-//		analyser = new Analyzer(redCh);
-//		analyser.measure();
-//		rowNumber = mainRT.getCounter();
-//		double redIntDenMask = mainRT.getValue("RawIntDen", rowNumber-1); //should correspond to number of mask pixels*255
-//		rt.addValue("RawIntDen Red mask", redIntDenMask);
-//		rt.addValue("Red masked mean", redIntDen*255/redIntDenMask);
-
-//		newName = oibFile.getPath().substring(0, oibFile.getPath().lastIndexOf(".oib")) + "_MaskedRed" + ".jpg";
-//		IJ.saveAs(redMasked, "Jpeg", newName);
-
-		blueCh.close();
-		redCh.close();
-		coloc.close();
-		allColors.close();
-		blueOrig.close();
-		redOrig.close();
-
-		System.out.println("Adding values from " + fileName + " to table.");
+		rt.addValue("Mean Blue", result.getMeanBlue());
+		rt.addValue("Mean Red", result.getMeanRed());
 	}
 
 	public void processFileMean(File oibFile, ResultsTable rt) {
-		ImagePlus imp = IJ.openImage(oibFile.getPath());
 		String fileName = oibFile.getName().substring(0, oibFile.getName().lastIndexOf(".oib"));
-		ImagePlus[] channels = ChannelSplitter.split(imp);
-		channels[2].close();
+		try (PlaneReader reader = new PlaneReader(oibFile)) {
+			RunMetrics.FileRecord fileMetrics = RunMetrics.current();
+			ImagePlus blueCh = reader.openPlane(0, 0, 0);
+			long start = fileMetrics.start();
+			Analyzer analyser = new Analyzer(blueCh, rt);
+			analyser.measure();
+			fileMetrics.stop(RunMetrics.Stage.MEASURE, start);
+			rt.addValue("Directory", oibFile.getParentFile().getParentFile().getName() + "/" + oibFile.getParentFile().getName());
+			rt.addValue("Channel", "Blue");
+			blueCh.close();
 
-		ImagePlus blueCh = channels[0];
-		Analyzer analyser = new Analyzer(blueCh, rt);
-		analyser.measure();
-		rt.addValue("Directory", oibFile.getParentFile().getParentFile().getName() + "/" + oibFile.getParentFile().getName());
-		rt.addValue("Channel", "Blue");
-		blueCh.close();
-
-		ImagePlus redCh = channels[1];
-		analyser = new Analyzer(redCh, rt);
-		analyser.measure();
-		rt.addValue("Directory", oibFile.getParentFile().getParentFile().getName() + "/" + oibFile.getParentFile().getName());
-		rt.addValue("Channel", "Red");
-		redCh.close();
+			ImagePlus redCh = reader.openPlane(1, 0, 0);
+			start = fileMetrics.start();
+			analyser = new Analyzer(redCh, rt);
+			analyser.measure();
+			fileMetrics.stop(RunMetrics.Stage.MEASURE, start);
+			rt.addValue("Directory", oibFile.getParentFile().getParentFile().getName() + "/" + oibFile.getParentFile().getName());
+			rt.addValue("Channel", "Red");
+			redCh.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
 
 		System.out.println("Adding Mean value " + fileName + " to table.");
 	}
 
 	public void run() {
 		final File folder = new File(IJ.getDirectory("Select directory (may contain subdirs) with .oib files to process"));
-		ResultsTable rt = new ResultsTable();
+		if (!showOptionsDialog())
+			return;
 		ResultsTable.getResultsTable().reset();
 
-		processFilesInFolder(folder, rt);
 		try {
-			rt.saveAs(folder.getPath() + "/" + "Results_" + folder.getName() + ".xls");
-		} catch (IOException e) {
+			processFolder(folder, defaultOutput(folder));
+		} catch (IOException | UncheckedIOException e) {
 			System.out.println("Could not save Results Table!!! " + e);
 		}
 	}
+
+	/** Results_ (or ThresholdSweep_) table in the processed folder. */
+	public File defaultOutput(File folder) {
+		String tableName = sweepThresholds ? "ThresholdSweep_" : "Results_";
+		return new File(folder.getPath() + "/" + tableName + folder.getName() + ".xls");
+	}
+
+	/** Analyzes or sweeps all the files of the folder, writing rows to the output as they come. */
+	public void processFolder(File folder, File output) throws IOException {
+		metrics = collectMetrics ? new RunMetrics() : null;
+		try {
+			if (shard != null) {
+				processShard(folder, output);
+			} else {
+				try (StreamingResultsWriter writer = new StreamingResultsWriter(output)) {
+					if (sweepThresholds)
+						sweepFilesInFolder(folder, writer);
+					else if (mergeShards)
+						mergeShards(folder, output, writer);
+					else
+						processFilesInFolder(folder, writer);
+				}
+			}
+			String suffix = shard != null ? shard.getSuffix() : "";
+			if (metrics != null)
+				metrics.writeSummary(new File(output.getAbsoluteFile().getParentFile(), "RunMetrics_" + folder.getName() + suffix));
+		} finally {
+			metrics = null;
+		}
+	}
+
+	/** Analyzes the files of {@link #shard} and saves their results next to the table for {@link #mergeShards}. */
+	public void processShard(File folder, File output) throws IOException {
+		File shardFile = ShardResults.file(shardBasePath(output), shard);
+		try (ShardResults<StackThresholdResult> results = new ShardResults<>(shardFile, folder, shard, analysisParameters(), StackThresholdResult.CACHE_CODEC)) {
+			processFilesInFolder(folder, (oibFile, result) -> {
+				try {
+					results.add(oibFile, result);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			results.complete();
+		}
+		System.out.println("Results of shard " + shard + " saved to " + shardFile.getPath() + ".");
+	}
+
+	/** Writes rows of the results saved by all the shards, in the order a single run would write them. */
+	public void mergeShards(File folder, File output, StreamingResultsWriter writer) throws IOException {
+		Map<String, StackThresholdResult> results = ShardResults.merge(shardBasePath(output), analysisParameters(), StackThresholdResult.CACHE_CODEC);
+		List<File> oibFiles = new ArrayList<>();
+		collectFiles(folder, oibFiles);
+		ResultsTable rows = new ResultsTable();
+		rows.setPrecision(5);
+		int merged = 0;
+		for (File oibFile : oibFiles) {
+			String path = Shard.relativePath(folder, oibFile);
+			if (!results.containsKey(path)) {
+				System.out.println(path + " is not in any shard, it was probably added after the shards ran.");
+				continue;
+			}
+			StackThresholdResult result = results.get(path);
+			if (result == null)
+				continue;
+			addResultRows(rows, oibFile, result);
+			writer.append(rows);
+			merged++;
+		}
+		System.out.println("Merged results of " + merged + " files.");
+	}
+
+	/** Path of the shard files, the table without its extension. */
+	String shardBasePath(File output) {
+		String path = output.getPath();
+		int dot = path.lastIndexOf('.');
+		return dot > path.lastIndexOf(File.separatorChar) ? path.substring(0, dot) : path;
+	}
+
+	private StreamingResultsWriter stageWriter;
+	private MaskExporter stageExporter;
+	private ResultsTable stageRows;
+
+	@Override
+	public String getStageName() {
+		return "solvatochromic";
+	}
+
+	@Override
+	public String[] getStageOptions() {
+		return new String[]{"threshold-blue", "threshold-red", "threshold-method", "percentile", "masks"};
+	}
+
+	@Override
+	public String[] getStageFlags() {
+		return new String[]{"all-planes"};
+	}
+
+	@Override
+	public boolean acceptsFile(String name) {
+		return name.endsWith(".oib");
+	}
+
+	/** Opens the Results_ table in the output folder, the same one as {@link #processFolder} writes. */
+	@Override
+	public PlaneAnalyzer<StackThresholdResult> openStage(File folder, File outputFolder, CliOptions options) throws IOException {
+		thresholdBlue = options.getInt("threshold-blue", thresholdBlue);
+		thresholdRed = options.getInt("threshold-red", thresholdRed);
+		readThresholdMethod(options);
+		maskFormat = MaskExporter.Format.valueOf(options.get("masks", maskFormat.name()).toUpperCase());
+		allPlanes = allPlanes || options.has("all-planes");
+		stageWriter = new StreamingResultsWriter(new File(outputFolder, "Results_" + folder.getName() + ".xls"));
+		stageExporter = openMaskExporter();
+		stageRows = new ResultsTable();
+		stageRows.setPrecision(5);
+		warnOfSecondDecoding();
+		return thresholdAnalyzer(stageExporter);
+	}
+
+	/** All planes are measured only once their thresholds are chosen from all of them, see {@link ThresholdColocAnalyzer}. */
+	private void warnOfSecondDecoding() {
+		if (allPlanes && !thresholdMethod.isFixed())
+			System.out.println("Thresholds by " + thresholdMethod + " over all planes: every plane is decoded twice, for the histograms and for the measurement.");
+	}
+
+	@Override
+	public void addResult(File oibFile, StackThresholdResult result) throws IOException {
+		addResultRows(stageRows, oibFile, result);
+		stageWriter.append(stageRows);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try (StreamingResultsWriter writer = stageWriter; MaskExporter exporter = stageExporter) {
+			stageWriter = null;
+			stageExporter = null;
+		}
+	}
+
+	private void readThresholdMethod(CliOptions options) {
+		thresholdMethod = ThresholdMethod.valueOf(options.get("threshold-method", thresholdMethod.name()).toUpperCase());
+		try {
+			thresholdPercentile = Double.parseDouble(options.get("percentile", String.valueOf(thresholdPercentile)));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("--percentile has to be a number", e);
+		}
+		if (thresholdPercentile < 0 || thresholdPercentile > 100)
+			throw new IllegalArgumentException("--percentile has to be within 0-100");
+	}
+
+	boolean showOptionsDialog() {
+		GenericDialog gd = new GenericDialog("Solvatochromic shift");
+		gd.addNumericField("Blue threshold", thresholdBlue, 0);
+		gd.addNumericField("Red threshold", thresholdRed, 0);
+		gd.addChoice("Thresholds", ThresholdMethod.names(), thresholdMethod.name());
+		gd.addNumericField("Percentile (PERCENTILE thresholds)", thresholdPercentile, 1);
+		gd.addMessage("Thresholds other than FIXED are chosen for each file from its histograms, the fixed ones are then ignored.");
+		gd.addChoice("Save masks as", MaskExporter.Format.names(), maskFormat.name());
+		gd.addCheckbox("Sweep thresholds instead (no masks are saved)", sweepThresholds);
+		gd.addStringField("Blue thresholds to sweep", sweepThresholdsBlue, 20);
+		gd.addStringField("Red thresholds to sweep", sweepThresholdsRed, 20);
+		gd.addMessage("Sweep thresholds as a list (500,750,1000) or a range with step (250-2000:250).");
+		gd.addCheckbox("Analyze all Z slices and timepoints (rows per plane, Sum and Max)", allPlanes);
+		gd.addNumericField("Memory for pixels of a file (MB, 0 = whole planes)", stripBudgetMB, 0);
+		gd.addCheckbox("Keep watching the folder for new files (Esc stops)", watch);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return false;
+		thresholdBlue = (int) gd.getNextNumber();
+		thresholdRed = (int) gd.getNextNumber();
+		thresholdMethod = ThresholdMethod.valueOf(gd.getNextChoice());
+		thresholdPercentile = gd.getNextNumber();
+		maskFormat = MaskExporter.Format.valueOf(gd.getNextChoice());
+		sweepThresholds = gd.getNextBoolean();
+		sweepThresholdsBlue = gd.getNextString();
+		sweepThresholdsRed = gd.getNextString();
+		allPlanes = gd.getNextBoolean();
+		stripBudgetMB = (int) gd.getNextNumber();
+		watch = gd.getNextBoolean();
+		return true;
+	}
 }
\ No newline at end of file
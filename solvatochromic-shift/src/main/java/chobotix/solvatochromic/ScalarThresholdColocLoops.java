@@ -0,0 +1,68 @@
+package chobotix.solvatochromic;
+
+/**
+ * Plain loops of the {@link ThresholdColocKernel}, used on Java 8 and whenever the vector loops are not available.
+ * The counts are added to an array in the order of {@link ThresholdColocLoops}.
+ * @author Jaroslav Hanuš
+ */
+public class ScalarThresholdColocLoops {
+	private ScalarThresholdColocLoops() {
+	}
+
+	/** Counts pixels {@code from} (inclusive) to {@code to} (exclusive) of both planes. */
+	public static void count(short[] blue, short[] red, int from, int to,
+							 int thresholdBlue, int thresholdRed, int limitBlue, int limitRed, long[] counts) {
+		long bCount = 0, rCount = 0, cCount = 0, bLimCount = 0, rLimCount = 0, bLimSum = 0, rLimSum = 0;
+		for (int i = from; i < to; i++) {
+			int b = blue[i] & 0xffff;
+			int r = red[i] & 0xffff;
+			boolean isBlue = b >= thresholdBlue;
+			boolean isRed = r >= thresholdRed;
+			if (isBlue) bCount++;
+			if (isRed) rCount++;
+			if (isBlue && isRed) cCount++;
+			if (b >= limitBlue) {
+				bLimCount++;
+				bLimSum += b;
+			}
+			if (r >= limitRed) {
+				rLimCount++;
+				rLimSum += r;
+			}
+		}
+		ThresholdColocLoops.add(counts, bCount, rCount, cCount, bLimCount, rLimCount, bLimSum, rLimSum);
+	}
+
+	/**
+	 * Counts pixels {@code from} (inclusive) to {@code to} (exclusive) of both planes and fills the masks,
+	 * pixel {@code i} goes to mask index {@code maskOffset + i - from}. Any of the masks may be null.
+	 */
+	public static void countAndMask(short[] blue, short[] red, int from, int to,
+									int thresholdBlue, int thresholdRed, int limitBlue, int limitRed, long[] counts,
+									byte[] blueMask, byte[] redMask, byte[] colocMask, byte[] allColorsMask, int maskOffset) {
+		long bCount = 0, rCount = 0, cCount = 0, bLimCount = 0, rLimCount = 0, bLimSum = 0, rLimSum = 0;
+		for (int i = from; i < to; i++) {
+			int b = blue[i] & 0xffff;
+			int r = red[i] & 0xffff;
+			boolean isBlue = b >= thresholdBlue;
+			boolean isRed = r >= thresholdRed;
+			if (isBlue) bCount++;
+			if (isRed) rCount++;
+			if (isBlue && isRed) cCount++;
+			if (b >= limitBlue) {
+				bLimCount++;
+				bLimSum += b;
+			}
+			if (r >= limitRed) {
+				rLimCount++;
+				rLimSum += r;
+			}
+			int m = maskOffset + i - from;
+			if (blueMask != null) blueMask[m] = isBlue ? ThresholdColocKernel.FOREGROUND : 0;
+			if (redMask != null) redMask[m] = isRed ? ThresholdColocKernel.FOREGROUND : 0;
+			if (colocMask != null) colocMask[m] = isBlue && isRed ? ThresholdColocKernel.FOREGROUND : 0;
+			if (allColorsMask != null) allColorsMask[m] = isBlue || isRed ? ThresholdColocKernel.FOREGROUND : 0;
+		}
+		ThresholdColocLoops.add(counts, bCount, rCount, cCount, bLimCount, rLimCount, bLimSum, rLimSum);
+	}
+}
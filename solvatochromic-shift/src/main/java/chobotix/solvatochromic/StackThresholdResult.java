@@ -0,0 +1,145 @@
+package chobotix.solvatochromic;
+
+import chobotix.core.ResultCache;
+
+/**
+ * Threshold and colocalization results of all Z slices and timepoints of a file, with two stack aggregates:
+ * the sum (counts of all planes pooled, as if the planes were one big image) and the maximum intensity projection.
+ * <p>
+ * A result of a single plane analysis has one plane and no aggregates.
+ * All planes and aggregates are measured with the same thresholds, chosen for the file when they are computed automatically.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class StackThresholdResult {
+	/**
+	 * Lossless text form of results for the {@link ResultCache}, {@code slices;frames;planes...;sum;max}.
+	 * A single plane result is encoded as the plane alone, the same as {@link ThresholdColocResult#CACHE_CODEC}.
+	 * Known thresholds are prepended as {@code Tblue,red/}, results cached before they were recorded decode without them.
+	 */
+	public static final ResultCache.Codec<StackThresholdResult> CACHE_CODEC = new ResultCache.Codec<StackThresholdResult>() {
+		@Override
+		public String encode(StackThresholdResult r) {
+			StringBuilder sb = new StringBuilder();
+			if (r.hasThresholds())
+				sb.append('T').append(r.thresholdBlue).append(',').append(r.thresholdRed).append('/');
+			if (!r.isStack())
+				return sb.append(ThresholdColocResult.CACHE_CODEC.encode(r.planes[0])).toString();
+			sb.append(r.slices).append(';').append(r.frames);
+			for (ThresholdColocResult plane : r.planes)
+				sb.append(';').append(ThresholdColocResult.CACHE_CODEC.encode(plane));
+			sb.append(';').append(ThresholdColocResult.CACHE_CODEC.encode(r.sum));
+			sb.append(';').append(ThresholdColocResult.CACHE_CODEC.encode(r.max));
+			return sb.toString();
+		}
+
+		@Override
+		public StackThresholdResult decode(String encoded) {
+			int thresholdBlue = UNKNOWN, thresholdRed = UNKNOWN;
+			if (encoded.startsWith("T")) {
+				int comma = encoded.indexOf(','), slash = encoded.indexOf('/');
+				if (comma < 0 || slash < comma)
+					throw new IllegalArgumentException("Incomplete thresholds: " + encoded);
+				thresholdBlue = Integer.parseInt(encoded.substring(1, comma));
+				thresholdRed = Integer.parseInt(encoded.substring(comma + 1, slash));
+				encoded = encoded.substring(slash + 1);
+			}
+			String[] parts = encoded.split(";");
+			if (parts.length == 1)
+				return ofPlane(ThresholdColocResult.CACHE_CODEC.decode(encoded), thresholdBlue, thresholdRed);
+			int slices = Integer.parseInt(parts[0]);
+			int frames = Integer.parseInt(parts[1]);
+			if (slices <= 0 || frames <= 0 || parts.length != 4 + slices * frames)
+				throw new IllegalArgumentException((parts.length - 4) + " encoded planes for " + slices + " slices and " + frames + " frames");
+			ThresholdColocResult[] planes = new ThresholdColocResult[slices * frames];
+			for (int i = 0; i < planes.length; i++)
+				planes[i] = ThresholdColocResult.CACHE_CODEC.decode(parts[2 + i]);
+			return new StackThresholdResult(slices, frames, planes,
+					ThresholdColocResult.CACHE_CODEC.decode(parts[2 + planes.length]),
+					ThresholdColocResult.CACHE_CODEC.decode(parts[3 + planes.length]), thresholdBlue, thresholdRed);
+		}
+	};
+
+	/** Threshold of a result cached before thresholds were recorded. */
+	public static final int UNKNOWN = -1;
+
+	private final int slices;
+	private final int frames;
+	private final ThresholdColocResult[] planes;
+	private final ThresholdColocResult sum;
+	private final ThresholdColocResult max;
+	private final int thresholdBlue;
+	private final int thresholdRed;
+
+	/** @param planes results of planes, the slice index changes fastest */
+	public StackThresholdResult(int slices, int frames, ThresholdColocResult[] planes, ThresholdColocResult sum, ThresholdColocResult max) {
+		this(slices, frames, planes, sum, max, UNKNOWN, UNKNOWN);
+	}
+
+	/** Result measured with the thresholds, {@link #UNKNOWN} when they are not known. */
+	public StackThresholdResult(int slices, int frames, ThresholdColocResult[] planes, ThresholdColocResult sum, ThresholdColocResult max,
+								int thresholdBlue, int thresholdRed) {
+		if (planes.length != slices * frames)
+			throw new IllegalArgumentException(planes.length + " plane results for " + slices + " slices and " + frames + " frames.");
+		this.slices = slices;
+		this.frames = frames;
+		this.planes = planes;
+		this.sum = sum;
+		this.max = max;
+		this.thresholdBlue = thresholdBlue;
+		this.thresholdRed = thresholdRed;
+	}
+
+	/** Result of the single measured plane. */
+	public static StackThresholdResult ofPlane(ThresholdColocResult plane) {
+		return ofPlane(plane, UNKNOWN, UNKNOWN);
+	}
+
+	/** Result of the single measured plane measured with the thresholds. */
+	public static StackThresholdResult ofPlane(ThresholdColocResult plane, int thresholdBlue, int thresholdRed) {
+		return new StackThresholdResult(1, 1, new ThresholdColocResult[]{plane}, null, null, thresholdBlue, thresholdRed);
+	}
+
+	/** Whether the thresholds the result was measured with are known. */
+	public boolean hasThresholds() {
+		return thresholdBlue != UNKNOWN && thresholdRed != UNKNOWN;
+	}
+
+	/** Blue threshold the result was measured with, {@link #UNKNOWN} for results cached before thresholds were recorded. */
+	public int getThresholdBlue() {
+		return thresholdBlue;
+	}
+
+	/** Red threshold the result was measured with, {@link #UNKNOWN} for results cached before thresholds were recorded. */
+	public int getThresholdRed() {
+		return thresholdRed;
+	}
+
+	/** Whether all planes were analyzed, i.e. there are aggregates. */
+	public boolean isStack() {
+		return sum != null;
+	}
+
+	public int getSlices() {
+		return slices;
+	}
+
+	public int getFrames() {
+		return frames;
+	}
+
+	/** Result of a plane, indexes are 0-based. */
+	public ThresholdColocResult getPlane(int slice, int frame) {
+		return planes[frame * slices + slice];
+	}
+
+	/** Counts of all planes pooled, null for a single plane result. */
+	public ThresholdColocResult getSum() {
+		return sum;
+	}
+
+	/** Result of the maximum intensity projections of both channels, null for a single plane result. */
+	public ThresholdColocResult getMax() {
+		return max;
+	}
+}
@@ -0,0 +1,327 @@
+package chobotix.solvatochromic;
+
+import chobotix.core.MaskExporter;
+import chobotix.core.PlaneAnalyzer;
+import chobotix.core.PlaneReader;
+import chobotix.core.PlaneStrip;
+import chobotix.core.RunMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Threshold and colocalization analysis of {@code BlueRedYellowArea} as a stage of a {@link chobotix.core.FilePipeline}.
+ * <p>
+ * Blue is the first channel, red the second one, the third channel is not decoded at all. Only the first plane
+ * is measured, or with all planes every Z slice and timepoint, all planes pooled and the maximum intensity projection,
+ * built from the same strips. Masks of the first plane are queued for export, they are not built at all
+ * when the export is off.
+ * </p>
+ * <p>
+ * With an automatic {@link ThresholdMethod} only one histogram per channel of all the measured planes is counted
+ * as the strips come, the thresholds of the file are chosen from them and the planes are measured afterwards:
+ * the first plane is kept until then, with all planes their strips are read again, which decodes them a second time
+ * unless the reader reads through a {@link chobotix.core.PlaneCache}. The second pass runs in {@link FileAnalysis#finish()},
+ * still within the memory admitted for the file, in strips of the same height as the first one.
+ * Only the first plane of the single plane analysis is kept whole.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class ThresholdColocAnalyzer implements PlaneAnalyzer<StackThresholdResult> {
+	private static final int[] CHANNELS = {0, 1};
+	private static final int[] NONE = {};
+	private static final int LEVELS = 65536;
+
+	private final int thresholdBlue;
+	private final int thresholdRed;
+	private final boolean allPlanes;
+	private final MaskExporter exporter;
+	private final ThresholdMethod method;
+	private final double percentile;
+
+	public ThresholdColocAnalyzer(int thresholdBlue, int thresholdRed, boolean allPlanes, MaskExporter exporter) {
+		this(thresholdBlue, thresholdRed, allPlanes, exporter, ThresholdMethod.FIXED, 0);
+	}
+
+	/**
+	 * @param thresholdBlue thresholds of {@link ThresholdMethod#FIXED}
+	 * @param percentile    percentile of {@link ThresholdMethod#PERCENTILE}
+	 */
+	public ThresholdColocAnalyzer(int thresholdBlue, int thresholdRed, boolean allPlanes, MaskExporter exporter,
+								  ThresholdMethod method, double percentile) {
+		this.thresholdBlue = thresholdBlue;
+		this.thresholdRed = thresholdRed;
+		this.allPlanes = allPlanes;
+		this.exporter = exporter;
+		this.method = method;
+		this.percentile = percentile;
+	}
+
+	@Override
+	public FileAnalysis<StackThresholdResult> begin(PlaneReader reader) {
+		System.out.println("Processing " + (allPlanes ? "all planes of " : "") + reader.getFile().getName() + "...");
+		return method.isFixed() ? new Analysis(reader) : new AdaptiveAnalysis(reader);
+	}
+
+	/** Masks of the first plane, projections and with an automatic method the histograms and the kept first plane. */
+	@Override
+	public long estimateBytes(PlaneReader reader) {
+		long pixels = (long) reader.getWidth() * reader.getHeight();
+		long bytes = exporter.isEnabled() ? 4 * pixels : 0;
+		if (allPlanes)
+			bytes += 2 * 2 * pixels;
+		if (!method.isFixed())
+			bytes += allPlanes ? 2 * 4 * LEVELS * (ForkJoinPool.getCommonPoolParallelism() + 1) : 2 * 4 * LEVELS + 2 * 2 * pixels;
+		return bytes;
+	}
+
+	private class Analysis implements FileAnalysis<StackThresholdResult> {
+		private final File file;
+		private final int width;
+		private final int height;
+		private final int slices;
+		private final int frames;
+		private final ThresholdColocKernel[] kernels;
+		private final ThresholdColocKernel maxKernel = new ThresholdColocKernel(thresholdBlue, thresholdRed);
+		/** Masks of the first plane, allocated by its first strip when the export is on. */
+		private byte[][] masks;
+		/** Maximum intensity projections of the current strip, null until its first plane comes. */
+		private short[] maxBlue;
+		private short[] maxRed;
+
+		Analysis(PlaneReader reader) {
+			file = reader.getFile();
+			width = reader.getWidth();
+			height = reader.getHeight();
+			slices = allPlanes ? reader.getSlices() : 1;
+			frames = allPlanes ? reader.getFrames() : 1;
+			kernels = new ThresholdColocKernel[slices * frames];
+			for (int p = 0; p < kernels.length; p++)
+				kernels[p] = new ThresholdColocKernel(thresholdBlue, thresholdRed);
+		}
+
+		@Override
+		public int[] channels(int slice, int frame) {
+			return allPlanes || slice == 0 && frame == 0 ? CHANNELS : NONE;
+		}
+
+		@Override
+		public int bufferedStrips() {
+			return allPlanes ? 2 : 0;
+		}
+
+		@Override
+		public void accept(PlaneStrip strip) {
+			RunMetrics.FileRecord fileMetrics = RunMetrics.current();
+			long start = fileMetrics.start();
+			int p = strip.getFrame() * slices + strip.getSlice();
+			short[] blue = strip.getPixels(0);
+			short[] red = strip.getPixels(1);
+			if (p == 0 && masks == null && exporter.isEnabled())
+				masks = new byte[4][width * height];
+			if (p == 0 && masks != null)
+				kernels[p].accumulate(blue, red, masks[0], masks[1], masks[2], masks[3], strip.getOffset());
+			else
+				kernels[p].accumulate(blue, red);
+			if (allPlanes) {
+				synchronized (this) {
+					if (maxBlue == null) {
+						maxBlue = new short[blue.length];
+						maxRed = new short[red.length];
+					}
+					maxInto(maxBlue, blue);
+					maxInto(maxRed, red);
+				}
+			}
+			fileMetrics.stop(RunMetrics.Stage.THRESHOLD, start);
+		}
+
+		@Override
+		public synchronized void endStrip(int y, int rows) {
+			if (maxBlue == null)
+				return;
+			RunMetrics.FileRecord fileMetrics = RunMetrics.current();
+			long start = fileMetrics.start();
+			maxKernel.accumulate(maxBlue, maxRed);
+			maxBlue = null;
+			maxRed = null;
+			fileMetrics.stop(RunMetrics.Stage.THRESHOLD, start);
+		}
+
+		@Override
+		public StackThresholdResult finish() {
+			if (masks != null)
+				exportMasks(file, width, height, masks, thresholdBlue, thresholdRed);
+			return result(slices, frames, kernels, maxKernel);
+		}
+	}
+
+	/**
+	 * Analysis with thresholds chosen from the file's own histograms, the planes are measured once all of them came:
+	 * the first plane from memory, all planes from their strips read again, the reader is open until {@link #finish()}.
+	 */
+	private class AdaptiveAnalysis implements FileAnalysis<StackThresholdResult> {
+		private final PlaneReader reader;
+		private final int width;
+		private final int height;
+		private final int slices;
+		private final int frames;
+		/** Full 16-bit histograms of the blue and red channel counted by each thread, summed by {@link #finish()}. */
+		private final Map<Thread, int[][]> histograms = new ConcurrentHashMap<>();
+		/** The first plane, allocated by its first strip, null with all planes. */
+		private short[] firstBlue;
+		private short[] firstRed;
+		/** The strips the planes came in as {y, rows}, they are read again in the same strips. */
+		private final List<int[]> strips = new ArrayList<>();
+
+		AdaptiveAnalysis(PlaneReader reader) {
+			this.reader = reader;
+			width = reader.getWidth();
+			height = reader.getHeight();
+			slices = allPlanes ? reader.getSlices() : 1;
+			frames = allPlanes ? reader.getFrames() : 1;
+		}
+
+		@Override
+		public int[] channels(int slice, int frame) {
+			return allPlanes || slice == 0 && frame == 0 ? CHANNELS : NONE;
+		}
+
+		@Override
+		public void accept(PlaneStrip strip) {
+			RunMetrics.FileRecord fileMetrics = RunMetrics.current();
+			long start = fileMetrics.start();
+			int[][] histogram = histograms.computeIfAbsent(Thread.currentThread(), thread -> new int[2][LEVELS]);
+			short[] blue = strip.getPixels(0);
+			short[] red = strip.getPixels(1);
+			addToHistogram(histogram[0], blue);
+			addToHistogram(histogram[1], red);
+			if (!allPlanes) {
+				if (firstBlue == null) {
+					firstBlue = new short[width * height];
+					firstRed = new short[width * height];
+				}
+				System.arraycopy(blue, 0, firstBlue, strip.getOffset(), blue.length);
+				System.arraycopy(red, 0, firstRed, strip.getOffset(), red.length);
+			}
+			fileMetrics.stop(RunMetrics.Stage.THRESHOLD, start);
+		}
+
+		@Override
+		public void endStrip(int y, int rows) {
+			strips.add(new int[]{y, rows});
+		}
+
+		@Override
+		public StackThresholdResult finish() throws IOException {
+			RunMetrics.FileRecord fileMetrics = RunMetrics.current();
+			long start = fileMetrics.start();
+			int[] blueHistogram = new int[LEVELS], redHistogram = new int[LEVELS];
+			for (int[][] histogram : histograms.values()) {
+				for (int v = 0; v < LEVELS; v++) {
+					blueHistogram[v] += histogram[0][v];
+					redHistogram[v] += histogram[1][v];
+				}
+			}
+			int blueThreshold = method.threshold(blueHistogram, thresholdBlue, percentile);
+			int redThreshold = method.threshold(redHistogram, thresholdRed, percentile);
+			System.out.println("Thresholds of " + reader.getFile().getName() + " by " + method + ": blue " + blueThreshold + ", red " + redThreshold);
+			byte[][] masks = exporter.isEnabled() ? new byte[4][width * height] : new byte[4][];
+			ThresholdColocKernel[] kernels = new ThresholdColocKernel[slices * frames];
+			for (int p = 0; p < kernels.length; p++)
+				kernels[p] = new ThresholdColocKernel(blueThreshold, redThreshold);
+			ThresholdColocKernel maxKernel = new ThresholdColocKernel(blueThreshold, redThreshold);
+			if (firstBlue != null)
+				kernels[0].accumulate(firstBlue, firstRed, masks[0], masks[1], masks[2], masks[3]);
+			fileMetrics.stop(RunMetrics.Stage.THRESHOLD, start);
+			if (allPlanes)
+				measureStrips(kernels, maxKernel, masks);
+			if (exporter.isEnabled())
+				exportMasks(reader.getFile(), width, height, masks, blueThreshold, redThreshold);
+			return result(slices, frames, kernels, maxKernel);
+		}
+
+		/** Reads the strips of all the planes again, measures them, fills the masks of the first plane and measures the projection. */
+		private void measureStrips(ThresholdColocKernel[] kernels, ThresholdColocKernel maxKernel, byte[][] masks) throws IOException {
+			RunMetrics.FileRecord fileMetrics = RunMetrics.current();
+			for (int[] strip : strips) {
+				short[] maxBlue = null, maxRed = null;
+				for (int p = 0; p < kernels.length; p++) {
+					short[] blue = reader.readShorts(0, p % slices, p / slices, strip[0], strip[1]);
+					short[] red = reader.readShorts(1, p % slices, p / slices, strip[0], strip[1]);
+					long start = fileMetrics.start();
+					if (p == 0)
+						kernels[p].accumulate(blue, red, masks[0], masks[1], masks[2], masks[3], strip[0] * width);
+					else
+						kernels[p].accumulate(blue, red);
+					if (maxBlue == null) {
+						maxBlue = blue;
+						maxRed = red;
+					} else {
+						maxInto(maxBlue, blue);
+						maxInto(maxRed, red);
+					}
+					fileMetrics.stop(RunMetrics.Stage.THRESHOLD, start);
+				}
+				long start = fileMetrics.start();
+				maxKernel.accumulate(maxBlue, maxRed);
+				fileMetrics.stop(RunMetrics.Stage.THRESHOLD, start);
+			}
+		}
+	}
+
+	/** Result of the measured planes, with the Sum and Max aggregates when all planes are analyzed. */
+	private StackThresholdResult result(int slices, int frames, ThresholdColocKernel[] kernels, ThresholdColocKernel maxKernel) {
+		int blueThreshold = maxKernel.getThresholdBlue(), redThreshold = maxKernel.getThresholdRed();
+		if (!allPlanes)
+			return StackThresholdResult.ofPlane(kernels[0].result(), blueThreshold, redThreshold);
+		RunMetrics.FileRecord fileMetrics = RunMetrics.current();
+		long start = fileMetrics.start();
+		ThresholdColocKernel sumKernel = new ThresholdColocKernel(blueThreshold, redThreshold);
+		ThresholdColocResult[] planes = new ThresholdColocResult[kernels.length];
+		for (int p = 0; p < kernels.length; p++) {
+			sumKernel.add(kernels[p]);
+			planes[p] = kernels[p].result();
+		}
+		fileMetrics.stop(RunMetrics.Stage.MEASURE, start);
+		return new StackThresholdResult(slices, frames, planes, sumKernel.result(), maxKernel.result(), blueThreshold, redThreshold);
+	}
+
+	private static void addToHistogram(int[] histogram, short[] pixels) {
+		for (short value : pixels)
+			histogram[value & 0xffff]++;
+	}
+
+	/** Keeps the larger of the unsigned 16-bit values in {@code max}. */
+	private static void maxInto(short[] max, short[] plane) {
+		maxInto(max, plane, 0);
+	}
+
+	/** Keeps the larger of the unsigned 16-bit values in {@code max}, pixel {@code i} of the plane goes to {@code offset + i}. */
+	private static void maxInto(short[] max, short[] plane, int offset) {
+		for (int i = 0; i < plane.length; i++)
+			if ((plane[i] & 0xffff) > (max[offset + i] & 0xffff))
+				max[offset + i] = plane[i];
+	}
+
+	private void exportMasks(File oibFile, int width, int height, byte[][] masks, int blueThreshold, int redThreshold) {
+		RunMetrics.FileRecord fileMetrics = RunMetrics.current();
+		long start = fileMetrics.start();
+		String[] paths = maskPaths(oibFile, blueThreshold, redThreshold);
+		for (int i = 0; i < paths.length; i++)
+			exporter.export(masks[i], width, height, paths[i]);
+		fileMetrics.stop(RunMetrics.Stage.EXPORT, start);
+	}
+
+	/** Paths of the blue, red, coloc and all colors masks of the file without the extension of the mask format. */
+	public static String[] maskPaths(File oibFile, int blueThreshold, int redThreshold) {
+		String basePath = oibFile.getPath().substring(0, oibFile.getPath().lastIndexOf('.'));
+		return new String[]{basePath + "_Blue_TH-" + blueThreshold, basePath + "_Red_TH-" + redThreshold,
+				basePath + "_Coloc-" + redThreshold, basePath + "_AllColors-" + redThreshold};
+	}
+}
@@ -0,0 +1,130 @@
+package chobotix.solvatochromic;
+
+/**
+ * Single pass threshold and colocalization measurement of a blue and a red 16-bit plane.
+ * <p>
+ * Gives the same numbers as the original chain of "Convert to Mask", {@code ImageCalculator} AND/OR and
+ * {@code Analyzer} measurements in {@code BlueRedYellowArea.processFileTH}, but reads each pixel array only once
+ * and does not create any intermediate image. The pixel loops are in {@link ThresholdColocLoops}, vectorized on Java 17+.
+ * A pixel counts into a channel's %Area when its raw value is at or above the channel threshold,
+ * the limited mean takes pixels at or above half of the threshold (the former "mean limit" measurement).
+ * </p>
+ * <p>
+ * Counts are accumulated, so the kernel can be fed by several planes or strips before calling {@link #result()}.
+ * Instances are not thread-safe, use one per thread and {@link #add(ThresholdColocKernel)} them afterwards.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class ThresholdColocKernel {
+	/** Value of a foreground pixel in exported masks, as produced by "Convert to Mask". */
+	public static final byte FOREGROUND = (byte) 255;
+
+	private final int thresholdBlue;
+	private final int thresholdRed;
+	private final int limitBlue;
+	private final int limitRed;
+
+	private long pixelCount;
+	private long blueCount;
+	private long redCount;
+	private long colocCount;
+	private long blueLimitedCount;
+	private long redLimitedCount;
+	private long blueLimitedSum;
+	private long redLimitedSum;
+
+	public ThresholdColocKernel(int thresholdBlue, int thresholdRed) {
+		this.thresholdBlue = thresholdBlue;
+		this.thresholdRed = thresholdRed;
+		this.limitBlue = thresholdBlue / 2;
+		this.limitRed = thresholdRed / 2;
+	}
+
+	public int getThresholdBlue() {
+		return thresholdBlue;
+	}
+
+	public int getThresholdRed() {
+		return thresholdRed;
+	}
+
+	/** Accumulates whole planes, both arrays have to be of the same length. */
+	public void accumulate(short[] blue, short[] red) {
+		accumulate(blue, red, 0, blue.length);
+	}
+
+	/** Accumulates pixels {@code from} (inclusive) to {@code to} (exclusive) of both planes. */
+	public void accumulate(short[] blue, short[] red, int from, int to) {
+		checkLengths(blue, red);
+		long[] counts = new long[ThresholdColocLoops.COUNTS];
+		ThresholdColocLoops.count(blue, red, from, to, thresholdBlue, thresholdRed, limitBlue, limitRed, counts);
+		addCounts(to - from, counts);
+	}
+
+	/**
+	 * Accumulates whole planes and in the same pass fills the binary masks (255 foreground, 0 background)
+	 * of the blue channel, red channel, their AND and their OR. Any of the masks may be null.
+	 */
+	public void accumulate(short[] blue, short[] red, byte[] blueMask, byte[] redMask, byte[] colocMask, byte[] allColorsMask) {
+		accumulate(blue, red, blueMask, redMask, colocMask, allColorsMask, 0);
+	}
+
+	/**
+	 * Accumulates a strip of both planes and fills its part of whole-plane masks, pixel {@code i} of the strip
+	 * goes to mask index {@code maskOffset + i}. Any of the masks may be null.
+	 */
+	public void accumulate(short[] blue, short[] red, byte[] blueMask, byte[] redMask, byte[] colocMask, byte[] allColorsMask, int maskOffset) {
+		checkLengths(blue, red);
+		long[] counts = new long[ThresholdColocLoops.COUNTS];
+		ThresholdColocLoops.countAndMask(blue, red, 0, blue.length, thresholdBlue, thresholdRed, limitBlue, limitRed, counts,
+				blueMask, redMask, colocMask, allColorsMask, maskOffset);
+		addCounts(blue.length, counts);
+	}
+
+	/** Adds counts of another kernel with the same thresholds, e.g. one filled by another thread. */
+	public void add(ThresholdColocKernel other) {
+		if (other.thresholdBlue != thresholdBlue || other.thresholdRed != thresholdRed)
+			throw new IllegalArgumentException("Cannot add kernels with different thresholds.");
+		addCounts(other.pixelCount, other.blueCount, other.redCount, other.colocCount,
+				other.blueLimitedCount, other.redLimitedCount, other.blueLimitedSum, other.redLimitedSum);
+	}
+
+	public long getPixelCount() {
+		return pixelCount;
+	}
+
+	public ThresholdColocResult result() {
+		double orCount = blueCount + redCount - colocCount;
+		return new ThresholdColocResult(percentage(blueCount), percentage(redCount), percentage(colocCount),
+				percentage(orCount),
+				blueLimitedCount == 0 ? Double.NaN : (double) blueLimitedSum / blueLimitedCount,
+				redLimitedCount == 0 ? Double.NaN : (double) redLimitedSum / redLimitedCount);
+	}
+
+	private void addCounts(long pixels, long[] counts) {
+		addCounts(pixels, counts[ThresholdColocLoops.BLUE], counts[ThresholdColocLoops.RED], counts[ThresholdColocLoops.COLOC],
+				counts[ThresholdColocLoops.BLUE_LIMITED], counts[ThresholdColocLoops.RED_LIMITED],
+				counts[ThresholdColocLoops.BLUE_LIMITED_SUM], counts[ThresholdColocLoops.RED_LIMITED_SUM]);
+	}
+
+	private double percentage(double count) {
+		return pixelCount == 0 ? Double.NaN : count * 100.0 / pixelCount;
+	}
+
+	private void addCounts(long pixels, long bCount, long rCount, long cCount,
+						   long bLimCount, long rLimCount, long bLimSum, long rLimSum) {
+		pixelCount += pixels;
+		blueCount += bCount;
+		redCount += rCount;
+		colocCount += cCount;
+		blueLimitedCount += bLimCount;
+		redLimitedCount += rLimCount;
+		blueLimitedSum += bLimSum;
+		redLimitedSum += rLimSum;
+	}
+
+	private static void checkLengths(short[] blue, short[] red) {
+		if (blue.length != red.length)
+			throw new IllegalArgumentException("Blue and red planes differ in size: " + blue.length + " != " + red.length);
+	}
+}
@@ -0,0 +1,78 @@
+package chobotix.solvatochromic;
+
+import chobotix.core.ResultCache;
+
+/**
+ * Area fractions and limited means of one blue/red plane pair, as computed by {@link ThresholdColocKernel}.
+ * <p>
+ * All percentages are relative to the number of measured pixels, means are raw (uncalibrated) gray values.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class ThresholdColocResult {
+	/** Lossless text form of results for the {@link ResultCache}. */
+	public static final ResultCache.Codec<ThresholdColocResult> CACHE_CODEC = new ResultCache.Codec<ThresholdColocResult>() {
+		@Override
+		public String encode(ThresholdColocResult r) {
+			return ResultCache.encodeDoubles(r.bluePercentage, r.redPercentage, r.colocPercentage, r.allColorsPercentage, r.meanBlue, r.meanRed);
+		}
+
+		@Override
+		public ThresholdColocResult decode(String encoded) {
+			double[] v = ResultCache.decodeDoubles(encoded, 6);
+			return new ThresholdColocResult(v[0], v[1], v[2], v[3], v[4], v[5]);
+		}
+	};
+
+	private final double bluePercentage;
+	private final double redPercentage;
+	private final double colocPercentage;
+	private final double allColorsPercentage;
+	private final double meanBlue;
+	private final double meanRed;
+
+	public ThresholdColocResult(double bluePercentage, double redPercentage, double colocPercentage,
+								double allColorsPercentage, double meanBlue, double meanRed) {
+		this.bluePercentage = bluePercentage;
+		this.redPercentage = redPercentage;
+		this.colocPercentage = colocPercentage;
+		this.allColorsPercentage = allColorsPercentage;
+		this.meanBlue = meanBlue;
+		this.meanRed = meanRed;
+	}
+
+	/** Percentage of pixels with blue value at or above the blue threshold. */
+	public double getBluePercentage() {
+		return bluePercentage;
+	}
+
+	/** Percentage of pixels with red value at or above the red threshold. */
+	public double getRedPercentage() {
+		return redPercentage;
+	}
+
+	/** Percentage of pixels above both thresholds (the former "AND create" mask). */
+	public double getColocPercentage() {
+		return colocPercentage;
+	}
+
+	/** Percentage of pixels above at least one threshold (the former "OR create" mask). */
+	public double getAllColorsPercentage() {
+		return allColorsPercentage;
+	}
+
+	/** Percentage of pixels below both thresholds. */
+	public double getDarkPercentage() {
+		return 100 - allColorsPercentage;
+	}
+
+	/** Mean blue value of pixels at or above half of the blue threshold, NaN if there are none. */
+	public double getMeanBlue() {
+		return meanBlue;
+	}
+
+	/** Mean red value of pixels at or above half of the red threshold, NaN if there are none. */
+	public double getMeanRed() {
+		return meanRed;
+	}
+}
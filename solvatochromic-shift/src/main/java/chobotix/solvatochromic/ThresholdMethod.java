@@ -0,0 +1,86 @@
+package chobotix.solvatochromic;
+
+import ij.process.AutoThresholder;
+
+/**
+ * How the threshold of a channel is chosen for each file: the fixed threshold given by the user,
+ * or one computed from the histogram of the file's measured planes, which follows intensity drift between imaging sessions.
+ * <p>
+ * The automatic methods are those of ImageJ's "Auto Threshold" with a dark background, applied the way ImageJ applies them
+ * to 16-bit images: the histogram is binned into 256 bins between the minimum and the maximum of the channel and the
+ * level found is scaled back to a raw value. The percentile method works on the full 16-bit histogram.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public enum ThresholdMethod {
+	FIXED(null), DEFAULT(AutoThresholder.Method.Default), OTSU(AutoThresholder.Method.Otsu),
+	TRIANGLE(AutoThresholder.Method.Triangle), LI(AutoThresholder.Method.Li), PERCENTILE(null);
+
+	private static final int LEVELS = 65536;
+	private static final int BINS = 256;
+
+	private final AutoThresholder.Method method;
+
+	ThresholdMethod(AutoThresholder.Method method) {
+		this.method = method;
+	}
+
+	public boolean isFixed() {
+		return this == FIXED;
+	}
+
+	public static String[] names() {
+		ThresholdMethod[] methods = values();
+		String[] names = new String[methods.length];
+		for (int i = 0; i < methods.length; i++)
+			names[i] = methods[i].name();
+		return names;
+	}
+
+	/**
+	 * Threshold of a channel, pixels at or above it are foreground.
+	 * @param histogram  full 16-bit histogram of the channel
+	 * @param fixed      threshold of {@link #FIXED}
+	 * @param percentile percentile of {@link #PERCENTILE}, e.g. 95 makes at most 5 % of the pixels foreground
+	 */
+	public int threshold(int[] histogram, int fixed, double percentile) {
+		if (histogram.length != LEVELS)
+			throw new IllegalArgumentException("Histogram has to have " + LEVELS + " levels, not " + histogram.length);
+		if (this == FIXED)
+			return fixed;
+		if (this == PERCENTILE)
+			return percentileThreshold(histogram, percentile);
+		int min = 0, max = LEVELS - 1;
+		while (min < max && histogram[min] == 0)
+			min++;
+		while (max > min && histogram[max] == 0)
+			max--;
+		if (min == max)
+			return Math.min(max + 1, LEVELS - 1);
+		//the same binning as ImageJ's statistics of 16-bit images
+		int[] bins = new int[BINS];
+		double scale = BINS / (double) (max - min);
+		for (int value = min; value <= max; value++)
+			bins[Math.min(BINS - 1, (int) (scale * (value - min)))] += histogram[value];
+		int level = new AutoThresholder().getThreshold(method, bins);
+		//dark background: bins above the level are foreground
+		return (int) Math.min(LEVELS - 1, Math.ceil(min + (level + 1) * (max - min) / (double) (BINS - 1)));
+	}
+
+	/** Lowest value with at least the percentile of pixels below it. */
+	private static int percentileThreshold(int[] histogram, double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("Percentile has to be within 0-100: " + percentile);
+		long pixels = 0;
+		for (int count : histogram)
+			pixels += count;
+		double below = pixels * percentile / 100;
+		long count = 0;
+		for (int value = 0; value < LEVELS; value++) {
+			if (count >= below)
+				return value;
+			count += histogram[value];
+		}
+		return LEVELS - 1;
+	}
+}
@@ -0,0 +1,170 @@
+package chobotix.solvatochromic;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * Evaluates a whole grid of blue/red threshold pairs from histograms, so a file's pixels are read only once
+ * no matter how many thresholds are tried.
+ * <p>
+ * {@link Histograms} collects full 16-bit histograms of both channels (for %Area and the limited means)
+ * and a compact joint blue&times;red histogram whose bins are the intervals between the candidate thresholds
+ * (for the AND/OR areas). For every pair of candidates the results are exactly those of
+ * {@link ThresholdColocKernel} with the same thresholds.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class ThresholdSweep {
+	private static final int LEVELS = 65536;
+
+	private final int[] blueThresholds;
+	private final int[] redThresholds;
+	/** Joint histogram bin of a pixel value = number of candidate thresholds at or below the value. */
+	private final int[] blueBins;
+	private final int[] redBins;
+
+	public ThresholdSweep(int[] blueThresholds, int[] redThresholds) {
+		this.blueThresholds = sortedUnique(blueThresholds);
+		this.redThresholds = sortedUnique(redThresholds);
+		blueBins = bins(this.blueThresholds);
+		redBins = bins(this.redThresholds);
+	}
+
+	public int[] getBlueThresholds() {
+		return blueThresholds.clone();
+	}
+
+	public int[] getRedThresholds() {
+		return redThresholds.clone();
+	}
+
+	public Histograms newHistograms() {
+		return new Histograms();
+	}
+
+	/**
+	 * Results for all threshold pairs, indexed [blue threshold][red threshold] in the order of
+	 * {@link #getBlueThresholds()} and {@link #getRedThresholds()}.
+	 */
+	public ThresholdColocResult[][] evaluate(Histograms h) {
+		long[] blueCount = new long[LEVELS + 1], blueSum = new long[LEVELS + 1];
+		long[] redCount = new long[LEVELS + 1], redSum = new long[LEVELS + 1];
+		suffixSums(h.blue, blueCount, blueSum);
+		suffixSums(h.red, redCount, redSum);
+
+		//2D suffix sums of the joint histogram: coloc[i][j] = pixels in blue bin >= i and red bin >= j
+		int nb = blueThresholds.length + 1, nr = redThresholds.length + 1;
+		long[][] coloc = new long[nb + 1][nr + 1];
+		for (int i = nb - 1; i >= 0; i--)
+			for (int j = nr - 1; j >= 0; j--)
+				coloc[i][j] = h.joint[i * nr + j] + coloc[i + 1][j] + coloc[i][j + 1] - coloc[i + 1][j + 1];
+
+		ThresholdColocResult[][] results = new ThresholdColocResult[blueThresholds.length][redThresholds.length];
+		for (int i = 0; i < blueThresholds.length; i++) {
+			int tb = blueThresholds[i];
+			for (int j = 0; j < redThresholds.length; j++) {
+				int tr = redThresholds[j];
+				//value >= threshold k means joint bin >= k+1
+				long and = coloc[i + 1][j + 1];
+				long or = blueCount[tb] + redCount[tr] - and;
+				results[i][j] = new ThresholdColocResult(percentage(blueCount[tb], h.pixels), percentage(redCount[tr], h.pixels),
+						percentage(and, h.pixels), percentage(or, h.pixels),
+						mean(blueSum[tb / 2], blueCount[tb / 2]), mean(redSum[tr / 2], redCount[tr / 2]));
+			}
+		}
+		return results;
+	}
+
+	/** Histograms of one file, not thread-safe. */
+	public class Histograms {
+		private final int[] blue = new int[LEVELS];
+		private final int[] red = new int[LEVELS];
+		private final int[] joint = new int[(blueThresholds.length + 1) * (redThresholds.length + 1)];
+		private long pixels;
+
+		public void accumulate(short[] bluePixels, short[] redPixels) {
+			if (bluePixels.length != redPixels.length)
+				throw new IllegalArgumentException("Blue and red planes differ in size: " + bluePixels.length + " != " + redPixels.length);
+			int nr = redThresholds.length + 1;
+			for (int i = 0; i < bluePixels.length; i++) {
+				int b = bluePixels[i] & 0xffff;
+				int r = redPixels[i] & 0xffff;
+				blue[b]++;
+				red[r]++;
+				joint[blueBins[b] * nr + redBins[r]]++;
+			}
+			pixels += bluePixels.length;
+		}
+
+		public long getPixelCount() {
+			return pixels;
+		}
+	}
+
+	/**
+	 * Parses candidate thresholds, either a list ("500,750,1000") or a range with a step ("250-2000:250"),
+	 * possibly combined ("100,250-2000:250").
+	 */
+	public static int[] parseThresholds(String text) {
+		TreeSet<Integer> values = new TreeSet<>();
+		for (String part : text.split(",")) {
+			part = part.trim();
+			if (part.isEmpty())
+				continue;
+			int dash = part.indexOf('-');
+			if (dash < 0) {
+				values.add(Integer.parseInt(part));
+				continue;
+			}
+			int colon = part.indexOf(':');
+			int start = Integer.parseInt(part.substring(0, dash).trim());
+			int end = Integer.parseInt(part.substring(dash + 1, colon < 0 ? part.length() : colon).trim());
+			int step = colon < 0 ? 1 : Integer.parseInt(part.substring(colon + 1).trim());
+			if (step <= 0)
+				throw new IllegalArgumentException("Step has to be positive: " + part);
+			for (int value = start; value <= end; value += step)
+				values.add(value);
+		}
+		if (values.isEmpty())
+			throw new IllegalArgumentException("No thresholds in \"" + text + "\"");
+		int[] thresholds = new int[values.size()];
+		int i = 0;
+		for (int value : values)
+			thresholds[i++] = value;
+		return thresholds;
+	}
+
+	private static int[] sortedUnique(int[] thresholds) {
+		int[] sorted = Arrays.stream(thresholds).sorted().distinct().toArray();
+		if (sorted.length == 0 || sorted[0] < 0 || sorted[sorted.length - 1] >= LEVELS)
+			throw new IllegalArgumentException("Thresholds have to be within 0-65535: " + Arrays.toString(thresholds));
+		return sorted;
+	}
+
+	private static int[] bins(int[] thresholds) {
+		int[] bins = new int[LEVELS];
+		int bin = 0;
+		for (int value = 0; value < LEVELS; value++) {
+			while (bin < thresholds.length && thresholds[bin] <= value)
+				bin++;
+			bins[value] = bin;
+		}
+		return bins;
+	}
+
+	/** count[v] and sum[v] of all pixels with value >= v. */
+	private static void suffixSums(int[] histogram, long[] count, long[] sum) {
+		for (int value = LEVELS - 1; value >= 0; value--) {
+			count[value] = count[value + 1] + histogram[value];
+			sum[value] = sum[value + 1] + (long) histogram[value] * value;
+		}
+	}
+
+	private static double percentage(long count, long pixels) {
+		return pixels == 0 ? Double.NaN : count * 100.0 / pixels;
+	}
+
+	private static double mean(long sum, long count) {
+		return count == 0 ? Double.NaN : (double) sum / count;
+	}
+}
@@ -0,0 +1,72 @@
+package chobotix.solvatochromic;
+
+/**
+ * Pixel loops of the {@link ThresholdColocKernel}: threshold counts of both channels, counts of their AND (and so OR),
+ * and counts and sums of pixels above the mean limits, optionally filling the masks.
+ * <p>
+ * Counts are added to a {@code long[]} of {@link #COUNTS} elements, in the order blue, red, both,
+ * blue limited, red limited, blue limited sum and red limited sum.
+ * </p>
+ * <p>
+ * This is the Java 17 version of the multi-release jar. It runs {@link VectorThresholdColocLoops} when the JVM was
+ * started with {@code --add-modules jdk.incubator.vector} and the CPU has vectors of at least 8 ints,
+ * otherwise the {@link ScalarThresholdColocLoops} of Java 8. Both give the same counts.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class ThresholdColocLoops {
+	public static final int BLUE = 0;
+	public static final int RED = 1;
+	public static final int COLOC = 2;
+	public static final int BLUE_LIMITED = 3;
+	public static final int RED_LIMITED = 4;
+	public static final int BLUE_LIMITED_SUM = 5;
+	public static final int RED_LIMITED_SUM = 6;
+	public static final int COUNTS = 7;
+
+	//the vector class is only loaded when its module is present
+	private static final boolean VECTORIZED = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+			&& VectorThresholdColocLoops.isSupported();
+
+	private ThresholdColocLoops() {
+	}
+
+	/** Whether the loops run on the vector API. */
+	public static boolean isVectorized() {
+		return VECTORIZED;
+	}
+
+	/** Counts pixels {@code from} (inclusive) to {@code to} (exclusive) of both planes. */
+	public static void count(short[] blue, short[] red, int from, int to,
+							 int thresholdBlue, int thresholdRed, int limitBlue, int limitRed, long[] counts) {
+		if (VECTORIZED)
+			VectorThresholdColocLoops.count(blue, red, from, to, thresholdBlue, thresholdRed, limitBlue, limitRed, counts);
+		else
+			ScalarThresholdColocLoops.count(blue, red, from, to, thresholdBlue, thresholdRed, limitBlue, limitRed, counts);
+	}
+
+	/**
+	 * Counts pixels {@code from} (inclusive) to {@code to} (exclusive) of both planes and fills the masks,
+	 * pixel {@code i} goes to mask index {@code maskOffset + i - from}. Any of the masks may be null.
+	 */
+	public static void countAndMask(short[] blue, short[] red, int from, int to,
+									int thresholdBlue, int thresholdRed, int limitBlue, int limitRed, long[] counts,
+									byte[] blueMask, byte[] redMask, byte[] colocMask, byte[] allColorsMask, int maskOffset) {
+		if (VECTORIZED)
+			VectorThresholdColocLoops.countAndMask(blue, red, from, to, thresholdBlue, thresholdRed, limitBlue, limitRed, counts,
+					blueMask, redMask, colocMask, allColorsMask, maskOffset);
+		else
+			ScalarThresholdColocLoops.countAndMask(blue, red, from, to, thresholdBlue, thresholdRed, limitBlue, limitRed, counts,
+					blueMask, redMask, colocMask, allColorsMask, maskOffset);
+	}
+
+	static void add(long[] counts, long bCount, long rCount, long cCount, long bLimCount, long rLimCount, long bLimSum, long rLimSum) {
+		counts[BLUE] += bCount;
+		counts[RED] += rCount;
+		counts[COLOC] += cCount;
+		counts[BLUE_LIMITED] += bLimCount;
+		counts[RED_LIMITED] += rLimCount;
+		counts[BLUE_LIMITED_SUM] += bLimSum;
+		counts[RED_LIMITED_SUM] += rLimSum;
+	}
+}
@@ -0,0 +1,117 @@
+package chobotix.solvatochromic;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Loops of {@link ThresholdColocLoops} on the incubating vector API (Java 17 version of the multi-release jar only).
+ * <p>
+ * Pixels are loaded as shorts and widened to unsigned ints, so a vector of the preferred int species is compared
+ * with the thresholds at once. Counts are the popcounts of the comparison masks, limited sums are accumulated
+ * in int lanes and moved to longs every {@link #BLOCK} pixels. Masks are stored as bytes of the same lane count.
+ * The remaining pixels of the range go through {@link ScalarThresholdColocLoops}.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+class VectorThresholdColocLoops {
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Short> SHORTS = INTS.length() >= 8 ? VectorSpecies.of(short.class, VectorShape.forBitSize(INTS.length() * Short.SIZE)) : null;
+	private static final VectorSpecies<Byte> BYTES = INTS.length() >= 8 ? VectorSpecies.of(byte.class, VectorShape.forBitSize(INTS.length() * Byte.SIZE)) : null;
+	/** Pixels summed in int lanes before moving to longs, the sum of all lanes cannot overflow: 32768 * 65535 < 2^31. */
+	private static final int BLOCK = 32768;
+
+	private VectorThresholdColocLoops() {
+	}
+
+	/** Masks are stored as vectors of at least 64 bits, i.e. at least 8 lanes are needed. */
+	static boolean isSupported() {
+		return SHORTS != null;
+	}
+
+	static void count(short[] blue, short[] red, int from, int to,
+					  int thresholdBlue, int thresholdRed, int limitBlue, int limitRed, long[] counts) {
+		long bCount = 0, rCount = 0, cCount = 0, bLimCount = 0, rLimCount = 0, bLimSum = 0, rLimSum = 0;
+		int lanes = INTS.length();
+		int upper = from + INTS.loopBound(to - from);
+		int i = from;
+		while (i < upper) {
+			int blockEnd = Math.min(upper, i + BLOCK);
+			IntVector bSum = IntVector.zero(INTS);
+			IntVector rSum = IntVector.zero(INTS);
+			for (; i < blockEnd; i += lanes) {
+				IntVector b = pixels(blue, i);
+				IntVector r = pixels(red, i);
+				VectorMask<Integer> isBlue = b.compare(VectorOperators.GE, thresholdBlue);
+				VectorMask<Integer> isRed = r.compare(VectorOperators.GE, thresholdRed);
+				VectorMask<Integer> bLimited = b.compare(VectorOperators.GE, limitBlue);
+				VectorMask<Integer> rLimited = r.compare(VectorOperators.GE, limitRed);
+				bCount += isBlue.trueCount();
+				rCount += isRed.trueCount();
+				cCount += isBlue.and(isRed).trueCount();
+				bLimCount += bLimited.trueCount();
+				rLimCount += rLimited.trueCount();
+				bSum = bSum.add(b, bLimited);
+				rSum = rSum.add(r, rLimited);
+			}
+			bLimSum += bSum.reduceLanes(VectorOperators.ADD);
+			rLimSum += rSum.reduceLanes(VectorOperators.ADD);
+		}
+		ThresholdColocLoops.add(counts, bCount, rCount, cCount, bLimCount, rLimCount, bLimSum, rLimSum);
+		ScalarThresholdColocLoops.count(blue, red, i, to, thresholdBlue, thresholdRed, limitBlue, limitRed, counts);
+	}
+
+	static void countAndMask(short[] blue, short[] red, int from, int to,
+							 int thresholdBlue, int thresholdRed, int limitBlue, int limitRed, long[] counts,
+							 byte[] blueMask, byte[] redMask, byte[] colocMask, byte[] allColorsMask, int maskOffset) {
+		long bCount = 0, rCount = 0, cCount = 0, bLimCount = 0, rLimCount = 0, bLimSum = 0, rLimSum = 0;
+		int lanes = INTS.length();
+		int upper = from + INTS.loopBound(to - from);
+		int i = from;
+		while (i < upper) {
+			int blockEnd = Math.min(upper, i + BLOCK);
+			IntVector bSum = IntVector.zero(INTS);
+			IntVector rSum = IntVector.zero(INTS);
+			for (; i < blockEnd; i += lanes) {
+				IntVector b = pixels(blue, i);
+				IntVector r = pixels(red, i);
+				VectorMask<Integer> isBlue = b.compare(VectorOperators.GE, thresholdBlue);
+				VectorMask<Integer> isRed = r.compare(VectorOperators.GE, thresholdRed);
+				VectorMask<Integer> isColoc = isBlue.and(isRed);
+				VectorMask<Integer> bLimited = b.compare(VectorOperators.GE, limitBlue);
+				VectorMask<Integer> rLimited = r.compare(VectorOperators.GE, limitRed);
+				bCount += isBlue.trueCount();
+				rCount += isRed.trueCount();
+				cCount += isColoc.trueCount();
+				bLimCount += bLimited.trueCount();
+				rLimCount += rLimited.trueCount();
+				bSum = bSum.add(b, bLimited);
+				rSum = rSum.add(r, rLimited);
+				int m = maskOffset + i - from;
+				if (blueMask != null) store(isBlue, blueMask, m);
+				if (redMask != null) store(isRed, redMask, m);
+				if (colocMask != null) store(isColoc, colocMask, m);
+				if (allColorsMask != null) store(isBlue.or(isRed), allColorsMask, m);
+			}
+			bLimSum += bSum.reduceLanes(VectorOperators.ADD);
+			rLimSum += rSum.reduceLanes(VectorOperators.ADD);
+		}
+		ThresholdColocLoops.add(counts, bCount, rCount, cCount, bLimCount, rLimCount, bLimSum, rLimSum);
+		ScalarThresholdColocLoops.countAndMask(blue, red, i, to, thresholdBlue, thresholdRed, limitBlue, limitRed, counts,
+				blueMask, redMask, colocMask, allColorsMask, maskOffset + i - from);
+	}
+
+	/** Unsigned 16-bit pixels starting at {@code i}, widened to ints. */
+	private static IntVector pixels(short[] plane, int i) {
+		return ((IntVector) ShortVector.fromArray(SHORTS, plane, i).castShape(INTS, 0)).and(0xffff);
+	}
+
+	private static void store(VectorMask<Integer> mask, byte[] target, int offset) {
+		//lanes of a true mask are -1, i.e. FOREGROUND
+		((ByteVector) mask.toVector().castShape(BYTES, 0)).intoArray(target, offset);
+	}
+}
@@ -0,0 +1,92 @@
+package chobotix.solvatochromic;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link ThresholdColocKernel} and {@link ThresholdSweep} give exactly the counts, masks and means of whole planes
+ * when the planes come in strips, the way a {@link chobotix.core.FilePipeline} reads them.
+ * @author Jaroslav Hanuš
+ */
+public class StripAccumulationTest {
+	private static final int WIDTH = 53;
+	private static final int HEIGHT = 41;
+	/** Strips of one row, of 7 rows with a shorter last one and of all rows but the last one. */
+	private static final int[] STRIP_ROWS = {1, 7, HEIGHT - 1};
+
+	private final Random random = new Random(13);
+
+	@Test
+	public void kernelStripsEqualWholePlanes() {
+		for (int run = 0; run < 5; run++) {
+			short[] blue = randomPlane(), red = randomPlane();
+			int thresholdBlue = random.nextInt(65536), thresholdRed = random.nextInt(65536);
+			ThresholdColocKernel whole = new ThresholdColocKernel(thresholdBlue, thresholdRed);
+			byte[][] wholeMasks = new byte[4][WIDTH * HEIGHT];
+			whole.accumulate(blue, red, wholeMasks[0], wholeMasks[1], wholeMasks[2], wholeMasks[3]);
+			for (int stripRows : STRIP_ROWS) {
+				String at = "run " + run + ", " + stripRows + "-row strips";
+				ThresholdColocKernel strips = new ThresholdColocKernel(thresholdBlue, thresholdRed);
+				ThresholdColocKernel ranges = new ThresholdColocKernel(thresholdBlue, thresholdRed);
+				byte[][] masks = new byte[4][WIDTH * HEIGHT];
+				for (int y = 0; y < HEIGHT; y += stripRows) {
+					int from = y * WIDTH, to = Math.min(y + stripRows, HEIGHT) * WIDTH;
+					strips.accumulate(Arrays.copyOfRange(blue, from, to), Arrays.copyOfRange(red, from, to),
+							masks[0], masks[1], masks[2], masks[3], from);
+					ranges.accumulate(blue, red, from, to);
+				}
+				assertEquals(at, whole.getPixelCount(), strips.getPixelCount());
+				assertSameResult(at, whole.result(), strips.result());
+				assertSameResult(at + ", ranges", whole.result(), ranges.result());
+				for (int m = 0; m < masks.length; m++)
+					assertArrayEquals(at + ", mask " + m, wholeMasks[m], masks[m]);
+			}
+		}
+	}
+
+	@Test
+	public void sweepStripsEqualWholePlanes() {
+		ThresholdSweep sweep = new ThresholdSweep(new int[]{0, 1, 500, 0x7FFF, 0x8000, 0xFFFF}, new int[]{2, 1000, 0x8001, 0xFFFE});
+		for (int run = 0; run < 3; run++) {
+			short[] blue = randomPlane(), red = randomPlane();
+			ThresholdSweep.Histograms whole = sweep.newHistograms();
+			whole.accumulate(blue, red);
+			ThresholdColocResult[][] expected = sweep.evaluate(whole);
+			for (int stripRows : STRIP_ROWS) {
+				ThresholdSweep.Histograms strips = sweep.newHistograms();
+				for (int y = 0; y < HEIGHT; y += stripRows) {
+					int from = y * WIDTH, to = Math.min(y + stripRows, HEIGHT) * WIDTH;
+					strips.accumulate(Arrays.copyOfRange(blue, from, to), Arrays.copyOfRange(red, from, to));
+				}
+				assertEquals(whole.getPixelCount(), strips.getPixelCount());
+				ThresholdColocResult[][] results = sweep.evaluate(strips);
+				for (int i = 0; i < expected.length; i++)
+					for (int j = 0; j < expected[i].length; j++)
+						assertSameResult("run " + run + ", " + stripRows + "-row strips, cell " + i + "/" + j, expected[i][j], results[i][j]);
+			}
+		}
+	}
+
+	/** Bit for bit the same numbers, NaN means included. */
+	static void assertSameResult(String message, ThresholdColocResult expected, ThresholdColocResult actual) {
+		assertEquals(message + ", blue %Area", expected.getBluePercentage(), actual.getBluePercentage(), 0);
+		assertEquals(message + ", red %Area", expected.getRedPercentage(), actual.getRedPercentage(), 0);
+		assertEquals(message + ", AND %Area", expected.getColocPercentage(), actual.getColocPercentage(), 0);
+		assertEquals(message + ", OR %Area", expected.getAllColorsPercentage(), actual.getAllColorsPercentage(), 0);
+		assertEquals(message + ", blue limited mean", expected.getMeanBlue(), actual.getMeanBlue(), 0);
+		assertEquals(message + ", red limited mean", expected.getMeanRed(), actual.getMeanRed(), 0);
+	}
+
+	/** Pixels of the whole 16-bit range, half of them dim. */
+	private short[] randomPlane() {
+		short[] pixels = new short[WIDTH * HEIGHT];
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = (short) (random.nextBoolean() ? random.nextInt(65536) : 200 + random.nextInt(3000));
+		return pixels;
+	}
+}
@@ -0,0 +1,120 @@
+package chobotix.solvatochromic;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.Measurements;
+import ij.measure.ResultsTable;
+import ij.plugin.ImageCalculator;
+import ij.plugin.filter.Analyzer;
+import ij.process.ShortProcessor;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link ThresholdColocKernel} gives the numbers of the ImageJ chain it replaced in {@code BlueRedYellowArea.processFileTH}:
+ * "Convert to Mask" of each channel, AND/OR of the masks by {@link ImageCalculator} and {@link Analyzer} measurements.
+ * @author Jaroslav Hanuš
+ */
+public class ThresholdColocKernelTest {
+	private static final int WIDTH = 61;
+	private static final int HEIGHT = 37;
+	private static final double DELTA = 1e-9;
+
+	/** Blue and red thresholds, also at and around the values where 16-bit pixels turn into negative shorts. */
+	private static final int[][] THRESHOLDS = {
+			{750, 1000}, {1, 2}, {0x7FFF, 0x8000}, {0x8000, 0x7FFF}, {0x8001, 0xFFFF}, {0xFFFF, 0xFFFE}};
+
+	@Test
+	public void equalsImageJChainOnRandomPlanes() {
+		Random random = new Random(11);
+		for (int run = 0; run < 4; run++) {
+			short[] blue = randomPlane(random);
+			short[] red = randomPlane(random);
+			for (int[] thresholds : THRESHOLDS)
+				assertEqualsImageJ("run " + run, blue, red, thresholds[0], thresholds[1]);
+		}
+	}
+
+	@Test
+	public void equalsImageJChainOnPlanesOfSpecialValues() {
+		short[] blue = new short[WIDTH * HEIGHT];
+		short[] red = new short[WIDTH * HEIGHT];
+		int[] special = {0, 1, 0x3FFF, 0x4000, 0x7FFE, 0x7FFF, 0x8000, 0x8001, 0xFFFE, 0xFFFF};
+		for (int i = 0; i < blue.length; i++) {
+			blue[i] = (short) special[i % special.length];
+			red[i] = (short) special[(i / special.length) % special.length];
+		}
+		for (int[] thresholds : THRESHOLDS)
+			assertEqualsImageJ("special values", blue, red, thresholds[0], thresholds[1]);
+	}
+
+	private static void assertEqualsImageJ(String message, short[] blue, short[] red, int thresholdBlue, int thresholdRed) {
+		ThresholdColocKernel kernel = new ThresholdColocKernel(thresholdBlue, thresholdRed);
+		kernel.accumulate(blue, red);
+		ThresholdColocResult result = kernel.result();
+		String at = message + ", thresholds " + thresholdBlue + "/" + thresholdRed;
+
+		ImagePlus blueMask = mask(blue, thresholdBlue);
+		ImagePlus redMask = mask(red, thresholdRed);
+		assertEquals(at + ", blue %Area", areaFraction(blueMask), result.getBluePercentage(), DELTA);
+		assertEquals(at + ", red %Area", areaFraction(redMask), result.getRedPercentage(), DELTA);
+		assertEquals(at + ", AND %Area", areaFraction(ImageCalculator.run(blueMask, redMask, "AND create")), result.getColocPercentage(), DELTA);
+		assertEquals(at + ", OR %Area", areaFraction(ImageCalculator.run(blueMask, redMask, "OR create")), result.getAllColorsPercentage(), DELTA);
+		assertEquals(at + ", blue limited mean", limitedMean(blue, thresholdBlue), result.getMeanBlue(), DELTA);
+		assertEquals(at + ", red limited mean", limitedMean(red, thresholdRed), result.getMeanRed(), DELTA);
+	}
+
+	/** Mask of the pixels at or above the threshold, the way processFileTH made it. */
+	private static ImagePlus mask(short[] pixels, int threshold) {
+		ImagePlus imp = image(pixels);
+		IJ.setAutoThreshold(imp, "Default dark");
+		IJ.setRawThreshold(imp, threshold, 65535);
+		IJ.run(imp, "Convert to Mask", "");
+		return imp;
+	}
+
+	private static double areaFraction(ImagePlus imp) {
+		return measure(imp, Measurements.AREA_FRACTION, "%Area");
+	}
+
+	/** The former "mean limit" measurement, of the pixels at or above half of the threshold. */
+	private static double limitedMean(short[] pixels, int threshold) {
+		ImagePlus imp = image(pixels);
+		IJ.setRawThreshold(imp, Math.round(threshold / 2), 65535);
+		return measure(imp, Measurements.MEAN | Measurements.LIMIT, "Mean");
+	}
+
+	private static double measure(ImagePlus imp, int measurements, String column) {
+		ResultsTable rt = new ResultsTable();
+		new Analyzer(imp, measurements, rt).measure();
+		return rt.getValue(column, rt.size() - 1);
+	}
+
+	private static ImagePlus image(short[] pixels) {
+		return new ImagePlus("plane", new ShortProcessor(WIDTH, HEIGHT, pixels.clone(), null));
+	}
+
+	/** Pixels of the whole 16-bit range with many of them around the thresholds. */
+	private static short[] randomPlane(Random random) {
+		short[] pixels = new short[WIDTH * HEIGHT];
+		for (int i = 0; i < pixels.length; i++) {
+			switch (random.nextInt(4)) {
+				case 0:
+					pixels[i] = (short) random.nextInt(65536);
+					break;
+				case 1:
+					pixels[i] = (short) (0x7FF0 + random.nextInt(32));
+					break;
+				case 2:
+					pixels[i] = (short) (0xFFF0 + random.nextInt(16));
+					break;
+				default:
+					pixels[i] = (short) (300 + random.nextInt(1500));
+			}
+		}
+		return pixels;
+	}
+}
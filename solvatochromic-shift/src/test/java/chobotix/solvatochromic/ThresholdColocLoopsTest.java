@@ -0,0 +1,119 @@
+package chobotix.solvatochromic;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The pixel loops of {@link ThresholdColocLoops} give the same counts and masks as {@link ScalarThresholdColocLoops}.
+ * <p>
+ * On JDK 17+ the build runs this test against the Java 17 classes of the multi-release jar with the vector module,
+ * and sets {@value #VECTORIZED_PROPERTY} so that falling back to the scalar loops fails instead of comparing them
+ * with themselves.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class ThresholdColocLoopsTest {
+	static final String VECTORIZED_PROPERTY = "chobotix.test.vectorized";
+
+	private final Random random = new Random(42);
+
+	@Test
+	public void loopsAreVectorizedWhenExpected() {
+		if (Boolean.getBoolean(VECTORIZED_PROPERTY))
+			assertTrue("Vector loops expected, check --add-modules jdk.incubator.vector", ThresholdColocLoops.isVectorized());
+	}
+
+	@Test
+	public void countsEqualOnRandomRanges() {
+		for (int run = 0; run < 500; run++) {
+			//lengths around multiples of the lane counts, so the scalar tails are checked as well
+			int length = random.nextInt(300);
+			int from = random.nextInt(20);
+			short[] blue = randomPixels(from + length + random.nextInt(20));
+			short[] red = randomPixels(blue.length);
+			int[] thresholds = randomThresholds();
+			long[] counts = startCounts(), expected = counts.clone();
+			ThresholdColocLoops.count(blue, red, from, from + length, thresholds[0], thresholds[1], thresholds[2], thresholds[3], counts);
+			ScalarThresholdColocLoops.count(blue, red, from, from + length, thresholds[0], thresholds[1], thresholds[2], thresholds[3], expected);
+			assertArrayEquals("run " + run, expected, counts);
+		}
+	}
+
+	@Test
+	public void countsAndMasksEqualOnRandomRanges() {
+		for (int run = 0; run < 500; run++) {
+			int length = random.nextInt(300);
+			int from = random.nextInt(20);
+			int maskOffset = random.nextInt(20);
+			short[] blue = randomPixels(from + length + random.nextInt(20));
+			short[] red = randomPixels(blue.length);
+			int[] thresholds = randomThresholds();
+			//any of the masks may be null
+			byte[][] masks = new byte[4][], expectedMasks = new byte[4][];
+			for (int m = 0; m < 4; m++) {
+				if (random.nextInt(3) == 0)
+					continue;
+				masks[m] = new byte[maskOffset + length + random.nextInt(20)];
+				Arrays.fill(masks[m], (byte) 7);
+				expectedMasks[m] = masks[m].clone();
+			}
+			long[] counts = startCounts(), expected = counts.clone();
+			ThresholdColocLoops.countAndMask(blue, red, from, from + length, thresholds[0], thresholds[1], thresholds[2], thresholds[3], counts,
+					masks[0], masks[1], masks[2], masks[3], maskOffset);
+			ScalarThresholdColocLoops.countAndMask(blue, red, from, from + length, thresholds[0], thresholds[1], thresholds[2], thresholds[3], expected,
+					expectedMasks[0], expectedMasks[1], expectedMasks[2], expectedMasks[3], maskOffset);
+			assertArrayEquals("run " + run, expected, counts);
+			for (int m = 0; m < 4; m++)
+				if (masks[m] != null)
+					assertArrayEquals("run " + run + ", mask " + m, expectedMasks[m], masks[m]);
+		}
+	}
+
+	@Test
+	public void limitedSumsOfBrightPlanesEqual() {
+		//longer than a block of int sums of the vector loops, with the brightest pixels
+		short[] blue = new short[100_003];
+		short[] red = randomPixels(blue.length);
+		Arrays.fill(blue, (short) 0xFFFF);
+		long[] counts = new long[ThresholdColocLoops.COUNTS], expected = new long[ThresholdColocLoops.COUNTS];
+		byte[][] masks = new byte[2][blue.length], expectedMasks = new byte[2][blue.length];
+		ThresholdColocLoops.countAndMask(blue, red, 1, blue.length, 0x8000, 0x8001, 0xFFFF, 0x7FFF, counts,
+				masks[0], null, masks[1], null, 0);
+		ScalarThresholdColocLoops.countAndMask(blue, red, 1, blue.length, 0x8000, 0x8001, 0xFFFF, 0x7FFF, expected,
+				expectedMasks[0], null, expectedMasks[1], null, 0);
+		assertArrayEquals(expected, counts);
+		assertArrayEquals(expectedMasks[0], masks[0]);
+		assertArrayEquals(expectedMasks[1], masks[1]);
+		assertTrue(counts[ThresholdColocLoops.BLUE_LIMITED_SUM] > Integer.MAX_VALUE);
+	}
+
+	/** Pixels of the whole 16-bit range, values from 0x8000 up are negative shorts. */
+	private short[] randomPixels(int length) {
+		short[] pixels = new short[length];
+		for (int i = 0; i < length; i++)
+			pixels[i] = (short) (random.nextBoolean() ? random.nextInt(65536) : 0x7FF0 + random.nextInt(32));
+		return pixels;
+	}
+
+	/** Blue and red thresholds and limits, also at the ends of the range and around 0x8000. */
+	private int[] randomThresholds() {
+		int[] special = {0, 1, 0x7FFF, 0x8000, 0x8001, 0xFFFF};
+		int[] thresholds = new int[4];
+		for (int i = 0; i < thresholds.length; i++)
+			thresholds[i] = random.nextInt(4) == 0 ? special[random.nextInt(special.length)] : random.nextInt(65536);
+		return thresholds;
+	}
+
+	/** Counts already holding values, the loops add to them. */
+	private long[] startCounts() {
+		long[] counts = new long[ThresholdColocLoops.COUNTS];
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = random.nextInt(1000);
+		return counts;
+	}
+}
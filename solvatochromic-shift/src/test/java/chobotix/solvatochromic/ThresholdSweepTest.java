@@ -0,0 +1,111 @@
+package chobotix.solvatochromic;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Every cell of a {@link ThresholdSweep} grid is the result of a {@link ThresholdColocKernel} run with its thresholds,
+ * limited means of the pixels at or above half of the thresholds included.
+ * @author Jaroslav Hanuš
+ */
+public class ThresholdSweepTest {
+	private final Random random = new Random(6);
+
+	@Test
+	public void cellsEqualKernelRunsOnRandomPlanes() {
+		for (int run = 0; run < 20; run++) {
+			int[] blueThresholds = randomThresholds(), redThresholds = randomThresholds();
+			ThresholdSweep sweep = new ThresholdSweep(blueThresholds, redThresholds);
+			ThresholdSweep.Histograms histograms = sweep.newHistograms();
+			int planes = 1 + random.nextInt(3);
+			short[][] blue = new short[planes][], red = new short[planes][];
+			for (int p = 0; p < planes; p++) {
+				int length = 1 + random.nextInt(2000);
+				blue[p] = randomPlane(length, blueThresholds);
+				red[p] = randomPlane(length, redThresholds);
+				histograms.accumulate(blue[p], red[p]);
+			}
+			assertCellsEqualKernels("run " + run, sweep, histograms, blue, red);
+		}
+	}
+
+	@Test
+	public void thresholdsAreSortedAndUnique() {
+		ThresholdSweep sweep = new ThresholdSweep(new int[]{1000, 0, 1000, 65535}, new int[]{7});
+		assertArrayEquals(new int[]{0, 1000, 65535}, sweep.getBlueThresholds());
+		assertArrayEquals(new int[]{7}, sweep.getRedThresholds());
+	}
+
+	@Test
+	public void parsesListsAndRanges() {
+		assertArrayEquals(new int[]{100, 250, 500, 750}, ThresholdSweep.parseThresholds("100, 250-800:250,500"));
+		assertArrayEquals(new int[]{3, 4, 5}, ThresholdSweep.parseThresholds("3-5"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void thresholdsOutOf16BitsAreRejected() {
+		new ThresholdSweep(new int[]{500, 65536}, new int[]{500});
+	}
+
+	private static void assertCellsEqualKernels(String message, ThresholdSweep sweep, ThresholdSweep.Histograms histograms,
+												short[][] blue, short[][] red) {
+		int[] blueThresholds = sweep.getBlueThresholds(), redThresholds = sweep.getRedThresholds();
+		ThresholdColocResult[][] results = sweep.evaluate(histograms);
+		assertEquals(blueThresholds.length, results.length);
+		for (int i = 0; i < blueThresholds.length; i++) {
+			assertEquals(redThresholds.length, results[i].length);
+			for (int j = 0; j < redThresholds.length; j++) {
+				ThresholdColocKernel kernel = new ThresholdColocKernel(blueThresholds[i], redThresholds[j]);
+				for (int p = 0; p < blue.length; p++)
+					kernel.accumulate(blue[p], red[p]);
+				assertEquals(kernel.getPixelCount(), histograms.getPixelCount());
+				StripAccumulationTest.assertSameResult(message + ", thresholds " + blueThresholds[i] + "/" + redThresholds[j],
+						kernel.result(), results[i][j]);
+			}
+		}
+	}
+
+	/** A small grid with odd thresholds, whose halves are rounded down, and the 16-bit extremes now and then. */
+	private int[] randomThresholds() {
+		int[] thresholds = new int[1 + random.nextInt(4)];
+		for (int i = 0; i < thresholds.length; i++) {
+			switch (random.nextInt(5)) {
+				case 0:
+					thresholds[i] = random.nextBoolean() ? 0 : 65535;
+					break;
+				case 1:
+					thresholds[i] = 0x7FFF + random.nextInt(3);
+					break;
+				default:
+					thresholds[i] = 1 + 2 * random.nextInt(2000);
+			}
+		}
+		return thresholds;
+	}
+
+	/** Pixels of the whole 16-bit range, many of them at, next to or at half of a threshold. */
+	private short[] randomPlane(int length, int[] thresholds) {
+		short[] pixels = new short[length];
+		for (int i = 0; i < length; i++) {
+			int threshold = thresholds[random.nextInt(thresholds.length)];
+			switch (random.nextInt(4)) {
+				case 0:
+					pixels[i] = (short) random.nextInt(65536);
+					break;
+				case 1:
+					pixels[i] = (short) Math.min(65535, Math.max(0, threshold - 1 + random.nextInt(3)));
+					break;
+				case 2:
+					pixels[i] = (short) (threshold / 2 + random.nextInt(2));
+					break;
+				default:
+					pixels[i] = (short) random.nextInt(4000);
+			}
+		}
+		return pixels;
+	}
+}
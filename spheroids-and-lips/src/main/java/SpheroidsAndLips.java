@@ -6,8 +6,28 @@
  *     https://unlicense.org/
  */
 
-import loci.formats.FormatException;
-import loci.plugins.BF;
+import chobotix.core.AnalysisStage;
+import chobotix.core.BatchRunner;
+import chobotix.core.CliOptions;
+import chobotix.core.ColumnarTableWriter;
+import chobotix.core.DatasetManifest;
+import chobotix.core.FilePipeline;
+import chobotix.core.MemoryBudget;
+import chobotix.core.FolderWatcher;
+import chobotix.core.PlaneAnalyzer;
+import chobotix.core.PlaneCache;
+import chobotix.core.PlaneReaderStack;
+import chobotix.core.Shard;
+import chobotix.core.ShardResults;
+import chobotix.core.ResultCache;
+import chobotix.core.RunMetrics;
+import chobotix.core.StackPrefetcher;
+import chobotix.core.WideColumnTable;
+import chobotix.core.WideResultsWriter;
+import chobotix.core.WideTable;
+import chobotix.spheroids.RoiMeanAnalyzer;
+import chobotix.spheroids.RoiProposer;
+import chobotix.spheroids.SpheroidMeasurement;
 import net.imagej.ImageJ;
 import org.scijava.command.Command;
 import org.scijava.plugin.Plugin;
@@ -16,6 +36,7 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 
 import ij.IJ;
 import ij.ImagePlus;
@@ -26,7 +47,13 @@ import ij.gui.Roi;
 import ij.measure.ResultsTable;
 import ij.plugin.frame.RoiManager;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
@@ -39,34 +66,35 @@ import java.util.stream.Collectors;
  * Then he should specify at least one ROI to measure the average fluorescence of studied objects (in our case the cell spheroids).
  * Sometimes there are more than one spheroid on the micrograph, so the user can specify more than one ROI.
  * Plugin saves the ROIs.
- * During the next run it computes the average intensities.
+ * During the next run it computes the average intensities, files are measured in parallel, one per available core.
+ * The measurement is also the "spheroids" stage of {@code chobotix.core.CombinedRun}, sharing the decoded planes
+ * with other plugins.
  * Quick and dirty, can definitively be improved, but works for us.
  * </p>
  * @author Jaroslav Hanuš
  */
 @Plugin(type = Command.class, headless = true, menuPath = "Plugins>Spheroids ROIs intensities")
-public class SpheroidsAndLips implements Command {
+public class SpheroidsAndLips implements Command, AnalysisStage<SpheroidMeasurement> {
 
 
 	/**
-	 * A {@code main()} method for testing.
+	 * A {@code main()} method for testing and for headless batch runs.
 	 * <p>
-	 * When developing a plugin in an Integrated Development Environment (such as
-	 * Eclipse or NetBeans), it is most convenient to provide a simple
-	 * {@code main()} method that creates an ImageJ context and calls the plugin.
+	 * Without arguments it creates an ImageJ context and calls the plugin,
+	 * which comes in handy when debugging the plugin in an IDE.
 	 * </p>
 	 * <p>
-	 * In particular, this comes in handy when one needs to debug the plugin:
-	 * after setting one or more breakpoints and populating the inputs (e.g. by
-	 * calling something like
-	 * {@code ij.command().run(MyPlugin.class, "inputImage", myImage)} where
-	 * {@code inputImage} is the name of the field specifying the input) debugging
-	 * becomes a breeze.
+	 * With arguments it measures the given directory from existing ROIs headless, without starting ImageJ, SciJava or AWT:
+	 * {@code java -cp <jars> SpheroidsAndLips --input /data/exp1 --workers 16}.
+	 * ROIs can only be prepared interactively. Run with {@code --help} to list all options.
 	 * </p>
-	 * 
-	 * @param args unused
+	 *
+	 * @param args command line options, see {@link #USAGE}
 	 */
 	public static void main(final String... args) {
+		if (args.length > 0) {
+			System.exit(runHeadless(args));
+		}
 		// Launch ImageJ as usual.
 		final ImageJ ij = new ImageJ();
 		ij.launch(args);
@@ -75,6 +103,79 @@ public class SpheroidsAndLips implements Command {
 		ij.command().run(SpheroidsAndLips.class, true);
 	}
 
+	static final String USAGE = "Usage: SpheroidsAndLips --input <dir> [options]\n"
+			+ "  --output <dir>            where to save the tables (default <dir>)\n"
+			+ "  --workers <n>             parallel files (default: number of cores)\n"
+			+ "  --strip-mb <n>            read planes in strips fitting into n MB (default 0, whole planes)\n"
+			+ "  --memory-mb <n>           memory the files measured at once may take (default 0, 3/4 of the heap)\n"
+			+ "  --no-cache                measure all files again\n"
+			+ "  --plane-cache <dir>       keep decoded planes in dir, later runs read them instead of the .oib files\n"
+			+ "  --plane-cache-mb <n>      size the plane cache is kept within (default 20480)\n"
+			+ "  --rescan                  list all directories again instead of reusing the saved manifest\n"
+			+ "  --watch                   keep measuring new files as they are acquired, until Ctrl+C\n"
+			+ "  --watch-idle <min>        stop watching after min minutes without new files (default 0, never)\n"
+			+ "  --columnar <RAW|DEFLATE>  save the tables also as binary .cols files, DEFLATE compresses the columns\n"
+			+ "  --no-metrics              do not save RunMetrics_<dir name>.csv and .json\n"
+			+ "  --shard <i/N>             measure only shard i of N and save its results for --merge, e.g. on one of N hosts\n"
+			+ "  --shards <n>              run n shards as processes of this host, then merge them\n"
+			+ "  --merge                   write the tables from the results of all the shards\n";
+
+	/** Measures a directory as described by the command line, returns the process exit code. */
+	static int runHeadless(String... args) {
+		System.setProperty("java.awt.headless", "true");
+		SpheroidsAndLips plugin = new SpheroidsAndLips();
+		File folder, outputFolder;
+		int shardProcesses;
+		boolean workersGiven;
+		try {
+			CliOptions options = CliOptions.parse(args, new String[]{"input", "output", "workers", "strip-mb", "memory-mb", "watch-idle", "plane-cache", "plane-cache-mb", "columnar", "shard", "shards"},
+					new String[]{"no-cache", "rescan", "watch", "no-metrics", "merge", "help"});
+			if (options.has("help")) {
+				System.out.print(USAGE);
+				return 0;
+			}
+			folder = options.getDirectory("input");
+			outputFolder = options.getFile("output", folder);
+			plugin.workers = options.getInt("workers", plugin.workers);
+			plugin.stripBudgetMB = options.getInt("strip-mb", plugin.stripBudgetMB);
+			plugin.memoryBudgetMB = options.getInt("memory-mb", plugin.memoryBudgetMB);
+			plugin.useCache = !options.has("no-cache");
+			plugin.planeCacheFolder = options.getFile("plane-cache", null);
+			plugin.planeCacheMB = options.getInt("plane-cache-mb", plugin.planeCacheMB);
+			plugin.useManifest = !options.has("rescan");
+			plugin.watch = options.has("watch");
+			plugin.watchIdleMinutes = options.getInt("watch-idle", plugin.watchIdleMinutes);
+			plugin.readColumnarTables(options);
+			plugin.collectMetrics = !options.has("no-metrics");
+			plugin.shard = options.has("shard") ? Shard.parse(options.get("shard", "")) : null;
+			shardProcesses = options.getInt("shards", 0);
+			workersGiven = options.has("workers");
+			plugin.mergeShards = options.has("merge");
+			if ((plugin.shard != null || shardProcesses > 0 || plugin.mergeShards) && plugin.watch)
+				throw new IllegalArgumentException("Shards cannot watch the folder");
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			return 2;
+		}
+		try {
+			if (shardProcesses > 0) {
+				//each process gets its share of the cores unless told otherwise
+				int shardWorkers = workersGiven ? 0 : Math.max(1, plugin.workers / shardProcesses);
+				if (!Shard.runProcesses(SpheroidsAndLips.class, args, shardProcesses, shardWorkers, plugin.shardBasePath(folder, outputFolder)).isEmpty()) {
+					System.err.println("Run the failed shards again with --shard i/N and then merge with --merge.");
+					return 1;
+				}
+				plugin.mergeShards = true;
+			}
+			plugin.measureFolder(folder, outputFolder);
+			return 0;
+		} catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+			return 1;
+		}
+	}
+
 	int bgRoiDefaultX = 50;
 	int bgRoiDefaultY = 50;
 
@@ -87,7 +188,55 @@ public class SpheroidsAndLips implements Command {
 	int roiDefaultWidth = 200;
 	int roiDefaultHeigth = 200;
 
-	boolean shouldStop = false;
+	/** Proposes the background and spheroid ROIs of files without ROIs with {@link RoiProposer}, instead of the default ovals. */
+	boolean proposeRois = true;
+	/** Spheroid ROIs proposed at most per file. */
+	int maxProposedSpheroids = 4;
+
+	/** Description of the parameters that influence measurements, for the cache and the shards. */
+	static final String ANALYSIS_PARAMETERS = "SpheroidsAndLips 1 c1 mean";
+
+	/** Stack index of the plane shown when preparing ROIs. */
+	static final int DISPLAYED_PLANE = 2;
+	/** Files opened in the background while the user prepares ROIs of the current one. */
+	int prefetchAhead = 3;
+	private StackPrefetcher prefetcher;
+
+	int workers = BatchRunner.defaultWorkers();
+	/** Memory for decoded pixels of a file in MB, planes are measured in strips of rows fitting into it. 0 reads whole planes. */
+	int stripBudgetMB = 0;
+	/** Memory in MB the files measured at once may take, see {@link MemoryBudget}. 0 takes three quarters of the heap. */
+	int memoryBudgetMB = 0;
+	private MemoryBudget memoryBudget;
+	/** Saves timing of the stages of the run next to the tables, as {@code RunMetrics_<folder>.csv} and {@code .json}. */
+	boolean collectMetrics = true;
+	private RunMetrics metrics;
+	boolean useCache = true;
+	/**
+	 * Folder of the {@link PlaneCache} keeping decoded planes for later passes (preparing ROIs, measuring, re-runs),
+	 * null decodes the .oib files every time. Should be on a local disk.
+	 */
+	File planeCacheFolder = null;
+	/** Size the plane cache is kept within, in MB. */
+	int planeCacheMB = 20 * 1024;
+	private PlaneCache planeCache;
+	/** Measures only the files of the shard and saves their results for a merge instead of the tables, null measures all files. */
+	Shard shard = null;
+	/** Writes the tables from the measurements saved by all the shards instead of measuring the files. */
+	boolean mergeShards = false;
+	/** Saves the tables also as binary columnar files next to the .xls ones, see {@link ColumnarTableWriter}. Null saves only the .xls. */
+	ColumnarTableWriter.Compression columnarTables = null;
+	/** Reuses listings of unchanged directories saved by earlier runs, see {@link DatasetManifest}. */
+	boolean useManifest = true;
+	/**
+	 * Keeps watching the folder after the files found at the start are measured, new files are measured
+	 * once both the .oib and its ROIs are complete. Not used when preparing ROIs.
+	 */
+	boolean watch = false;
+	/** Stops watching after this many minutes without a new file, 0 watches until Esc (or Ctrl+C). */
+	int watchIdleMinutes = 0;
+
+	volatile boolean shouldStop = false;
 	boolean shouldPrepareROIs = false, shouldRecheckROIs = false, shouldAddAnotherRoi = false;
 
 
@@ -96,71 +245,316 @@ public class SpheroidsAndLips implements Command {
 		final File folder = new File(IJ.getDirectory("Select directory (may contain subdirs) with .oib files to process"));
 		WaitForUserDialogJH userDialog = new WaitForUserDialogJH("Going to compute mean gray values from existing ROIs. If you want also prepare ROIs, check corresponding checkboxes", false);
 		userDialog.show();
-		ResultsTable rt = new ResultsTable();
-		rt.addRow();
-		ResultsTable bgRt = new ResultsTable();
-		bgRt.addRow();
 		ResultsTable.getResultsTable().reset();
 		if (userDialog.stopPressed()) {
 			return;
-		} else {
-			try {
-				processFilesInFolder(folder,bgRt, rt);
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
 		}
 		try {
-			rt.saveAs(folder.getPath() + "/" + "SpheroidFluorescence_" + folder.getName() + ".xls");
-			bgRt.saveAs(folder.getPath() + "/" + "BackgroundFluorescence_" + folder.getName() + ".xls");
+			measureFolder(folder, folder);
 		} catch (IOException e) {
 			System.out.println("Could not save Results Table!!! " + e);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/** Measures (or prepares ROIs of) all the files of the folder, tables are saved to the output folder. */
+	public void measureFolder(File folder, File outputFolder) throws IOException {
+		metrics = collectMetrics ? new RunMetrics() : null;
+		try {
+			if (shard != null) {
+				measureShard(folder, outputFolder);
+				if (metrics != null)
+					metrics.writeSummary(new File(outputFolder, "RunMetrics_" + folder.getName() + shard.getSuffix()));
+				return;
+			}
+			//Columns are written to disk as soon as each file is measured, tables are put together when the writers are closed
+			long closeStart;
+			try (WideResultsWriter writer = new WideResultsWriter(new File(outputFolder.getPath() + "/" + "SpheroidFluorescence_" + folder.getName() + ".xls"), columnarTables);
+				 WideResultsWriter bgWriter = new WideResultsWriter(new File(outputFolder.getPath() + "/" + "BackgroundFluorescence_" + folder.getName() + ".xls"), columnarTables)) {
+				BatchRunner.ResultConsumer<SpheroidMeasurement> consumer = (oibFile, measurement) -> {
+					try {
+						addMeasurement(oibFile, measurement, bgWriter, writer);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				};
+				if (mergeShards) {
+					mergeShards(folder, outputFolder, consumer);
+				} else {
+					//While watching, the tables are rewritten whenever new files were measured
+					processFilesInFolder(folder, consumer, () -> {
+						try {
+							bgWriter.update();
+							writer.update();
+						} catch (IOException e) {
+							System.out.println("Could not update the tables: " + e);
+						}
+					});
+				}
+				closeStart = System.nanoTime();
+			}
+			if (metrics != null) {
+				metrics.addRunTime(RunMetrics.Stage.WRITE, System.nanoTime() - closeStart);
+				metrics.writeSummary(new File(outputFolder, "RunMetrics_" + folder.getName()));
+			}
+		} finally {
+			metrics = null;
 		}
 	}
 
 	public void processFilesInFolder(File folder, ResultsTable bgRt, ResultsTable rt) {
-		if (shouldStop) return;
-		for (final File fileEntry : Arrays.stream(folder.listFiles()).sorted().collect(Collectors.toList())) {
-			if (fileEntry.isDirectory()) {
-				processFilesInFolder(fileEntry, bgRt, rt);
-			} else {
-				if (fileEntry.getName().endsWith(".oib") && !fileEntry.getName().endsWith("After.oib")) {
+		//Columns are collected in primitive tables and copied to the ResultsTables once, at the end
+		WideColumnTable bgTable = new WideColumnTable();
+		WideColumnTable table = new WideColumnTable();
+		processFilesInFolder(folder, bgTable, table);
+		bgTable.fill(bgRt);
+		table.fill(rt);
+	}
+
+	public void processFilesInFolder(File folder, WideTable bgTable, WideTable table) {
+		processFilesInFolder(folder, (oibFile, measurement) -> {
+			try {
+				addMeasurement(oibFile, measurement, bgTable, table);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	/** Prepares ROIs or measures all the files, measurements are passed to the consumer in the order of the files. */
+	public void processFilesInFolder(File folder, BatchRunner.ResultConsumer<SpheroidMeasurement> consumer) {
+		processFilesInFolder(folder, consumer, () -> {});
+	}
+
+	/**
+	 * Prepares ROIs or measures all the files, in the watch mode {@code afterWatchedFiles} is called whenever
+	 * newly acquired files were measured.
+	 */
+	public void processFilesInFolder(File folder, BatchRunner.ResultConsumer<SpheroidMeasurement> consumer, Runnable afterWatchedFiles) {
+		try {
+			planeCache = planeCacheFolder != null ? new PlaneCache(planeCacheFolder, planeCacheMB * 1024L * 1024L) : null;
+			memoryBudget = MemoryBudget.ofMB(memoryBudgetMB);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		try {
+			processFiles(folder, consumer, afterWatchedFiles);
+		} finally {
+			if (planeCache != null)
+				System.out.println(planeCache.getHits() + " plane strips read from the plane cache, " + planeCache.getMisses() + " decoded.");
+			planeCache = null;
+			memoryBudget = null;
+		}
+	}
+
+	private void processFiles(File folder, BatchRunner.ResultConsumer<SpheroidMeasurement> consumer, Runnable afterWatchedFiles) {
+		if (shouldPrepareROIs) {
+			//ROIs are prepared interactively, one file after another, following files are opened in the background meanwhile
+			List<DatasetManifest.Entry> entries = discoverFiles(folder);
+			List<File> oibFiles = DatasetManifest.files(entries);
+			List<File> filesToPrepare = DatasetManifest.files(entries.stream().filter(this::needsRois).collect(Collectors.toList()));
+			try (StackPrefetcher stackPrefetcher = new StackPrefetcher(filesToPrepare, prefetchAhead, DISPLAYED_PLANE, planeCache)) {
+				prefetcher = stackPrefetcher;
+				if (metrics != null)
+					metrics.start(oibFiles.size(), 1);
+				for (final File fileEntry : oibFiles) {
+					if (shouldStop) return;
 					System.out.println("Processing " + fileEntry.getName() + "...");
-					if (shouldPrepareROIs)
+					if (metrics == null) {
 						prepareROIs(fileEntry);
-					else
-						processFile(fileEntry, bgRt, rt);
+						continue;
+					}
+					RunMetrics.FileRecord record = metrics.begin(fileEntry);
+					long start = record.start();
+					try {
+						prepareROIs(fileEntry);
+					} finally {
+						record.stop(RunMetrics.Stage.PREPARE, start);
+						metrics.end(record);
+					}
+					metrics.finish(record);
+				}
+			} finally {
+				prefetcher = null;
+			}
+		} else {
+			BatchRunner runner = new BatchRunner(workers);
+			runner.setMetrics(metrics);
+			//The watcher is started first, so that files written while the files found now are measured are not missed
+			try (FolderWatcher watcher = watch ? new FolderWatcher(folder, name -> isMeasuredFile(name) || name.endsWith(".roi") || name.endsWith(".zip")) : null;
+				 ResultCache<SpheroidMeasurement> cache = useCache ? openCache(folder) : null) {
+				//ROI files were paired with the .oib files when listing the directories, so they are not looked up again
+				Map<File, File> roiFiles = new LinkedHashMap<>();
+				List<File> knownFiles = new ArrayList<>();
+				for (DatasetManifest.Entry entry : discoverFiles(folder)) {
+					if (shard != null && !shard.owns(folder, entry.getFile()))
+						continue;
+					roiFiles.put(entry.getFile(), entry.getFirstCompanion());
+					knownFiles.add(entry.getFile());
+					for (int i = 0; i < 2; i++)
+						if (entry.getCompanion(i) != null)
+							knownFiles.add(entry.getCompanion(i));
+				}
+				if (shard != null)
+					System.out.println("Shard " + shard + " measures " + roiFiles.size() + " files.");
+				BatchRunner.FileTask<SpheroidMeasurement> measurement = oibFile -> {
+					if (shouldStop) runner.stop();
+					System.out.println("Processing " + oibFile.getName() + "...");
+					return measureFile(oibFile, roiFiles.get(oibFile));
+				};
+				BatchRunner.FileTask<SpheroidMeasurement> task = cache == null ? measurement : cache.wrap(measurement, oibFile -> new File[]{
+						new File(filePathWithoutExtension(oibFile) + ".roi"), new File(filePathWithoutExtension(oibFile) + ".zip")});
+				Set<File> measured = new HashSet<>();
+				BatchRunner.ResultConsumer<SpheroidMeasurement> measuredConsumer = (oibFile, result) -> {
+					if (result != null)
+						measured.add(oibFile);
+					consumer.accept(oibFile, result);
+				};
+				runner.run(new ArrayList<>(roiFiles.keySet()), task, measuredConsumer);
+				if (watcher != null) {
+					//New files are measured once both the .oib and its ROIs are complete, whichever comes last
+					watcher.markKnown(knownFiles);
+					System.out.println("Watching " + folder + " for new .oib and ROI files, press Esc to stop.");
+					IJ.showStatus("Watching for new .oib and ROI files, press Esc to stop");
+					watcher.watch(newFiles -> {
+						Set<File> oibFiles = new LinkedHashSet<>();
+						for (File file : newFiles) {
+							File oibFile = isMeasuredFile(file.getName()) ? file : new File(file.getPath().substring(0, file.getPath().lastIndexOf('.')) + ".oib");
+							if (oibFile.exists() && !measured.contains(oibFile) && !shouldStop) {
+								roiFiles.put(oibFile, findRoiFile(oibFile));
+								oibFiles.add(oibFile);
+							}
+						}
+						runner.run(new ArrayList<>(oibFiles), task, measuredConsumer);
+						afterWatchedFiles.run();
+					}, watchIdleMinutes * 60_000L, () -> shouldStop || IJ.escapePressed());
+					System.out.println("Stopped watching " + folder + ".");
+				}
+				if (cache != null)
+					System.out.println(cache.getHits() + " files taken from cache, " + cache.getMisses() + " measured.");
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Cache of measurements of already processed files, kept in the processed folder.
+	 * Files are measured again when the .oib or its ROIs change.
+	 */
+	public ResultCache<SpheroidMeasurement> openCache(File folder) throws IOException {
+		//shards keep their own journals, processes on several hosts do not append to one file
+		String name = ".SpheroidsAndLips" + (shard != null ? shard.getSuffix() : "") + ".cache";
+		return new ResultCache<>(folder, new File(folder, name), ANALYSIS_PARAMETERS, SpheroidMeasurement.CACHE_CODEC);
+	}
+
+	/** Measures the files of {@link #shard} and saves their results to the output folder for {@link #mergeShards}. */
+	public void measureShard(File folder, File outputFolder) throws IOException {
+		File shardFile = ShardResults.file(shardBasePath(folder, outputFolder), shard);
+		try (ShardResults<SpheroidMeasurement> results = new ShardResults<>(shardFile, folder, shard, ANALYSIS_PARAMETERS, SpheroidMeasurement.CACHE_CODEC)) {
+			processFilesInFolder(folder, (oibFile, measurement) -> {
+				try {
+					results.add(oibFile, measurement);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
 				}
+			});
+			results.complete();
+		}
+		System.out.println("Measurements of shard " + shard + " saved to " + shardFile.getPath() + ".");
+	}
+
+	/** Passes the measurements saved by all the shards to the consumer, in the order a single run would measure the files. */
+	public void mergeShards(File folder, File outputFolder, BatchRunner.ResultConsumer<SpheroidMeasurement> consumer) throws IOException {
+		Map<String, SpheroidMeasurement> measurements = ShardResults.merge(shardBasePath(folder, outputFolder), ANALYSIS_PARAMETERS, SpheroidMeasurement.CACHE_CODEC);
+		int merged = 0;
+		for (File oibFile : collectFiles(folder)) {
+			String path = Shard.relativePath(folder, oibFile);
+			if (!measurements.containsKey(path)) {
+				System.out.println(path + " is not in any shard, it was probably added after the shards ran.");
+				continue;
 			}
+			consumer.accept(oibFile, measurements.get(path));
+			merged++;
 		}
+		System.out.println("Merged measurements of " + merged + " files.");
+	}
+
+	/** Path of the shard files in the output folder. */
+	String shardBasePath(File folder, File outputFolder) {
+		return new File(outputFolder, "SpheroidsAndLips_" + folder.getName()).getPath();
+	}
+
+	/**
+	 * Finds .oib files (except the "After" ones) of the folder and its subfolders in the sorted processing order,
+	 * each paired with its .roi and .zip files.
+	 */
+	public List<DatasetManifest.Entry> discoverFiles(File folder) {
+		long start = System.nanoTime();
+		try {
+			DatasetManifest manifest = DatasetManifest.scan(folder, useManifest, workers);
+			System.out.println("Listed " + manifest.getListedDirectories() + " of " + manifest.getDirectories() + " directories.");
+			return manifest.find(this::isMeasuredFile, true, ".roi", ".zip");
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			if (metrics != null)
+				metrics.addRunTime(RunMetrics.Stage.DISCOVER, System.nanoTime() - start);
+		}
+	}
+
+	/** Whether the file is measured, i.e. it is an .oib file, except the "After" ones. */
+	public boolean isMeasuredFile(String name) {
+		return name.endsWith(".oib") && !name.endsWith("After.oib");
+	}
+
+	/** Lists .oib files (except the "After" ones) of the folder and its subfolders in the sorted processing order. */
+	public List<File> collectFiles(File folder) {
+		return DatasetManifest.files(discoverFiles(folder));
+	}
+
+	/** Whether ROIs of the discovered file should be prepared, i.e. it has none yet or old ones should be checked. */
+	public boolean needsRois(DatasetManifest.Entry entry) {
+		return entry.getFirstCompanion() == null || (shouldPrepareROIs && shouldRecheckROIs);
+	}
+
+	/** Whether ROIs of the file should be prepared, i.e. it has none yet or old ones should be checked. */
+	public boolean needsRois(File oibFile) {
+		File roiFile = new File(filePathWithoutExtension(oibFile) + ".roi");
+		File zipFile = new File(filePathWithoutExtension(oibFile) + ".zip");
+		return !(roiFile.exists() || zipFile.exists()) || (shouldPrepareROIs && shouldRecheckROIs);
 	}
 
 	public void prepareROIs(File oibFile) {
 		if (shouldStop) return;
-		File roiFile = new File(filePathWithoutExtension(oibFile) + ".roi");
-		if (roiFile.exists() && (!shouldPrepareROIs || !shouldRecheckROIs))
+		if (!needsRois(oibFile))
 			return;
+		File roiFile = new File(filePathWithoutExtension(oibFile) + ".roi");
 		File zipFile = new File(filePathWithoutExtension(oibFile) + ".zip");
-		if (zipFile.exists() && (!shouldPrepareROIs || !shouldRecheckROIs))
-			return;
-		//ImagePlus imp = IJ.openImage(oibFile.getPath());
-		ImagePlus imp = null;
+		//Only the displayed plane is decoded, other planes are read when the user browses to them
+		PlaneReaderStack stack;
 		try {
-			imp = BF.openImagePlus(oibFile.getPath())[0];
-		} catch (FormatException e) {
-			throw new RuntimeException(e);
+			stack = prefetcher != null ? prefetcher.take(oibFile) : PlaneReaderStack.open(oibFile, DISPLAYED_PLANE, planeCache);
 		} catch (IOException e) {
-			throw new RuntimeException(e);
+			throw new UncheckedIOException(e);
 		}
+		ImagePlus imp = stack.createImagePlus();
 		imp.show();
 		imp.setC(1);
-		imp.setSlice(2);
+		imp.setSlice(DISPLAYED_PLANE);
 		RoiManager rm = new RoiManager(false);
 		Roi roi;
 		if (zipFile.exists()) {
 			rm.open(filePathWithoutExtension(oibFile) + ".zip");
 		} else if (roiFile.exists()) {
 			rm.open(filePathWithoutExtension(oibFile) + ".roi");
+		} else if (proposeRois) {
+			long start = System.nanoTime();
+			Roi[] proposed = new RoiProposer(maxProposedSpheroids, bgRoiDefaultWidth).propose(imp.getProcessor());
+			for (Roi proposedRoi : proposed)
+				rm.addRoi(proposedRoi);
+			System.out.println("Proposed " + (proposed.length - 1) + " spheroid ROIs in " + (System.nanoTime() - start) / 1_000_000 + " ms");
 		} else {
 			roi = new OvalRoi(bgRoiDefaultX, bgRoiDefaultY,bgRoiDefaultWidth, bgRoiDefaultHeigth);
 			rm.addRoi(roi);
@@ -210,6 +604,11 @@ public class SpheroidsAndLips implements Command {
 			rm.save(filePathWithoutExtension(oibFile) + ".roi");
 		rm.close();
 		imp.close();
+		try {
+			stack.close();
+		} catch (IOException e) {
+			System.out.println("Could not close " + oibFile.getName() + ": " + e);
+		}
 	}
 
 	public String filePathWithoutExtension(File oibFile) {
@@ -220,56 +619,111 @@ public class SpheroidsAndLips implements Command {
 	}
 	public void processFile(File oibFile, ResultsTable bgRt, ResultsTable rt) {
 		if (shouldStop) return;
-		String fileName = fileNameWithoutExtension(oibFile);
-		System.out.println("Adding values from " + fileName + " to table.");
-		IJ.run("Set Measurements...", "mean redirect=None decimal=5");
+		addMeasurement(oibFile, measureFile(oibFile), bgRt, rt);
+	}
 
-		RoiManager rm = new RoiManager(false);
+	/**
+	 * Measures mean intensities of the first channel in all ROIs saved for the file, slice by slice.
+	 * Returns null when there are no ROIs for the file.
+	 * Does not touch any ImageJ global state, so it can run for several files in parallel.
+	 */
+	public SpheroidMeasurement measureFile(File oibFile) {
+		return measureFile(oibFile, findRoiFile(oibFile));
+	}
+
+	/** The .roi file of the .oib file, or its .zip file when there is no .roi, null when there is neither. */
+	public File findRoiFile(File oibFile) {
 		File roiFile = new File(filePathWithoutExtension(oibFile) + ".roi");
 		File zipFile = new File(filePathWithoutExtension(oibFile) + ".zip");
-		if (roiFile.exists()) {
-			rm.open(filePathWithoutExtension(oibFile) + ".roi");
-		} else if (zipFile.exists()){
-			rm.open(filePathWithoutExtension(oibFile) + ".zip");
-		} else
-			return;
+		return roiFile.exists() ? roiFile : zipFile.exists() ? zipFile : null;
+	}
+
+	/** Measures the file with ROIs of the given .roi or .zip file, returns null when the ROI file is null. */
+	public SpheroidMeasurement measureFile(File oibFile, File roiFile) {
+		if (roiFile == null)
+			return null;
+		try {
+			return FilePipeline.analyze(oibFile, new RoiMeanAnalyzer(file -> roiFile), stripBudgetMB * 1024L * 1024L, planeCache, memoryBudget);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
 
-		ImagePlus imp = IJ.openImage(oibFile.getPath());
+	public void addMeasurement(File oibFile, SpheroidMeasurement measurement, ResultsTable bgRt, ResultsTable rt) {
+		if (measurement == null)
+			return;
+		WideColumnTable bgTable = new WideColumnTable();
+		WideColumnTable table = new WideColumnTable();
+		try {
+			addMeasurement(oibFile, measurement, bgTable, table);
+		} catch (IOException e) {
+			//columns are only kept in memory
+			throw new UncheckedIOException(e);
+		}
+		bgTable.fill(bgRt);
+		table.fill(rt);
+	}
 
+	/** Adds a background column and a column per spheroid, values of a column are the means of the slices. */
+	public void addMeasurement(File oibFile, SpheroidMeasurement measurement, WideTable bgTable, WideTable table) throws IOException {
+		if (measurement == null)
+			return;
+		String fileName = fileNameWithoutExtension(oibFile);
+		System.out.println("Adding values from " + fileName + " to table.");
 		String columnName = oibFile.getParentFile().getName() + "-" + fileNameWithoutExtension(oibFile);
-		ResultsTable results = rm.multiMeasure(imp);
 
-		//First, we'll process the background ROI (first ROI in the zip)
-		String roiName = columnName + "_Bckgd";
-		int columnIndex = bgRt.getFreeColumn(roiName);
-		bgRt.setValue(columnIndex, 1,fileName + "_Bckgd");
-		for (int slice = 0; slice < imp.getNSlices(); slice++) {
-			while (bgRt.getCounter() < slice+1) bgRt.addRow();
-			double meanInt = results.getValueAsDouble(0, 2*slice);
-			int rowIndex = slice+2;
-			bgRt.setValue(columnIndex, rowIndex, meanInt);
-			System.out.println("Background mean " + meanInt + " from " + fileName + " added to row " + rowIndex + ", column name " + roiName + ", index " + columnIndex + ".");
+		//First, the background ROI (first ROI in the zip), then the spheroids
+		bgTable.addColumn(columnName + "_Bckgd", fileName + "_Bckgd", measurement.getBackground());
+		for (int i = 1; i <= measurement.getSpheroidCount(); i++) {
+			table.addColumn(i > 1 ? columnName + (char)(i+96) : columnName, i > 1 ? fileName + (char)(i+96): fileName, measurement.getSpheroid(i - 1));
 		}
+	}
 
-		//Then, we'll process the spheroids
-		for (int i = 1; i < rm.getCount(); i++) {
-			roiName = columnName;
-			if (i > 1) {
-				roiName = columnName + (char)(i+96);
-			}
-			columnIndex = rt.getFreeColumn(roiName);
-			rt.setValue(columnIndex, 1,i > 1 ? fileName + (char)(i+96): fileName);
-			for (int slice = 0; slice < imp.getNSlices(); slice++) {
-				while (rt.getCounter() < slice+1) rt.addRow();
-				double meanInt = results.getValueAsDouble(i, 2*slice);
-				int rowIndex = slice+2;
-				rt.setValue(columnIndex, rowIndex, meanInt);
-				System.out.println("Spheroid mean " + meanInt + " from " + fileName + " added to row " + rowIndex + ", column name " + roiName + ", index " + columnIndex + ".");
-			}
+	private WideResultsWriter stageWriter;
+	private WideResultsWriter stageBgWriter;
+
+	@Override
+	public String getStageName() {
+		return "spheroids";
+	}
+
+	@Override
+	public String[] getStageOptions() {
+		return new String[]{"columnar"};
+	}
+
+	@Override
+	public boolean acceptsFile(String name) {
+		return isMeasuredFile(name);
+	}
+
+	/** Opens the same tables in the output folder as {@link #measureFolder} does, files without ROIs are skipped. */
+	@Override
+	public PlaneAnalyzer<SpheroidMeasurement> openStage(File folder, File outputFolder, CliOptions options) throws IOException {
+		readColumnarTables(options);
+		stageWriter = new WideResultsWriter(new File(outputFolder, "SpheroidFluorescence_" + folder.getName() + ".xls"), columnarTables);
+		stageBgWriter = new WideResultsWriter(new File(outputFolder, "BackgroundFluorescence_" + folder.getName() + ".xls"), columnarTables);
+		return new RoiMeanAnalyzer(this::findRoiFile);
+	}
+
+	private void readColumnarTables(CliOptions options) {
+		if (options.has("columnar"))
+			columnarTables = ColumnarTableWriter.Compression.valueOf(options.get("columnar", "").toUpperCase());
+	}
+
+	@Override
+	public void addResult(File oibFile, SpheroidMeasurement measurement) throws IOException {
+		addMeasurement(oibFile, measurement, stageBgWriter, stageWriter);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try (WideResultsWriter writer = stageWriter; WideResultsWriter bgWriter = stageBgWriter) {
+			stageWriter = null;
+			stageBgWriter = null;
 		}
-		rm.close();
-		imp.close();
 	}
+
 	class WaitForUserDialogJH extends Dialog implements ActionListener, KeyListener, ItemListener {
 		protected Button button, stopButton, addRoiButton;
 		protected Checkbox prepareROIsCheckBox, recheckROIsCheckBox;
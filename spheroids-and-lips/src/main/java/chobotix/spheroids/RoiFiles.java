@@ -0,0 +1,65 @@
+package chobotix.spheroids;
+
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads ROIs saved by the ROI Manager (a single .roi file or a .zip of them) without creating a {@code RoiManager},
+ * so ROIs can be loaded from worker threads and without a display.
+ * ROIs are returned in the order the ROI Manager would list them.
+ * @author Jaroslav Hanuš
+ */
+public class RoiFiles {
+
+	private RoiFiles() {
+	}
+
+	public static Roi[] open(File file) throws IOException {
+		if (file.getName().endsWith(".zip"))
+			return openZip(file);
+		Roi roi = new RoiDecoder(file.getPath()).getRoi();
+		if (roi == null)
+			throw new IOException("Could not read ROI from " + file.getPath());
+		return new Roi[]{roi};
+	}
+
+	private static Roi[] openZip(File file) throws IOException {
+		List<Roi> rois = new ArrayList<>();
+		try (ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			ZipEntry entry;
+			while ((entry = in.getNextEntry()) != null) {
+				String name = entry.getName();
+				if (!name.endsWith(".roi"))
+					continue;
+				Roi roi = new RoiDecoder(readEntry(in), name).getRoi();
+				if (roi != null) {
+					roi.setName(name.substring(0, name.length() - ".roi".length()));
+					rois.add(roi);
+				}
+			}
+		}
+		if (rois.isEmpty())
+			throw new IOException("No ROIs found in " + file.getPath());
+		return rois.toArray(new Roi[0]);
+	}
+
+	private static byte[] readEntry(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) > 0)
+			out.write(buffer, 0, read);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,82 @@
+package chobotix.spheroids;
+
+import chobotix.core.PlaneAnalyzer;
+import chobotix.core.PlaneReader;
+import chobotix.core.PlaneStrip;
+import chobotix.core.RunMetrics;
+import ij.gui.Roi;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * Spheroid measurement of {@code SpheroidsAndLips} as a stage of a {@link chobotix.core.FilePipeline}:
+ * mean intensities of the first channel in all ROIs saved for the file, slice by slice, with a {@link RoiMeanEngine}.
+ * Files without ROIs are skipped, only the first channel of the first timepoint is decoded.
+ * <p>
+ * The engine measures planes of any channel, but the plugin reports only the first one: the former
+ * {@code RoiManager.multiMeasure} results were read at row {@code 2*slice}, the first of two channels of each slice.
+ * Measuring the other channels would decode planes no column is written for.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class RoiMeanAnalyzer implements PlaneAnalyzer<SpheroidMeasurement> {
+	private static final int[] FIRST_CHANNEL = {0};
+	private static final int[] NONE = {};
+
+	private final Function<File, File> roiFiles;
+
+	/** @param roiFiles gives the .roi or .zip file of an image file, null when there is none */
+	public RoiMeanAnalyzer(Function<File, File> roiFiles) {
+		this.roiFiles = roiFiles;
+	}
+
+	@Override
+	public FileAnalysis<SpheroidMeasurement> begin(PlaneReader reader) throws IOException {
+		File roiFile = roiFiles.apply(reader.getFile());
+		if (roiFile == null)
+			return null;
+		RunMetrics.FileRecord fileMetrics = RunMetrics.current();
+		long start = fileMetrics.start();
+		Roi[] rois = RoiFiles.open(roiFile);
+		fileMetrics.stop(RunMetrics.Stage.OPEN, start);
+		return new Analysis(new RoiMeanEngine(rois, reader.getWidth(), reader.getHeight()), reader.getSlices());
+	}
+
+	private static class Analysis implements FileAnalysis<SpheroidMeasurement> {
+		private final RoiMeanEngine engine;
+		/** Sums of pixels of the ROIs, indexed [slice][roi], each slice is filled by one thread. */
+		private final double[][] sums;
+
+		Analysis(RoiMeanEngine engine, int slices) {
+			this.engine = engine;
+			sums = new double[slices][engine.getRoiCount()];
+		}
+
+		@Override
+		public int[] channels(int slice, int frame) {
+			return frame == 0 ? FIRST_CHANNEL : NONE;
+		}
+
+		@Override
+		public void accept(PlaneStrip strip) {
+			RunMetrics.FileRecord fileMetrics = RunMetrics.current();
+			long start = fileMetrics.start();
+			engine.addSums(strip.getPixels(0), strip.getOffset(), sums[strip.getSlice()]);
+			fileMetrics.stop(RunMetrics.Stage.MEASURE, start);
+		}
+
+		@Override
+		public SpheroidMeasurement finish() {
+			double[][] means = new double[engine.getRoiCount()][sums.length];
+			for (int slice = 0; slice < sums.length; slice++) {
+				double[] sliceMeans = engine.means(sums[slice]);
+				for (int roi = 0; roi < sliceMeans.length; roi++)
+					means[roi][slice] = sliceMeans[roi];
+			}
+			return new SpheroidMeasurement(means[0], Arrays.copyOfRange(means, 1, means.length));
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package chobotix.spheroids;
+
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures mean raw intensities of several ROIs in one pass over each plane.
+ * <p>
+ * Every ROI is rasterized once into horizontal spans of pixels (clipped to the image, using the ROI mask),
+ * spans of all ROIs are sorted by position, so a plane is read once from top to bottom no matter how many ROIs
+ * there are. Means equal those of {@code ImageStatistics} with the ROI set on the processor, without calibration.
+ * A ROI with no pixels inside the image has NaN mean.
+ * </p>
+ * <p>
+ * Spans never cross rows, so planes can also be measured in strips of rows with the same result.
+ * The engine only holds the spans, so it can be shared by threads measuring different planes.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class RoiMeanEngine {
+	private final int width;
+	private final int height;
+	private final int roiCount;
+	/** Triples of (start pixel index, length, ROI index), sorted by start. */
+	private final int[] spans;
+	private final long[] pixelCounts;
+
+	public RoiMeanEngine(Roi[] rois, int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.roiCount = rois.length;
+		pixelCounts = new long[rois.length];
+		List<int[]> spanList = new ArrayList<>();
+		for (int i = 0; i < rois.length; i++)
+			rasterize(rois[i], i, spanList);
+		spanList.sort((a, b) -> Integer.compare(a[0], b[0]));
+		spans = new int[spanList.size() * 3];
+		for (int i = 0; i < spanList.size(); i++) {
+			int[] span = spanList.get(i);
+			spans[3 * i] = span[0];
+			spans[3 * i + 1] = span[1];
+			spans[3 * i + 2] = span[2];
+			pixelCounts[span[2]] += span[1];
+		}
+	}
+
+	public int getRoiCount() {
+		return roiCount;
+	}
+
+	/** Number of image pixels inside the ROI. */
+	public long getPixelCount(int roi) {
+		return pixelCounts[roi];
+	}
+
+	/**
+	 * Adds raw 16-bit pixels of spans starting in the strip, whose first pixel has index {@code offset} in the plane,
+	 * to the sums of the ROIs. Strips of a plane can be added in any order, {@link #means} turns the sums into means.
+	 */
+	public void addSums(short[] strip, int offset, double[] sums) {
+		int end = offset + strip.length;
+		for (int s = firstSpan(offset); s < spans.length && spans[s] < end; s += 3) {
+			int from = spans[s] - offset, to = from + spans[s + 1];
+			long sum = 0;
+			for (int i = from; i < to; i++)
+				sum += strip[i] & 0xffff;
+			sums[spans[s + 2]] += sum;
+		}
+	}
+
+	/** Index in {@link #spans} of the first span starting at or after the pixel. */
+	private int firstSpan(int pixel) {
+		int low = 0, high = spans.length / 3;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (spans[3 * middle] < pixel)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return 3 * low;
+	}
+
+	/** Means of the ROIs from the sums of all the pixels of a plane. */
+	public double[] means(double[] sums) {
+		double[] means = new double[roiCount];
+		for (int roi = 0; roi < roiCount; roi++)
+			means[roi] = pixelCounts[roi] == 0 ? Double.NaN : sums[roi] / pixelCounts[roi];
+		return means;
+	}
+
+	private void rasterize(Roi roi, int index, List<int[]> spanList) {
+		Rectangle bounds = roi.getBounds();
+		ImageProcessor mask = roi.getMask();
+		int x0 = Math.max(0, bounds.x), x1 = Math.min(width, bounds.x + bounds.width);
+		int y0 = Math.max(0, bounds.y), y1 = Math.min(height, bounds.y + bounds.height);
+		for (int y = y0; y < y1; y++) {
+			if (mask == null) {
+				if (x1 > x0)
+					spanList.add(new int[]{y * width + x0, x1 - x0, index});
+				continue;
+			}
+			byte[] maskPixels = (byte[]) mask.getPixels();
+			int maskRow = (y - bounds.y) * mask.getWidth() - bounds.x;
+			int start = -1;
+			for (int x = x0; x <= x1; x++) {
+				boolean inside = x < x1 && maskPixels[maskRow + x] != 0;
+				if (inside && start < 0) {
+					start = x;
+				} else if (!inside && start >= 0) {
+					spanList.add(new int[]{y * width + start, x - start, index});
+					start = -1;
+				}
+			}
+		}
+	}
+}
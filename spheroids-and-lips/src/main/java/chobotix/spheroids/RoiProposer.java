@@ -0,0 +1,252 @@
+package chobotix.spheroids;
+
+import ij.gui.EllipseRoi;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Proposes a background ROI and spheroid ROIs of a plane, so that ROIs only have to be checked rather than drawn.
+ * <p>
+ * The plane is downsampled (block means) to at most {@link #WORK_SIZE} pixels on the longer side, smoothed by two
+ * 3×3 box filters and split by the Otsu threshold of its histogram. Connected components (8-connected) of the bright
+ * pixels that are big enough are spheroid candidates, each gets the ellipse with the same second moments.
+ * The background ROI is the circle of the given size with no bright pixel and the lowest mean inside, found on
+ * a coarse grid with summed area tables. A plane of our usual size takes a few milliseconds.
+ * </p>
+ * <p>
+ * Spheroids are expected brighter than the background. Candidates touching the image border are proposed
+ * after those that do not.
+ * </p>
+ * @author Jaroslav Hanuš
+ */
+public class RoiProposer {
+	/** Longer side of the downsampled plane the proposal works on. */
+	public static final int WORK_SIZE = 256;
+
+	private final int maxSpheroids;
+	private final int backgroundSize;
+	/** Smallest spheroid as a fraction of the plane area. */
+	private double minAreaFraction = 0.002;
+
+	/**
+	 * @param maxSpheroids   spheroid ROIs proposed at most, the biggest ones
+	 * @param backgroundSize diameter of the background ROI in pixels of the plane
+	 */
+	public RoiProposer(int maxSpheroids, int backgroundSize) {
+		this.maxSpheroids = maxSpheroids;
+		this.backgroundSize = backgroundSize;
+	}
+
+	public void setMinAreaFraction(double minAreaFraction) {
+		this.minAreaFraction = minAreaFraction;
+	}
+
+	/**
+	 * Background ROI followed by the spheroid ROIs from the biggest one, the layout of saved ROI sets.
+	 * There may be no spheroid ROI, the background ROI is always proposed.
+	 */
+	public Roi[] propose(ImageProcessor ip) {
+		int factor = Math.max(1, (Math.max(ip.getWidth(), ip.getHeight()) + WORK_SIZE - 1) / WORK_SIZE);
+		int w = ip.getWidth() / factor;
+		int h = ip.getHeight() / factor;
+		float[] small = smooth(smooth(downsample(ip, factor, w, h), w, h), w, h);
+		boolean[] bright = threshold(small);
+
+		List<Roi> rois = new ArrayList<>();
+		rois.add(background(small, bright, w, h, factor));
+		for (double[] ellipse : components(bright, w, h)) {
+			if (rois.size() > maxSpheroids)
+				break;
+			rois.add(toRoi(ellipse, factor));
+		}
+		return rois.toArray(new Roi[0]);
+	}
+
+	private static float[] downsample(ImageProcessor ip, int factor, int w, int h) {
+		float[] small = new float[w * h];
+		int width = ip.getWidth();
+		float scale = 1f / (factor * factor);
+		for (int y = 0; y < h * factor; y++) {
+			int row = (y / factor) * w;
+			int offset = y * width;
+			for (int x = 0; x < w * factor; x++)
+				small[row + x / factor] += ip.getf(offset + x);
+		}
+		for (int i = 0; i < small.length; i++)
+			small[i] *= scale;
+		return small;
+	}
+
+	/** 3×3 box filter, separable, edge pixels are repeated. */
+	private static float[] smooth(float[] in, int w, int h) {
+		float[] tmp = new float[in.length];
+		for (int y = 0; y < h; y++) {
+			int row = y * w;
+			for (int x = 0; x < w; x++)
+				tmp[row + x] = (in[row + Math.max(x - 1, 0)] + in[row + x] + in[row + Math.min(x + 1, w - 1)]) / 3f;
+		}
+		float[] out = new float[in.length];
+		for (int y = 0; y < h; y++) {
+			int up = Math.max(y - 1, 0) * w, row = y * w, down = Math.min(y + 1, h - 1) * w;
+			for (int x = 0; x < w; x++)
+				out[row + x] = (tmp[up + x] + tmp[row + x] + tmp[down + x]) / 3f;
+		}
+		return out;
+	}
+
+	/** Pixels above the Otsu threshold of a 256 bin histogram between the minimum and the maximum. */
+	private static boolean[] threshold(float[] values) {
+		float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+		for (float v : values) {
+			min = Math.min(min, v);
+			max = Math.max(max, v);
+		}
+		boolean[] bright = new boolean[values.length];
+		if (!(max > min))
+			return bright;
+		int bins = 256;
+		long[] histogram = new long[bins];
+		float scale = (bins - 1) / (max - min);
+		for (float v : values)
+			histogram[(int) ((v - min) * scale)]++;
+		double total = values.length, sum = 0;
+		for (int i = 0; i < bins; i++)
+			sum += i * (double) histogram[i];
+		double sumBelow = 0, countBelow = 0, bestVariance = -1;
+		int best = 0;
+		for (int i = 0; i < bins - 1; i++) {
+			countBelow += histogram[i];
+			sumBelow += i * (double) histogram[i];
+			double countAbove = total - countBelow;
+			if (countBelow == 0 || countAbove == 0)
+				continue;
+			double difference = sumBelow / countBelow - (sum - sumBelow) / countAbove;
+			double variance = countBelow * countAbove * difference * difference;
+			if (variance > bestVariance) {
+				bestVariance = variance;
+				best = i;
+			}
+		}
+		for (int i = 0; i < values.length; i++)
+			bright[i] = (int) ((values[i] - min) * scale) > best;
+		return bright;
+	}
+
+	/**
+	 * Ellipses of the bright components big enough, as (center x, center y, semi-major axis, semi-minor axis,
+	 * angle, area, touches border) in downsampled pixels, inner ones first, then from the biggest.
+	 */
+	private List<double[]> components(boolean[] bright, int w, int h) {
+		int[] labels = new int[bright.length];
+		int[] queue = new int[bright.length];
+		double minArea = minAreaFraction * w * h;
+		List<double[]> ellipses = new ArrayList<>();
+		int label = 0;
+		for (int start = 0; start < bright.length; start++) {
+			if (!bright[start] || labels[start] != 0)
+				continue;
+			label++;
+			labels[start] = label;
+			int head = 0, tail = 0;
+			queue[tail++] = start;
+			double n = 0, sx = 0, sy = 0, sxx = 0, syy = 0, sxy = 0;
+			boolean border = false;
+			while (head < tail) {
+				int i = queue[head++];
+				int x = i % w, y = i / w;
+				n++;
+				sx += x;
+				sy += y;
+				sxx += (double) x * x;
+				syy += (double) y * y;
+				sxy += (double) x * y;
+				if (x == 0 || y == 0 || x == w - 1 || y == h - 1)
+					border = true;
+				for (int dy = -1; dy <= 1; dy++) {
+					int ny = y + dy;
+					if (ny < 0 || ny >= h)
+						continue;
+					for (int dx = -1; dx <= 1; dx++) {
+						int nx = x + dx;
+						if (nx < 0 || nx >= w)
+							continue;
+						int j = ny * w + nx;
+						if (bright[j] && labels[j] == 0) {
+							labels[j] = label;
+							queue[tail++] = j;
+						}
+					}
+				}
+			}
+			if (n < minArea)
+				continue;
+			double cx = sx / n, cy = sy / n;
+			double varX = sxx / n - cx * cx, varY = syy / n - cy * cy, covXY = sxy / n - cx * cy;
+			double common = Math.sqrt((varX - varY) * (varX - varY) / 4 + covXY * covXY);
+			double major = Math.max((varX + varY) / 2 + common, 0.25);
+			double minor = Math.max((varX + varY) / 2 - common, 0.25);
+			double angle = 0.5 * Math.atan2(2 * covXY, varX - varY);
+			//a uniform ellipse with semi-axis a has variance a*a/4 along it
+			ellipses.add(new double[]{cx, cy, 2 * Math.sqrt(major), 2 * Math.sqrt(minor), angle, n, border ? 1 : 0});
+		}
+		ellipses.sort((a, b) -> a[6] != b[6] ? Double.compare(a[6], b[6]) : Double.compare(b[5], a[5]));
+		return ellipses;
+	}
+
+	private static Roi toRoi(double[] ellipse, int factor) {
+		//centers of downsampled pixels are in the middle of their blocks
+		double cx = (ellipse[0] + 0.5) * factor, cy = (ellipse[1] + 0.5) * factor;
+		double a = ellipse[2] * factor, b = ellipse[3] * factor;
+		double dx = a * Math.cos(ellipse[4]), dy = a * Math.sin(ellipse[4]);
+		return new EllipseRoi(cx - dx, cy - dy, cx + dx, cy + dy, b / a);
+	}
+
+	/** Circle of the background size with no bright pixel and the lowest mean, searched on a grid of quarter sizes. */
+	private Roi background(float[] small, boolean[] bright, int w, int h, int factor) {
+		int size = Math.max(1, Math.min(Math.min(w, h), backgroundSize / factor));
+		//summed area tables of values and bright pixels, one row and column bigger
+		double[] values = new double[(w + 1) * (h + 1)];
+		int[] brightCounts = new int[(w + 1) * (h + 1)];
+		for (int y = 0; y < h; y++) {
+			double rowSum = 0;
+			int rowCount = 0;
+			for (int x = 0; x < w; x++) {
+				rowSum += small[y * w + x];
+				rowCount += bright[y * w + x] ? 1 : 0;
+				int i = (y + 1) * (w + 1) + x + 1;
+				values[i] = values[i - w - 1] + rowSum;
+				brightCounts[i] = brightCounts[i - w - 1] + rowCount;
+			}
+		}
+		int step = Math.max(1, size / 4);
+		int bestX = 0, bestY = 0, bestCount = Integer.MAX_VALUE;
+		double bestMean = Double.POSITIVE_INFINITY;
+		for (int y = 0; y + size <= h; y += step) {
+			for (int x = 0; x + size <= w; x += step) {
+				int count = boxSum(brightCounts, w, x, y, size);
+				double mean = boxSum(values, w, x, y, size);
+				if (count < bestCount || count == bestCount && mean < bestMean) {
+					bestCount = count;
+					bestMean = mean;
+					bestX = x;
+					bestY = y;
+				}
+			}
+		}
+		return new OvalRoi(bestX * factor, bestY * factor, size * factor, size * factor);
+	}
+
+	private static int boxSum(int[] table, int w, int x, int y, int size) {
+		int stride = w + 1;
+		return table[(y + size) * stride + x + size] - table[y * stride + x + size] - table[(y + size) * stride + x] + table[y * stride + x];
+	}
+
+	private static double boxSum(double[] table, int w, int x, int y, int size) {
+		int stride = w + 1;
+		return table[(y + size) * stride + x + size] - table[y * stride + x + size] - table[(y + size) * stride + x] + table[y * stride + x];
+	}
+}
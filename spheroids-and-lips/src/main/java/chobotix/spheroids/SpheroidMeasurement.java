@@ -0,0 +1,60 @@
+package chobotix.spheroids;
+
+import chobotix.core.ResultCache;
+
+/**
+ * Mean intensities of all ROIs of one file in all its slices.
+ * The first ROI of a ROI set is the background, the others are spheroids.
+ * @author Jaroslav Hanuš
+ */
+public class SpheroidMeasurement {
+	/** Lossless text form of measurements for the {@link ResultCache}, background first, then the spheroids. */
+	public static final ResultCache.Codec<SpheroidMeasurement> CACHE_CODEC = new ResultCache.Codec<SpheroidMeasurement>() {
+		@Override
+		public String encode(SpheroidMeasurement m) {
+			StringBuilder sb = new StringBuilder(ResultCache.encodeDoubles(m.background));
+			for (double[] spheroid : m.spheroids)
+				sb.append(';').append(ResultCache.encodeDoubles(spheroid));
+			return sb.toString();
+		}
+
+		@Override
+		public SpheroidMeasurement decode(String encoded) {
+			String[] parts = encoded.split(";", -1);
+			double[] background = ResultCache.decodeDoubles(parts[0]);
+			double[][] spheroids = new double[parts.length - 1][];
+			//every ROI has a mean of every slice
+			for (int i = 1; i < parts.length; i++)
+				spheroids[i - 1] = ResultCache.decodeDoubles(parts[i], background.length);
+			return new SpheroidMeasurement(background, spheroids);
+		}
+	};
+
+	private final double[] background;
+	private final double[][] spheroids;
+
+	/**
+	 * @param background mean of the background ROI for each slice
+	 * @param spheroids  means of each spheroid ROI for each slice, indexed [spheroid][slice]
+	 */
+	public SpheroidMeasurement(double[] background, double[][] spheroids) {
+		this.background = background;
+		this.spheroids = spheroids;
+	}
+
+	public int getSlices() {
+		return background.length;
+	}
+
+	public double[] getBackground() {
+		return background;
+	}
+
+	public int getSpheroidCount() {
+		return spheroids.length;
+	}
+
+	public double[] getSpheroid(int spheroid) {
+		return spheroids[spheroid];
+	}
+}
@@ -0,0 +1,139 @@
+package chobotix.spheroids;
+
+import ij.gui.EllipseRoi;
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+import ij.measure.Measurements;
+import ij.process.ImageStatistics;
+import ij.process.ShortProcessor;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Means of {@link RoiMeanEngine} are the raw means {@link ImageStatistics} gives with the ROI set on the processor,
+ * also when planes are summed in strips splitting the ROIs, and the sums of strips are exactly those of whole planes.
+ * @author Jaroslav Hanuš
+ */
+public class RoiMeanEngineTest {
+	private static final int WIDTH = 83;
+	private static final int HEIGHT = 64;
+	private static final double DELTA = 1e-9;
+
+	/** Background first, then oval, rotated ellipse, polygon, composite ROIs with a hole and ROIs partly outside. */
+	private static Roi[] rois() {
+		ShapeRoi ring = new ShapeRoi(new OvalRoi(40, 20, 30, 30)).not(new ShapeRoi(new OvalRoi(48, 28, 14, 14)));
+		ShapeRoi pair = new ShapeRoi(new OvalRoi(2, 40, 12, 12)).or(new ShapeRoi(new Roi(20, 44, 15, 6)));
+		return new Roi[]{
+				new OvalRoi(5, 5, 20, 14),
+				new OvalRoi(30, 3, 17, 23),
+				new EllipseRoi(10, 30, 35, 55, 0.6),
+				new PolygonRoi(new int[]{50, 80, 72, 58, 61}, new int[]{2, 10, 30, 25, 12}, 5, Roi.POLYGON),
+				ring,
+				pair,
+				new Roi(70, 50, 30, 30),
+				new OvalRoi(-10, -6, 25, 20),
+				new PolygonRoi(new int[]{-5, 20, 8}, new int[]{55, 70, 80}, 3, Roi.POLYGON)};
+	}
+
+	@Test
+	public void meansEqualImageStatistics() {
+		Random random = new Random(3);
+		Roi[] rois = rois();
+		RoiMeanEngine engine = new RoiMeanEngine(rois, WIDTH, HEIGHT);
+		for (int run = 0; run < 3; run++) {
+			short[] pixels = randomPlane(random);
+			double[] expected = imageStatisticsMeans(rois, pixels);
+			assertMeans("whole plane, run " + run, expected, engine.means(sums(engine, pixels, HEIGHT)));
+			//strips of one row, splitting every ROI, of 7 rows and of all rows but the last one
+			for (int stripRows : new int[]{1, 7, HEIGHT - 1})
+				assertMeans(stripRows + "-row strips, run " + run, expected, engine.means(sums(engine, pixels, stripRows)));
+		}
+	}
+
+	@Test
+	public void stripSumsEqualWholePlaneSums() {
+		Random random = new Random(4);
+		RoiMeanEngine engine = new RoiMeanEngine(rois(), WIDTH, HEIGHT);
+		for (int run = 0; run < 3; run++) {
+			short[] pixels = randomPlane(random);
+			double[] whole = sums(engine, pixels, HEIGHT);
+			for (int stripRows : new int[]{1, 7, HEIGHT - 1}) {
+				String at = stripRows + "-row strips, run " + run;
+				assertMeans(at, whole, sums(engine, pixels, stripRows), 0);
+				assertMeans(at, engine.means(whole), engine.means(sums(engine, pixels, stripRows)), 0);
+			}
+		}
+	}
+
+	@Test
+	public void pixelCountsAreThoseOfTheMasksInsideTheImage() {
+		Roi[] rois = rois();
+		RoiMeanEngine engine = new RoiMeanEngine(rois, WIDTH, HEIGHT);
+		short[] ones = new short[WIDTH * HEIGHT];
+		Arrays.fill(ones, (short) 1);
+		double[] sums = sums(engine, ones, HEIGHT);
+		for (int roi = 0; roi < rois.length; roi++) {
+			assertEquals("ROI " + roi, sums[roi], engine.getPixelCount(roi), 0);
+			assertTrue("ROI " + roi + " is partly inside", engine.getPixelCount(roi) > 0);
+		}
+	}
+
+	@Test
+	public void roisOutsideTheImageHaveNaNMeans() {
+		Roi[] rois = {new OvalRoi(10, 10, 20, 20), new OvalRoi(WIDTH + 5, 10, 20, 20), new Roi(-30, -30, 30, 30),
+				new PolygonRoi(new int[]{0, 10, 5}, new int[]{HEIGHT, HEIGHT + 10, HEIGHT + 20}, 3, Roi.POLYGON)};
+		RoiMeanEngine engine = new RoiMeanEngine(rois, WIDTH, HEIGHT);
+		double[] means = engine.means(sums(engine, randomPlane(new Random(5)), 7));
+		assertFalse(Double.isNaN(means[0]));
+		for (int roi = 1; roi < rois.length; roi++) {
+			assertEquals("ROI " + roi, 0, engine.getPixelCount(roi));
+			assertTrue("ROI " + roi, Double.isNaN(means[roi]));
+		}
+	}
+
+	/** Sums of the ROIs, adding the plane in strips of the rows, the last strip may be shorter. */
+	private static double[] sums(RoiMeanEngine engine, short[] pixels, int stripRows) {
+		double[] sums = new double[engine.getRoiCount()];
+		for (int y = 0; y < HEIGHT; y += stripRows) {
+			int rows = Math.min(stripRows, HEIGHT - y);
+			engine.addSums(Arrays.copyOfRange(pixels, y * WIDTH, (y + rows) * WIDTH), y * WIDTH, sums);
+		}
+		return sums;
+	}
+
+	private static double[] imageStatisticsMeans(Roi[] rois, short[] pixels) {
+		ShortProcessor ip = new ShortProcessor(WIDTH, HEIGHT, pixels, null);
+		double[] means = new double[rois.length];
+		for (int roi = 0; roi < rois.length; roi++) {
+			ip.setRoi(rois[roi]);
+			means[roi] = ImageStatistics.getStatistics(ip, Measurements.MEAN, null).mean;
+		}
+		ip.resetRoi();
+		return means;
+	}
+
+	private static void assertMeans(String message, double[] expected, double[] actual) {
+		assertMeans(message, expected, actual, DELTA);
+	}
+
+	private static void assertMeans(String message, double[] expected, double[] actual, double delta) {
+		for (int roi = 0; roi < expected.length; roi++)
+			assertEquals(message + ", ROI " + roi, expected[roi], actual[roi], delta);
+	}
+
+	/** Pixels of the whole 16-bit range, values from 0x8000 up are negative shorts. */
+	private static short[] randomPlane(Random random) {
+		short[] pixels = new short[WIDTH * HEIGHT];
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = (short) (random.nextBoolean() ? random.nextInt(65536) : 200 + random.nextInt(3000));
+		return pixels;
+	}
+}
@@ -0,0 +1,110 @@
+package chobotix.spheroids;
+
+import ij.gui.Roi;
+import ij.process.ShortProcessor;
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link RoiProposer} finds bright discs on a dark background with a gradient: the spheroid ellipses cover the discs
+ * from the biggest one, and the background ROI lies apart from all of them.
+ * @author Jaroslav Hanuš
+ */
+public class RoiProposerTest {
+	private static final int WIDTH = 600;
+	private static final int HEIGHT = 480;
+	/** Downsampling factor of the proposal for this plane size. */
+	private static final int FACTOR = (WIDTH + RoiProposer.WORK_SIZE - 1) / RoiProposer.WORK_SIZE;
+	private static final int BACKGROUND_SIZE = 100;
+	/** Discs as (center x, center y, radius), from the biggest one. */
+	private static final int[][] DISCS = {{150, 130, 60}, {420, 150, 45}, {300, 360, 35}, {500, 390, 25}};
+
+	/** Background from 300 in the top left to 900 in the bottom right corner with noise, discs of about 3000. */
+	private static ShortProcessor plane() {
+		Random random = new Random(18);
+		short[] pixels = new short[WIDTH * HEIGHT];
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				double value = 300 + 300.0 * x / WIDTH + 300.0 * y / HEIGHT;
+				for (int[] disc : DISCS)
+					if (inDisc(disc, x, y))
+						value = 3000;
+				pixels[y * WIDTH + x] = (short) (value + random.nextGaussian() * 40);
+			}
+		}
+		return new ShortProcessor(WIDTH, HEIGHT, pixels, null);
+	}
+
+	@Test
+	public void ellipsesCoverAllDiscs() {
+		Roi[] rois = new RoiProposer(10, BACKGROUND_SIZE).propose(plane());
+		assertEquals("background and one ROI per disc", 1 + DISCS.length, rois.length);
+		for (int d = 0; d < DISCS.length; d++)
+			assertCovers("disc " + d, DISCS[d], rois[1 + d]);
+	}
+
+	@Test
+	public void atMostMaxSpheroidsAreProposedBiggestFirst() {
+		for (int maxSpheroids = 0; maxSpheroids < DISCS.length; maxSpheroids++) {
+			Roi[] rois = new RoiProposer(maxSpheroids, BACKGROUND_SIZE).propose(plane());
+			assertEquals(maxSpheroids + " spheroids", 1 + maxSpheroids, rois.length);
+			for (int d = 0; d < maxSpheroids; d++)
+				assertCovers(maxSpheroids + " spheroids, disc " + d, DISCS[d], rois[1 + d]);
+		}
+	}
+
+	@Test
+	public void backgroundOverlapsNoDisc() {
+		Roi background = new RoiProposer(10, BACKGROUND_SIZE).propose(plane())[0];
+		Rectangle box = background.getBounds();
+		assertEquals(BACKGROUND_SIZE / FACTOR * FACTOR, box.width);
+		assertTrue(box + " is inside the plane", new Rectangle(WIDTH, HEIGHT).contains(box));
+		//the edge of a disc may blur into one downsampled pixel around it
+		for (int d = 0; d < DISCS.length; d++) {
+			int[] disc = DISCS[d];
+			double dx = Math.max(0, Math.max(box.x - disc[0], disc[0] - (box.x + box.width)));
+			double dy = Math.max(0, Math.max(box.y - disc[1], disc[1] - (box.y + box.height)));
+			assertTrue(box + " overlaps disc " + d, Math.hypot(dx, dy) >= disc[2] - FACTOR);
+		}
+	}
+
+	@Test
+	public void uniformPlaneHasBackgroundOnly() {
+		short[] pixels = new short[WIDTH * HEIGHT];
+		Arrays.fill(pixels, (short) 500);
+		Roi[] rois = new RoiProposer(10, BACKGROUND_SIZE).propose(new ShortProcessor(WIDTH, HEIGHT, pixels, null));
+		assertEquals(1, rois.length);
+	}
+
+	/**
+	 * The ROI contains the center and nearly all pixels of the disc, and only few pixels outside of it, allowing
+	 * for the blur of one downsampled pixel at the edge.
+	 */
+	private static void assertCovers(String message, int[] disc, Roi roi) {
+		int discPixels = 0, covered = 0, roiPixels = 0, outside = 0;
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				boolean inDisc = inDisc(disc, x, y);
+				boolean inRoi = roi.contains(x, y);
+				discPixels += inDisc ? 1 : 0;
+				covered += inDisc && inRoi ? 1 : 0;
+				roiPixels += inRoi ? 1 : 0;
+				outside += inRoi && Math.hypot(x - disc[0], y - disc[1]) > disc[2] + FACTOR ? 1 : 0;
+			}
+		}
+		assertTrue(message + " center", roi.contains(disc[0], disc[1]));
+		assertTrue(message + " covered " + covered + " of " + discPixels, covered >= 0.9 * discPixels);
+		assertTrue(message + " " + outside + " of " + roiPixels + " ROI pixels outside", outside <= 0.05 * roiPixels);
+	}
+
+	private static boolean inDisc(int[] disc, int x, int y) {
+		double dx = x - disc[0], dy = y - disc[1];
+		return dx * dx + dy * dy <= (double) disc[2] * disc[2];
+	}
+}